@@ -0,0 +1,81 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.HudClient;
+
+/**
+ * Measures the throughput of the LED commands through a HudClient connected
+ * to a LoopbackDevice, i.e. the cost of the driver's write path.
+ *
+ * Every call uses a new value, so the shadow state never suppresses it. Run
+ * with "-prof gc" to see the allocation rate of each path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ClientBenchmark {
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+
+    private HudClient mClient;
+    private final double[] mFrame = new double[CHANNELS];
+    private int mCounter;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        mClient = Clients.connect(new LoopbackDevice());
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        mClient.shutdown();
+    }
+
+    @Benchmark
+    public void set() throws BluetoothException {
+        int i = mCounter++;
+        mClient.set(i % CHANNELS, value(i / CHANNELS));
+    }
+
+    @Benchmark
+    public void setAll() throws BluetoothException {
+        mClient.setAll(value(mCounter++));
+    }
+
+    @Benchmark
+    public void setFrame() throws BluetoothException {
+        int i = mCounter++;
+        for(int chan = 0; chan < CHANNELS; chan++) {
+            mFrame[chan] = value(i + chan);
+        }
+        mClient.setFrame(mFrame);
+    }
+
+    @Benchmark
+    public void fade() throws BluetoothException {
+        int i = mCounter++;
+        mClient.fade(i % CHANNELS, 1000, value(i / CHANNELS));
+    }
+
+    @Benchmark
+    public void postSet() {
+        int i = mCounter++;
+        mClient.postSet(i % CHANNELS, value(i / CHANNELS));
+    }
+
+    private static double value(int i) {
+        return (i & 0xff) / 255.0;
+    }
+}
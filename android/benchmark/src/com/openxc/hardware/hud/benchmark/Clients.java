@@ -0,0 +1,56 @@
+package com.openxc.hardware.hud.benchmark;
+
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.CommandEncoder;
+import com.openxc.hardware.hud.HudClient;
+import com.openxc.hardware.hud.MemoryTransport;
+
+/**
+ * Helpers to set up connected HudClients for the benchmarks.
+ */
+public class Clients {
+    private static final long CONNECT_TIMEOUT = 5000;
+    // Large enough that the pipes never limit a benchmark by themselves
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    /**
+     * A listener that ignores every event.
+     */
+    public static final HudClient.Listener QUIET = new HudClient.Listener() {
+        public void onConnected() { }
+        public void onDisconnected() { }
+        public void onConnectFailed(BluetoothException e) { }
+        public void onDeviceReset() { }
+        public void onUnexpectedResponse(String line) { }
+    };
+
+    private Clients() { }
+
+    /**
+     * Create a client connected to the device through a MemoryTransport,
+     * waiting until the connection is open.
+     */
+    public static HudClient connect(MemoryTransport.Peer device)
+            throws BluetoothException {
+        return connect(device, CommandEncoder.Protocol.BINARY);
+    }
+
+    /**
+     * Create a connected client that prefers the given protocol. The
+     * protocol may still be negotiated after this returns.
+     */
+    public static HudClient connect(MemoryTransport.Peer device,
+            CommandEncoder.Protocol protocol) throws BluetoothException {
+        MemoryTransport transport = new MemoryTransport(device,
+                PIPE_CAPACITY);
+        HudClient client = new HudClient(transport.asFactory(), QUIET);
+        client.setPreferredProtocol(protocol);
+        try {
+            client.requestConnect("memory").get(CONNECT_TIMEOUT);
+        } catch(BluetoothException e) {
+            client.shutdown();
+            throw e;
+        }
+        return client;
+    }
+}
@@ -0,0 +1,78 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.HudClient;
+import com.openxc.hardware.hud.MemoryTransport;
+import com.openxc.hardware.hud.simulator.FirmwareSimulator;
+
+/**
+ * Measures the time from connect() until the first frame has been written to
+ * a simulated HUD - how long the driver adds on top of the Bluetooth page
+ * time before the LEDs light up after an ignition cycle.
+ *
+ * The stand-in adapter waits for pageDelay ms when the transport is opened,
+ * like an RFCOMM connect to a paired device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class ConnectBenchmark {
+    private static final long CONNECT_TIMEOUT = 5000;
+
+    @Param({"0", "100"})
+    public long pageDelay;
+
+    private FirmwareSimulator mSimulator;
+    private HudClient mClient;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        mSimulator = new FirmwareSimulator();
+        mSimulator.start();
+        MemoryTransport transport = new MemoryTransport(
+                new MemoryTransport.Peer() {
+            public void onOpen(InputStream fromHost, OutputStream toHost)
+                    throws BluetoothException {
+                try {
+                    Thread.sleep(pageDelay);
+                } catch(InterruptedException e) {
+                    throw new BluetoothException("Interrupted");
+                }
+                mSimulator.onOpen(fromHost, toHost);
+            }
+        });
+        mClient = new HudClient(transport.asFactory(), Clients.QUIET);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        mClient.shutdown();
+        mSimulator.stop();
+    }
+
+    @Benchmark
+    public void connectToFirstFrame() throws BluetoothException {
+        mClient.requestConnect("memory").get(CONNECT_TIMEOUT);
+        mClient.setAll(1.0);
+    }
+}
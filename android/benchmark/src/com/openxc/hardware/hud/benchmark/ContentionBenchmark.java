@@ -0,0 +1,92 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.HudClient;
+
+/**
+ * Measures several threads sharing one HudClient, which serializes writes on
+ * the client's monitor.
+ *
+ * The "mixed" group models a typical app: producers calling set() while
+ * another thread pings, and a third posts through the non-blocking writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContentionBenchmark {
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+
+    private HudClient mClient;
+
+    @State(Scope.Thread)
+    public static class Counter {
+        int value;
+
+        int next() {
+            return value++;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        mClient = Clients.connect(new LoopbackDevice());
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        mClient.shutdown();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedSet(Counter counter) throws BluetoothException {
+        set(counter);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void mixedSet(Counter counter) throws BluetoothException {
+        set(counter);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean mixedPing() {
+        return mClient.ping();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedPostSet(Counter counter) {
+        int i = counter.next();
+        mClient.postSet(i % CHANNELS, value(i / CHANNELS));
+    }
+
+    private void set(Counter counter) throws BluetoothException {
+        int i = counter.next();
+        mClient.set(i % CHANNELS, value(i / CHANNELS));
+    }
+
+    private static double value(int i) {
+        return (i & 0xff) / 255.0;
+    }
+}
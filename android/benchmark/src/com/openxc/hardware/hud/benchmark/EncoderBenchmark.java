@@ -0,0 +1,65 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.CommandEncoder;
+
+/**
+ * Measures encoding single commands and whole frames, compared to building
+ * the command Strings the way the driver used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncoderBenchmark {
+    private final CommandEncoder mEncoder = new CommandEncoder();
+    private int mCounter;
+
+    @Benchmark
+    public int encodeSet() {
+        int i = mCounter++;
+        mEncoder.reset();
+        mEncoder.appendSet(i % BluetoothHudInterface.CHANNEL_COUNT, i & 0xff);
+        return mEncoder.length();
+    }
+
+    @Benchmark
+    public int encodeFade() {
+        int i = mCounter++;
+        mEncoder.reset();
+        mEncoder.appendFade(i % BluetoothHudInterface.CHANNEL_COUNT,
+                i & 0xffff, i & 0xff);
+        return mEncoder.length();
+    }
+
+    @Benchmark
+    public int encodeFrame() {
+        int i = mCounter++;
+        mEncoder.reset();
+        for(int chan = 0; chan < BluetoothHudInterface.CHANNEL_COUNT;
+                chan++) {
+            mEncoder.appendSet(chan, (i + chan) & 0xff);
+        }
+        return mEncoder.length();
+    }
+
+    /**
+     * The String concatenation and charset encoding the driver used before
+     * the CommandEncoder, as a baseline.
+     */
+    @Benchmark
+    public int concatenateSet() {
+        int i = mCounter++;
+        double value = (i & 0xff) / 255.0;
+        return ("S" + (i % BluetoothHudInterface.CHANNEL_COUNT)
+                + Math.round(value * 255) + "M").getBytes().length;
+    }
+}
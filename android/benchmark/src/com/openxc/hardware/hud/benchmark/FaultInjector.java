@@ -0,0 +1,184 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.MemoryTransport;
+
+/**
+ * The FaultInjector sits between a MemoryTransport and the stand-in device,
+ * and misbehaves the way a flaky Bluetooth link does:
+ *
+ *  dropLink() closes the link from the device's end, so the host's reads
+ *      see the end of the stream and its writes fail
+ *  slow reads make the device stop reading for a while, so the link's
+ *      buffers fill and the host's writes block
+ *  dropped responses throw away whole lines sent back by the device, so
+ *      the host's requests time out
+ *
+ * Faults can be changed while the link is open.
+ */
+public class FaultInjector implements MemoryTransport.Peer {
+    private static final int MAX_LINE_LENGTH = 256;
+
+    private final MemoryTransport.Peer mDevice;
+    private final Random mRandom = new Random();
+    private volatile double mStallChance;
+    private volatile long mStallNanos;
+    private volatile double mDropChance;
+
+    private final AtomicLong mLinkDrops = new AtomicLong();
+    private final AtomicLong mStalls = new AtomicLong();
+    private final AtomicLong mDroppedResponses = new AtomicLong();
+
+    private InputStream mFromHost;
+    private OutputStream mToHost;
+
+    public FaultInjector(MemoryTransport.Peer device) {
+        mDevice = device;
+    }
+
+    /**
+     * @param chance
+     *  The chance that each read by the device stalls, 0-1
+     * @param stall
+     *  How long a stalled read waits before reading, in ms
+     */
+    public void setSlowReads(double chance, long stall) {
+        mStallChance = chance;
+        mStallNanos = TimeUnit.MILLISECONDS.toNanos(stall);
+    }
+
+    /**
+     * @param chance
+     *  The chance that each line sent back by the device is lost, 0-1
+     */
+    public void setDroppedResponses(double chance) {
+        mDropChance = chance;
+    }
+
+    public void onOpen(InputStream fromHost, OutputStream toHost)
+            throws BluetoothException {
+        synchronized(this) {
+            mFromHost = fromHost;
+            mToHost = toHost;
+        }
+        mDevice.onOpen(new StallingInputStream(fromHost),
+                new DroppingOutputStream(toHost));
+    }
+
+    /**
+     * Close the open link from the device's end.
+     *
+     * @return false if the link wasn't open.
+     */
+    public boolean dropLink() {
+        InputStream fromHost;
+        OutputStream toHost;
+        synchronized(this) {
+            fromHost = mFromHost;
+            toHost = mToHost;
+            mFromHost = null;
+            mToHost = null;
+        }
+        if(fromHost == null) {
+            return false;
+        }
+
+        try {
+            fromHost.close();
+            toHost.close();
+        } catch(IOException e) {
+            // The host closed it already
+        }
+        mLinkDrops.incrementAndGet();
+        return true;
+    }
+
+    public long getLinkDropCount() {
+        return mLinkDrops.get();
+    }
+
+    public long getStallCount() {
+        return mStalls.get();
+    }
+
+    public long getDroppedResponseCount() {
+        return mDroppedResponses.get();
+    }
+
+    private boolean chance(double probability) {
+        return probability > 0 && mRandom.nextDouble() < probability;
+    }
+
+    private class StallingInputStream extends FilterInputStream {
+        public StallingInputStream(InputStream stream) {
+            super(stream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            maybeStall();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException {
+            maybeStall();
+            return super.read(buffer, offset, length);
+        }
+
+        private void maybeStall() {
+            if(chance(mStallChance)) {
+                mStalls.incrementAndGet();
+                LockSupport.parkNanos(mStallNanos);
+            }
+        }
+    }
+
+    /**
+     * Holds back each line until it is complete, then sends or drops all
+     * of it, so the host never sees half a response.
+     */
+    private class DroppingOutputStream extends FilterOutputStream {
+        private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+        private int mLength;
+
+        public DroppingOutputStream(OutputStream stream) {
+            super(stream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(mLength < mLine.length) {
+                mLine[mLength++] = (byte) b;
+            }
+            if(b == '\n' || mLength == mLine.length) {
+                if(chance(mDropChance)) {
+                    mDroppedResponses.incrementAndGet();
+                } else {
+                    out.write(mLine, 0, mLength);
+                }
+                mLength = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+                throws IOException {
+            for(int i = 0; i < length; i++) {
+                write(buffer[offset + i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.HudMetrics;
+import com.openxc.hardware.hud.fleet.FleetDevice;
+import com.openxc.hardware.hud.fleet.FleetGroup;
+import com.openxc.hardware.hud.fleet.HudFleet;
+import com.openxc.hardware.hud.simulator.FirmwareSimulator;
+import com.openxc.hardware.hud.simulator.SimulatorFleet;
+
+/**
+ * Measures a HudFleet broadcasting frames to many simulated HUDs over
+ * loopback TCP, from a fixed number of event loop threads.
+ *
+ * Each operation posts a new frame to the whole fleet and waits until every
+ * simulator shows it, so the score is the broadcast latency and its inverse
+ * is the frame rate every device keeps up with. The commands each device
+ * received per second are printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FleetBenchmark {
+    private static final long CONNECT_TIMEOUT = 10 * 1000;
+    private static final long POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int LAST_CHANNEL =
+            BluetoothHudInterface.CHANNEL_COUNT - 1;
+
+    @Param({"1", "8", "32"})
+    public int devices;
+
+    @Param({"1", "2"})
+    public int threads;
+
+    private SimulatorFleet mSimulators;
+    private FirmwareSimulator[] mDevices;
+    private HudFleet mFleet;
+    private FleetGroup mGroup;
+    private final double[] mFrame =
+            new double[BluetoothHudInterface.CHANNEL_COUNT];
+    private int mCount;
+    private long mStartedAt;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        mSimulators = new SimulatorFleet();
+        List<String> addresses = mSimulators.addAll(devices);
+        mDevices = new FirmwareSimulator[devices];
+        for(int i = 0; i < devices; i++) {
+            mDevices[i] = mSimulators.getSimulator(addresses.get(i));
+        }
+
+        mFleet = new HudFleet(mSimulators, threads);
+        for(String address : addresses) {
+            mFleet.add(address);
+        }
+        mGroup = mFleet.all();
+
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        for(FleetDevice device : mGroup.getDevices()) {
+            while(!device.isConnected()) {
+                if(System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Unable to connect to "
+                            + device);
+                }
+                Thread.sleep(10);
+            }
+        }
+        mStartedAt = System.nanoTime();
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        double seconds = (System.nanoTime() - mStartedAt) / 1e9;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        long total = 0;
+        for(FleetDevice device : mGroup.getDevices()) {
+            HudMetrics.Snapshot metrics = device.getMetrics();
+            long commands = metrics.getQueueTime().getCount();
+            min = Math.min(min, commands);
+            max = Math.max(max, commands);
+            total += commands;
+        }
+        System.out.printf("%nCommands per device per second: min %.0f, " +
+                "mean %.0f, max %.0f%n", min / seconds,
+                total / seconds / devices, max / seconds);
+
+        mFleet.shutdown();
+        mSimulators.close();
+    }
+
+    @Benchmark
+    public void broadcastFrame() {
+        // Cycle through 1-255 so every frame changes every LED
+        int value = mCount++ % 255 + 1;
+        for(int i = 0; i < mFrame.length; i++) {
+            mFrame[i] = value / 255.0;
+        }
+        mGroup.postFrame(mFrame);
+
+        for(FirmwareSimulator device : mDevices) {
+            while(device.getLed(LAST_CHANNEL) != value) {
+                LockSupport.parkNanos(POLL_NANOS);
+            }
+        }
+    }
+}
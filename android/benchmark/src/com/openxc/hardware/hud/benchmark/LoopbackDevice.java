@@ -0,0 +1,94 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.openxc.hardware.hud.MemoryTransport;
+
+/**
+ * The LoopbackDevice is the cheapest possible stand-in for a HUD: it answers
+ * each command with the same response as the firmware, as fast as it can and
+ * without modelling the serial link or the LEDs.
+ *
+ * It is used to measure the overhead of the driver itself. Use a
+ * FirmwareSimulator to include the device's limits. It only parses ASCII
+ * commands, so it answers the version query like version 1 firmware and
+ * the client never switches to binary commands.
+ */
+public class LoopbackDevice implements MemoryTransport.Peer {
+    private static final byte[] SET_RESPONSE = ascii("OK\r\n");
+    private static final byte[] PING_RESPONSE = ascii("ACK\r\nERRCO50\r\n");
+    private static final byte[] BATTERY_RESPONSE = ascii("VAL:600\r\n");
+    private static final byte[] VERSION_RESPONSE = ascii("ERRCO56\r\n");
+
+    private volatile long mCommandCount;
+
+    public void onOpen(final InputStream fromHost, final OutputStream toHost) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                serve(fromHost, toHost);
+            }
+        }, "LoopbackDevice");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the number of commands received.
+     */
+    public long getCommandCount() {
+        return mCommandCount;
+    }
+
+    private void serve(InputStream fromHost, OutputStream toHost) {
+        byte[] buffer = new byte[4096];
+        int first = -1;
+        try {
+            int count;
+            while((count = fromHost.read(buffer)) >= 0) {
+                for(int i = 0; i < count; i++) {
+                    int c = buffer[i];
+                    if(c == 'M' || c == '\n' || c == '\r') {
+                        respond(first, toHost);
+                        first = -1;
+                    } else if(first < 0) {
+                        first = c;
+                    }
+                }
+                toHost.flush();
+            }
+        } catch(IOException e) {
+            // The host disconnected
+        }
+    }
+
+    private void respond(int command, OutputStream toHost)
+            throws IOException {
+        mCommandCount++;
+        switch(command) {
+        case 'S':
+            toHost.write(SET_RESPONSE);
+            break;
+        case 'P':
+            toHost.write(PING_RESPONSE);
+            break;
+        case 'B':
+            toHost.write(BATTERY_RESPONSE);
+            break;
+        case 'V':
+            toHost.write(VERSION_RESPONSE);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+}
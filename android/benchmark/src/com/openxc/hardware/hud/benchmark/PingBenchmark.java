@@ -0,0 +1,68 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.HudClient;
+import com.openxc.hardware.hud.MemoryTransport;
+import com.openxc.hardware.hud.simulator.FirmwareSimulator;
+
+/**
+ * Samples ping and battery query round trip latency, reported as
+ * percentiles.
+ *
+ * The "loopback" device measures the driver's own request/response overhead,
+ * and the "simulator" device adds the firmware's 57600 baud serial link and
+ * processing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PingBenchmark {
+    @Param({"loopback", "simulator"})
+    public String device;
+
+    private HudClient mClient;
+    private FirmwareSimulator mSimulator;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        MemoryTransport.Peer peer;
+        if(device.equals("simulator")) {
+            mSimulator = new FirmwareSimulator();
+            peer = mSimulator;
+        } else {
+            peer = new LoopbackDevice();
+        }
+        mClient = Clients.connect(peer);
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        mClient.shutdown();
+        if(mSimulator != null) {
+            mSimulator.stop();
+        }
+    }
+
+    @Benchmark
+    public boolean ping() {
+        return mClient.ping();
+    }
+
+    @Benchmark
+    public int rawBatteryLevel() throws BluetoothException {
+        return mClient.rawBatteryLevel();
+    }
+}
@@ -0,0 +1,86 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.CommandEncoder;
+import com.openxc.hardware.hud.HudClient;
+import com.openxc.hardware.hud.simulator.FirmwareSimulator;
+
+/**
+ * Compares the ASCII and binary command formats over the simulated 57600
+ * baud link, where the bytes per command set the limit.
+ *
+ * Each operation posts a new value for every channel and waits until the
+ * simulator shows it, so the score is the time to get a whole frame across
+ * the link. The LED commands the simulator applied per second are printed
+ * at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProtocolBenchmark {
+    private static final long NEGOTIATE_TIMEOUT = 5000;
+    private static final long POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+
+    @Param({"ASCII", "BINARY"})
+    public CommandEncoder.Protocol protocol;
+
+    private FirmwareSimulator mSimulator;
+    private HudClient mClient;
+    private int mCount;
+    private long mStartedAt;
+    private long mStartCommands;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        mSimulator = new FirmwareSimulator();
+        mClient = Clients.connect(mSimulator, protocol);
+
+        long deadline = System.currentTimeMillis() + NEGOTIATE_TIMEOUT;
+        while(mClient.getProtocol() != protocol) {
+            if(System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Unable to negotiate " +
+                        protocol);
+            }
+            Thread.sleep(10);
+        }
+        mStartedAt = System.nanoTime();
+        mStartCommands = mSimulator.getSetCount();
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        double seconds = (System.nanoTime() - mStartedAt) / 1e9;
+        System.out.printf("%nLED commands per second: %.0f%n",
+                (mSimulator.getSetCount() - mStartCommands) / seconds);
+        mClient.shutdown();
+        mSimulator.stop();
+    }
+
+    @Benchmark
+    public void postFrame() {
+        // Cycle through 1-255 so every frame changes every LED
+        int value = mCount++ % 255 + 1;
+        for(int chan = 0; chan < CHANNELS; chan++) {
+            mClient.postSet(chan, value / 255.0);
+        }
+
+        while(mSimulator.getLed(CHANNELS - 1) != value) {
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package com.openxc.hardware.hud.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.HudClient;
+import com.openxc.hardware.hud.HudMetrics;
+import com.openxc.hardware.hud.LatencyHistogram;
+import com.openxc.hardware.hud.MemoryTransport;
+import com.openxc.hardware.hud.simulator.FirmwareSimulator;
+
+/**
+ * The SoakTest runs producer threads against one HudClient for a while, the
+ * way several parts of an app share the HUD, over a FirmwareSimulator behind
+ * a FaultInjector - to reproduce the stalls seen in the field on an ordinary
+ * JVM.
+ *
+ * Each producer calls set() and fade() back to back on a rotating channel.
+ * Meanwhile the link is dropped from the device's end, the device stalls
+ * while reading and loses some of its responses, and the app disconnects
+ * and reconnects now and then, all at random intervals. The result reports:
+ *
+ *  the throughput and latency of the calls that succeeded, and the latency
+ *      of the calls that failed, since a call that blocks for seconds and
+ *      then fails is a stall too
+ *  how long each kind of thread spent blocked on monitors, from the JVM's
+ *      thread contention monitoring
+ *  any exceptions other than the BluetoothExceptions expected while the link
+ *      is down
+ *  the commands the client wrote that the device never handled, and the
+ *      bytes that never reached it
+ *
+ * Usage: SoakTest [producers] [seconds]
+ */
+public class SoakTest {
+    public static final int DEFAULT_PRODUCERS = 8;
+    public static final long DEFAULT_DURATION = 30 * 1000;
+
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+    private static final long CONNECT_TIMEOUT = 5000;
+    private static final long FADE_DURATION = 100;
+    // Every nth command from a producer is a fade
+    private static final int FADE_INTERVAL = 8;
+    // How long a producer backs off after a failed call, so it doesn't spin
+    // while the link is down
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // How long the device can go without handling a command at the end
+    // before the rest are counted as lost
+    private static final long SETTLE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final String PRODUCER_NAME = "SoakProducer";
+
+    private final FirmwareSimulator mSimulator = new FirmwareSimulator();
+    private final FaultInjector mFaults = new FaultInjector(mSimulator);
+    private final Random mRandom = new Random();
+    private int mProducers = DEFAULT_PRODUCERS;
+    private long mDuration = DEFAULT_DURATION;
+    private long mLinkDropInterval = 2000;
+    private long mRestartInterval = 10 * 1000;
+    private long mKeepaliveIdle = 500;
+
+    private volatile boolean mRunning;
+
+    public SoakTest() {
+        mFaults.setSlowReads(0.01, 100);
+        mFaults.setDroppedResponses(0.01);
+    }
+
+    public void setProducers(int producers) {
+        if(producers <= 0) {
+            throw new IllegalArgumentException("Invalid producer count: "
+                    + producers);
+        }
+        mProducers = producers;
+    }
+
+    /**
+     * @param duration
+     *  How long to run the producers, in ms
+     */
+    public void setDuration(long duration) {
+        mDuration = duration;
+    }
+
+    /**
+     * @param interval
+     *  The mean time between links dropped from the device's end, in ms, or
+     *  0 to never drop the link
+     */
+    public void setLinkDropInterval(long interval) {
+        mLinkDropInterval = interval;
+    }
+
+    /**
+     * @param interval
+     *  The mean time between the app disconnecting and reconnecting, in ms,
+     *  or 0 to stay connected
+     */
+    public void setRestartInterval(long interval) {
+        mRestartInterval = interval;
+    }
+
+    /**
+     * @param idle
+     *  The client's keepalive idle window, in ms - shorter than the default
+     *  so that lost responses are noticed during the run
+     */
+    public void setKeepaliveIdle(long idle) {
+        mKeepaliveIdle = idle;
+    }
+
+    /**
+     * @return
+     *  The link the device sits behind, to change the slow reads and dropped
+     *  responses.
+     */
+    public FaultInjector getFaults() {
+        return mFaults;
+    }
+
+    public Result run() throws BluetoothException {
+        HudClient client = new HudClient(
+                new MemoryTransport(mFaults).asFactory(), Clients.QUIET);
+        client.setKeepaliveIdle(mKeepaliveIdle);
+        try {
+            client.requestConnect("memory").get(CONNECT_TIMEOUT);
+            return run(client);
+        } finally {
+            client.shutdown();
+            mSimulator.stop();
+        }
+    }
+
+    private Result run(HudClient client) throws BluetoothException {
+        Result result = new Result();
+        ContentionSampler contention = new ContentionSampler();
+        long commandsBefore = handledCommands();
+        long bytesBefore = mSimulator.getReceivedBytes();
+
+        mRunning = true;
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < mProducers; i++) {
+            Thread thread = new Thread(new Producer(client, i, result),
+                    PRODUCER_NAME + "-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long startedAt = System.nanoTime();
+        long endAt = startedAt + TimeUnit.MILLISECONDS.toNanos(mDuration);
+        long nextDropAt = nextFaultAt(startedAt, mLinkDropInterval);
+        long nextRestartAt = nextFaultAt(startedAt, mRestartInterval);
+        long now = startedAt;
+        while(now < endAt) {
+            if(now >= nextDropAt) {
+                mFaults.dropLink();
+                nextDropAt = nextFaultAt(now, mLinkDropInterval);
+            }
+            if(now >= nextRestartAt) {
+                restart(client, result);
+                nextRestartAt = nextFaultAt(now, mRestartInterval);
+            }
+            contention.sample();
+            LockSupport.parkNanos(Math.min(SAMPLE_NANOS, endAt - now));
+            now = System.nanoTime();
+        }
+
+        mRunning = false;
+        for(Thread thread : threads) {
+            try {
+                thread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        result.mDurationNanos = System.nanoTime() - startedAt;
+        contention.sample();
+        result.mBlocked = contention.getBlockedTimes();
+        result.mBlockedCounts = contention.getBlockedCounts();
+
+        // Give the device time to work through what is still in the link
+        long handled = handledCommands();
+        long lastProgressAt = System.nanoTime();
+        while(System.nanoTime() - lastProgressAt < SETTLE_NANOS) {
+            LockSupport.parkNanos(SAMPLE_NANOS);
+            long count = handledCommands();
+            if(count != handled) {
+                handled = count;
+                lastProgressAt = System.nanoTime();
+            }
+        }
+
+        HudMetrics.Snapshot metrics = client.getMetrics();
+        result.mMetrics = metrics;
+        result.mWrittenCommands =
+                metrics.getLatency(HudMetrics.Command.SET).getCount()
+                + metrics.getLatency(HudMetrics.Command.FADE).getCount();
+        result.mHandledCommands = handled - commandsBefore;
+        result.mUnreceivedBytes = metrics.getBytesWritten()
+                - (mSimulator.getReceivedBytes() - bytesBefore);
+        result.mDroppedBytes = mSimulator.getDroppedBytes();
+        result.mLinkDrops = mFaults.getLinkDropCount();
+        result.mStalls = mFaults.getStallCount();
+        result.mDroppedResponses = mFaults.getDroppedResponseCount();
+        return result;
+    }
+
+    private long handledCommands() {
+        return mSimulator.getSetCount() + mSimulator.getFadeCount();
+    }
+
+    private long nextFaultAt(long now, long interval) {
+        if(interval <= 0) {
+            return Long.MAX_VALUE;
+        }
+        // Exponentially distributed, so faults land at any point in the
+        // producers' calls
+        double mean = TimeUnit.MILLISECONDS.toNanos(interval);
+        return now + (long) (-Math.log(1 - mRandom.nextDouble()) * mean);
+    }
+
+    private void restart(HudClient client, Result result) {
+        try {
+            client.disconnect();
+            client.connect("memory");
+            result.mRestarts++;
+        } catch(BluetoothException e) {
+            result.recordException(e);
+        } catch(RuntimeException e) {
+            result.recordException(e);
+        }
+    }
+
+    private class Producer implements Runnable {
+        private final HudClient mClient;
+        private final int mId;
+        private final Result mResult;
+
+        public Producer(HudClient client, int id, Result result) {
+            mClient = client;
+            mId = id;
+            mResult = result;
+        }
+
+        public void run() {
+            int i = 0;
+            while(mRunning) {
+                int chan = (mId + i) % CHANNELS;
+                // Cycle through 1-255 so that few calls are suppressed as
+                // repeats of what the LED already shows
+                double value = ((mId * 31 + i) % 255 + 1) / 255.0;
+                long start = System.nanoTime();
+                try {
+                    if(i % FADE_INTERVAL == 0) {
+                        mClient.fade(chan, FADE_DURATION, value);
+                    } else {
+                        mClient.set(chan, value);
+                    }
+                    mResult.mLatency.record(System.nanoTime() - start);
+                } catch(BluetoothException e) {
+                    mResult.mFailedLatency.record(System.nanoTime() - start);
+                    LockSupport.parkNanos(RETRY_NANOS);
+                } catch(RuntimeException e) {
+                    mResult.recordException(e);
+                }
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Tracks how long each thread has spent blocked entering monitors.
+     * The client's reader and keepalive threads are replaced each time the
+     * link is reopened, so they are sampled while the run goes on and the
+     * last sample of each thread is kept.
+     */
+    private static class ContentionSampler {
+        private final ThreadMXBean mThreads =
+                ManagementFactory.getThreadMXBean();
+        private final Map<Long, ThreadInfo> mLastSeen =
+                new HashMap<Long, ThreadInfo>();
+
+        public ContentionSampler() {
+            if(mThreads.isThreadContentionMonitoringSupported()) {
+                mThreads.setThreadContentionMonitoringEnabled(true);
+            }
+        }
+
+        public void sample() {
+            for(ThreadInfo info : mThreads.getThreadInfo(
+                        mThreads.getAllThreadIds())) {
+                if(info != null) {
+                    mLastSeen.put(info.getThreadId(), info);
+                }
+            }
+        }
+
+        /**
+         * @return the ms spent blocked by each kind of thread.
+         */
+        public Map<String, Long> getBlockedTimes() {
+            Map<String, Long> times = new TreeMap<String, Long>();
+            for(ThreadInfo info : mLastSeen.values()) {
+                add(times, info, Math.max(0, info.getBlockedTime()));
+            }
+            return times;
+        }
+
+        /**
+         * @return the number of times each kind of thread was blocked.
+         */
+        public Map<String, Long> getBlockedCounts() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for(ThreadInfo info : mLastSeen.values()) {
+                add(counts, info, info.getBlockedCount());
+            }
+            return counts;
+        }
+
+        private static void add(Map<String, Long> totals, ThreadInfo info,
+                long value) {
+            String name = info.getThreadName();
+            if(!name.startsWith("Hud") && !name.startsWith(PRODUCER_NAME)) {
+                return;
+            }
+            // Group the producers together
+            int dash = name.indexOf('-');
+            if(dash > 0) {
+                name = name.substring(0, dash);
+            }
+            Long total = totals.get(name);
+            totals.put(name, (total == null ? 0 : total) + value);
+        }
+    }
+
+    /**
+     * The outcome of a soak test.
+     */
+    public static class Result {
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final LatencyHistogram mFailedLatency =
+                new LatencyHistogram();
+        private final Map<String, AtomicLong> mExceptions =
+                new ConcurrentHashMap<String, AtomicLong>();
+        private Map<String, Long> mBlocked;
+        private Map<String, Long> mBlockedCounts;
+        private HudMetrics.Snapshot mMetrics;
+        private long mDurationNanos;
+        private long mWrittenCommands;
+        private long mHandledCommands;
+        private long mUnreceivedBytes;
+        private long mDroppedBytes;
+        private long mLinkDrops;
+        private long mStalls;
+        private long mDroppedResponses;
+        private long mRestarts;
+
+        private void recordException(Exception e) {
+            String name = e.getClass().getName();
+            AtomicLong count = mExceptions.get(name);
+            if(count == null) {
+                // Print the first of each kind, for its stack trace
+                e.printStackTrace();
+                mExceptions.putIfAbsent(name, new AtomicLong());
+                count = mExceptions.get(name);
+            }
+            count.incrementAndGet();
+        }
+
+        /**
+         * @return the latency of the set() and fade() calls that succeeded.
+         */
+        public LatencyHistogram.Snapshot getLatency() {
+            return mLatency.snapshot();
+        }
+
+        /**
+         * @return
+         *  The time taken by calls that failed, e.g. because the link was
+         *  down or dropped while they were writing.
+         */
+        public LatencyHistogram.Snapshot getFailedLatency() {
+            return mFailedLatency.snapshot();
+        }
+
+        /**
+         * @return
+         *  The successful calls per second over the run.
+         */
+        public double getCallsPerSecond() {
+            return mDurationNanos == 0 ? 0
+                    : mLatency.snapshot().getCount() * 1e9 / mDurationNanos;
+        }
+
+        /**
+         * @return
+         *  The ms spent blocked on monitors by each kind of thread - the
+         *  producers, and the client's writer, reader and keepalive.
+         */
+        public Map<String, Long> getBlockedTimes() {
+            return mBlocked;
+        }
+
+        /**
+         * @return
+         *  The number of unexpected exceptions of each class, which should
+         *  be empty.
+         */
+        public Map<String, Long> getExceptions() {
+            Map<String, Long> exceptions = new TreeMap<String, Long>();
+            for(Map.Entry<String, AtomicLong> entry : mExceptions.entrySet()) {
+                exceptions.put(entry.getKey(), entry.getValue().get());
+            }
+            return exceptions;
+        }
+
+        /**
+         * @return
+         *  The number of sets and fades the client wrote without an error
+         *  that the device never handled.
+         */
+        public long getLostCommandCount() {
+            return Math.max(0, mWrittenCommands - mHandledCommands);
+        }
+
+        /**
+         * @return
+         *  The number of bytes the client wrote that never reached the
+         *  device's UART, e.g. because they were in the link when it
+         *  dropped.
+         */
+        public long getUnreceivedByteCount() {
+            return mUnreceivedBytes;
+        }
+
+        /**
+         * @return the client's metrics at the end of the run.
+         */
+        public HudMetrics.Snapshot getMetrics() {
+            return mMetrics;
+        }
+
+        @Override
+        public String toString() {
+            LatencyHistogram.Snapshot latency = mLatency.snapshot();
+            LatencyHistogram.Snapshot failed = mFailedLatency.snapshot();
+            return String.format("%d calls in %.1fs: %.0f calls/s%n" +
+                    "latency p50 %.3fms, p99 %.3fms, p999 %.3fms, " +
+                    "max %.3fms%n" +
+                    "%d failed calls, p99 %.3fms, max %.3fms%n" +
+                    "blocked ms: %s%nblocked count: %s%n" +
+                    "unexpected exceptions: %s%n" +
+                    "%d of %d commands lost, %d bytes never received, " +
+                    "%d bytes dropped by the UART%n" +
+                    "faults: %d link drops, %d restarts, %d slow reads, " +
+                    "%d dropped responses%n%s",
+                    latency.getCount(), mDurationNanos / 1e9,
+                    getCallsPerSecond(), millis(latency, 50),
+                    millis(latency, 99), millis(latency, 99.9),
+                    latency.getMax() / 1e6, failed.getCount(),
+                    millis(failed, 99), failed.getMax() / 1e6, mBlocked,
+                    mBlockedCounts, getExceptions(), getLostCommandCount(),
+                    mWrittenCommands, mUnreceivedBytes, mDroppedBytes,
+                    mLinkDrops, mRestarts, mStalls, mDroppedResponses,
+                    mMetrics);
+        }
+
+        private static double millis(LatencyHistogram.Snapshot snapshot,
+                double percentile) {
+            return snapshot.getValueAtPercentile(percentile) / 1e6;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SoakTest test = new SoakTest();
+        if(args.length > 0) {
+            test.setProducers(Integer.parseInt(args[0]));
+        }
+        if(args.length > 1) {
+            test.setDuration(TimeUnit.SECONDS.toMillis(
+                        Long.parseLong(args[1])));
+        }
+        System.out.println(test.run());
+    }
+}
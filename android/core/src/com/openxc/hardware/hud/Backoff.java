@@ -0,0 +1,55 @@
+package com.openxc.hardware.hud;
+
+import java.util.Random;
+
+/**
+ * A Backoff hands out the delays between reconnect attempts.
+ *
+ * The first retry comes quickly, since most drops are brief, and each
+ * failure after that doubles the delay up to a maximum, so a HUD that is out
+ * of range doesn't keep the phone's radio busy. Each delay is jittered
+ * between half and all of its nominal value, so a fleet of clients that lost
+ * their devices at the same time don't retry in lockstep.
+ *
+ * Backoffs are not thread safe.
+ */
+public class Backoff {
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+    private final Random mRandom = new Random();
+    private long mNextDelay;
+
+    /**
+     * @param initialDelay
+     *  The nominal delay before the first retry, in ms
+     * @param maxDelay
+     *  The largest nominal delay, in ms
+     */
+    public Backoff(long initialDelay, long maxDelay) {
+        if(initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid backoff delays: "
+                    + initialDelay + ", " + maxDelay);
+        }
+        mInitialDelay = initialDelay;
+        mMaxDelay = maxDelay;
+        reset();
+    }
+
+    /**
+     * @return the delay before the next attempt, in ms.
+     */
+    public long nextDelay() {
+        long nominal = mNextDelay;
+        mNextDelay = Math.min(mMaxDelay, nominal * 2);
+
+        long half = nominal / 2;
+        return nominal - half + (long) (mRandom.nextDouble() * half);
+    }
+
+    /**
+     * Go back to the initial delay, e.g. once a connection has proven to work.
+     */
+    public void reset() {
+        mNextDelay = mInitialDelay;
+    }
+}
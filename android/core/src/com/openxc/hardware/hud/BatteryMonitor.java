@@ -0,0 +1,262 @@
+package com.openxc.hardware.hud;
+
+/**
+ * The BatteryMonitor keeps a history of the HUD's battery readings, so the
+ * level can be read without a round trip to the device.
+ *
+ * The HudClient's keepalive thread takes a reading whenever one is due,
+ * sending the battery query in place of a ping if the link is idle anyway.
+ * Readings go into a fixed-size ring buffer of primitives and an
+ * exponentially weighted moving average, which smooths out the ADC's noise.
+ *
+ * The raw ADC value is far from linear in the remaining charge: it reads
+ * about 665 when the battery is full and drains down to about 413, but most
+ * of the charge is spent on a plateau in the middle of that range. The
+ * charge is estimated from a typical Li-Ion discharge curve scaled to that
+ * range, and the drain rate is the least squares slope of the estimated
+ * charge over the readings in the history.
+ *
+ * Readings are scheduled and fitted on System.nanoTime(), so that a change
+ * to the wall clock can't make a reading late or skew the drain rate. Each
+ * reading also keeps its System.currentTimeMillis() for the history.
+ */
+public class BatteryMonitor {
+    public static final int DEFAULT_CAPACITY = 64;
+    /**
+     * The default time between readings, in ms.
+     */
+    public static final long DEFAULT_INTERVAL = 60 * 1000;
+    public static final int EMPTY_LEVEL = 413;
+    public static final int FULL_LEVEL = 665;
+
+    // Weight of a new reading in the moving average
+    private static final double SMOOTHING = 0.25;
+    private static final double MILLIS_PER_HOUR = 60 * 60 * 1000;
+    private static final double NANOS_PER_HOUR = MILLIS_PER_HOUR * 1000 * 1000;
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    // A Li-Ion discharge curve in ADC units (about 158.7 per volt), from the
+    // 2.6V cutoff to 4.19V
+    private static final int[] CURVE_LEVELS = {
+        EMPTY_LEVEL, 476, 524, 555, 571, 587, 603, 619, 635, 651, FULL_LEVEL
+    };
+    private static final double[] CURVE_CHARGE = {
+        0, 0.02, 0.05, 0.10, 0.18, 0.35, 0.55, 0.70, 0.82, 0.92, 1
+    };
+
+    private final long[] mTimes;
+    private final long[] mWallTimes;
+    private final int[] mLevels;
+    private int mHead;
+    private int mCount;
+    private double mSmoothed;
+    private long mInterval = DEFAULT_INTERVAL;
+    private long mLastReadingAt;
+
+    public BatteryMonitor() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *  The number of readings to keep
+     */
+    public BatteryMonitor(int capacity) {
+        if(capacity < 2) {
+            throw new IllegalArgumentException("Invalid capacity: " +
+                    capacity);
+        }
+        mTimes = new long[capacity];
+        mWallTimes = new long[capacity];
+        mLevels = new int[capacity];
+    }
+
+    /**
+     * Set how often to read the battery while connected.
+     *
+     * @param interval
+     *  The time between readings in ms, or 0 to stop taking readings
+     */
+    public synchronized void setInterval(long interval) {
+        if(interval < 0) {
+            throw new IllegalArgumentException("Invalid interval: " +
+                    interval);
+        }
+        mInterval = interval;
+    }
+
+    public synchronized long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * @param nowNanos
+     *  The current time, from System.nanoTime()
+     * @return
+     *  The time until the next reading is due in ms (0 if it is overdue), or
+     *  Long.MAX_VALUE if readings are turned off.
+     */
+    public synchronized long getDelayUntilDue(long nowNanos) {
+        if(mInterval == 0) {
+            return Long.MAX_VALUE;
+        }
+        if(mCount == 0) {
+            return 0;
+        }
+        long elapsed = (nowNanos - mLastReadingAt) / NANOS_PER_MILLI;
+        return Math.max(0, mInterval - elapsed);
+    }
+
+    /**
+     * Add a reading to the history.
+     *
+     * @param level
+     *  The raw ADC value
+     * @param timeNanos
+     *  When it was read, from System.nanoTime()
+     * @param wallTime
+     *  When it was read, from System.currentTimeMillis()
+     */
+    public synchronized void record(int level, long timeNanos,
+            long wallTime) {
+        mTimes[mHead] = timeNanos;
+        mWallTimes[mHead] = wallTime;
+        mLevels[mHead] = level;
+        mHead = (mHead + 1) % mLevels.length;
+        if(mCount < mLevels.length) {
+            mCount++;
+        }
+
+        if(mCount == 1) {
+            mSmoothed = level;
+        } else {
+            mSmoothed += SMOOTHING * (level - mSmoothed);
+        }
+        mLastReadingAt = timeNanos;
+    }
+
+    public synchronized boolean hasReading() {
+        return mCount > 0;
+    }
+
+    /**
+     * @return the most recent raw reading, or -1 if there are none.
+     */
+    public synchronized int getLatestLevel() {
+        if(mCount == 0) {
+            return -1;
+        }
+        return mLevels[index(mCount - 1)];
+    }
+
+    /**
+     * @return
+     *  The moving average of the raw readings, or -1 if there are none.
+     */
+    public synchronized double getSmoothedLevel() {
+        return mCount == 0 ? -1 : mSmoothed;
+    }
+
+    /**
+     * @return
+     *  The estimated remaining charge from the smoothed level, between 0.0
+     *  and 1.0, or -1 if there are no readings.
+     */
+    public synchronized double getCharge() {
+        return mCount == 0 ? -1 : charge(mSmoothed);
+    }
+
+    /**
+     * @return
+     *  The estimated fraction of a full charge used per hour - negative if
+     *  the battery is charging, or NaN if the readings don't span any time.
+     */
+    public synchronized double getDrainRate() {
+        if(mCount < 2) {
+            return Double.NaN;
+        }
+
+        // Least squares fit of charge against time, relative to the oldest
+        // reading to keep the sums small
+        long origin = mTimes[index(0)];
+        double sumT = 0;
+        double sumC = 0;
+        double sumTT = 0;
+        double sumTC = 0;
+        for(int i = 0; i < mCount; i++) {
+            int slot = index(i);
+            double t = (mTimes[slot] - origin) / NANOS_PER_HOUR;
+            double c = charge(mLevels[slot]);
+            sumT += t;
+            sumC += c;
+            sumTT += t * t;
+            sumTC += t * c;
+        }
+        double denominator = mCount * sumTT - sumT * sumT;
+        if(denominator <= 0) {
+            return Double.NaN;
+        }
+        return -(mCount * sumTC - sumT * sumC) / denominator;
+    }
+
+    /**
+     * @return
+     *  The estimated time until the battery is empty in ms, or -1 if it
+     *  isn't draining or there aren't enough readings to tell.
+     */
+    public synchronized long getTimeRemaining() {
+        double rate = getDrainRate();
+        if(!(rate > 0)) {
+            return -1;
+        }
+        return (long) (charge(mSmoothed) / rate * MILLIS_PER_HOUR);
+    }
+
+    /**
+     * Copy the history, oldest reading first.
+     *
+     * @param times
+     *  Filled with the time of each reading, from System.currentTimeMillis()
+     * @param levels
+     *  Filled with the raw value of each reading
+     * @return the number of readings copied.
+     */
+    public synchronized int getHistory(long[] times, int[] levels) {
+        int count = Math.min(mCount, Math.min(times.length, levels.length));
+        int skip = mCount - count;
+        for(int i = 0; i < count; i++) {
+            int slot = index(skip + i);
+            times[i] = mWallTimes[slot];
+            levels[i] = mLevels[slot];
+        }
+        return count;
+    }
+
+    /**
+     * Estimate the charge for a raw reading by interpolating the discharge
+     * curve.
+     *
+     * @return the charge between 0.0 and 1.0.
+     */
+    public static double charge(double level) {
+        if(level <= CURVE_LEVELS[0]) {
+            return 0;
+        }
+        for(int i = 1; i < CURVE_LEVELS.length; i++) {
+            if(level < CURVE_LEVELS[i]) {
+                double fraction = (level - CURVE_LEVELS[i - 1])
+                        / (CURVE_LEVELS[i] - CURVE_LEVELS[i - 1]);
+                return CURVE_CHARGE[i - 1]
+                        + fraction * (CURVE_CHARGE[i] - CURVE_CHARGE[i - 1]);
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return the ring buffer slot of the i'th oldest reading.
+     */
+    private int index(int i) {
+        return (mHead - mCount + i + mLevels.length) % mLevels.length;
+    }
+}
@@ -0,0 +1,278 @@
+package com.openxc.hardware.hud;
+
+public interface BluetoothHudInterface {
+    /**
+     * The number of LED channels on the HUD.
+     */
+    public static final int CHANNEL_COUNT = 5;
+
+    /**
+     * A channel mask that selects every LED channel.
+     */
+    public static final int ALL_CHANNELS = (1 << CHANNEL_COUNT) - 1;
+
+    /**
+     * The deadline for a posted command that should be sent however late it
+     * is. System.nanoTime() can return any value, so this is only a marker -
+     * it must be compared for equality, not as a time.
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Queries the remote device, updating it's online status
+     *
+     * @return
+     *  Returns true if the device responds to an RSSI request.
+     */
+    public boolean ping();
+
+    /**
+     * Immediately set an LED channel to a given intensity
+     *
+     * @param chan
+     *  The LED channel to set (currently 0-4 are supported)
+     * @param value
+     *  The intensity to set, given as a double between 0.0 and 1.0
+     *  No guarantee of reception.
+     */
+    public void set(int chan, double value) throws BluetoothException;
+
+    /**
+     * Immediately set all LED channels to a given intensity
+     *
+     * @param value
+     *  The intensity to set, given as a double between 0.0 and 1.0
+     * @return
+     *  Returns true if device was connected
+     *  No guarantee of reception.
+     */
+    public void setAll(double value) throws BluetoothException;
+
+    /**
+     * Immediately set every LED channel in a single write
+     *
+     * @param values
+     *  The intensity for each channel, indexed by channel number, given as
+     *  doubles between 0.0 and 1.0. Must have CHANNEL_COUNT elements.
+     *  No guarantee of reception.
+     */
+    public void setFrame(double[] values) throws BluetoothException;
+
+    /**
+     * Immediately set a group of LED channels in a single write
+     *
+     * @param channelMask
+     *  A bit mask of the channels to update - bit n selects channel n
+     * @param values
+     *  The intensity for each channel, indexed by channel number, given as
+     *  doubles between 0.0 and 1.0. Must have CHANNEL_COUNT elements;
+     *  channels not in the mask are ignored.
+     *  No guarantee of reception.
+     * @throws IllegalArgumentException
+     *  If values has fewer than CHANNEL_COUNT elements.
+     */
+    public void setFrame(int channelMask, double[] values)
+            throws BluetoothException;
+
+    /**
+     * Will read the current battery level of the device
+     *
+     * @return
+     *  Returns the raw voltage ADC value, ranging from 0-1023
+     *  More testing is needed, but rawBatteryLevel()/158.7 is
+     *  approximately the current battery voltage.
+     */
+    public int rawBatteryLevel() throws BluetoothException;
+
+    /**
+     * Request the current battery level without waiting for the response
+     *
+     * @return
+     *  A future that completes with the raw voltage ADC value when the device
+     *  responds.
+     */
+    public ResponseFuture requestRawBatteryLevel() throws BluetoothException;
+
+    /**
+     * Ping the device without waiting for the response
+     *
+     * @return
+     *  A future that completes when the device acknowledges the ping.
+     */
+    public ResponseFuture requestPing() throws BluetoothException;
+
+    /**
+     * Fade an LED channel to a given intensity
+     * This will fade from the current channel intensity to
+     * the specified destination intensity
+     *
+     * @param chan
+     *  The LED channel to set (currently 0-4 are supported)
+     * @param duration
+     *  The fade duration, in ms
+     * @param value
+     *  The intensity to set, given as a double between 0.0 and 1.0
+     * @return
+     *  Returns true if device was connected
+     *  No guarantee of reception.
+     */
+    public void fade(int chan, long duration, double value)
+            throws BluetoothException;
+
+    /**
+     * Queue a new intensity for an LED channel without blocking
+     *
+     * The command is sent from a background writer thread. If the channel is
+     * updated again before the writer sends it, only the newest value is
+     * sent. A set(), setFrame(), fade() or uploadSequence() for the channel
+     * drops any posted command that hasn't been sent yet, in every priority
+     * lane, so a posted command never overwrites a later direct one.
+     *
+     * @param chan
+     *  The LED channel to set (currently 0-4 are supported)
+     * @param value
+     *  The intensity to set, given as a double between 0.0 and 1.0
+     *  No guarantee of reception.
+     */
+    public void postSet(int chan, double value);
+
+    /**
+     * Queue a fade for an LED channel without blocking
+     *
+     * Like postSet(), this replaces any command for the channel that hasn't
+     * been sent yet.
+     *
+     * @param chan
+     *  The LED channel to set (currently 0-4 are supported)
+     * @param duration
+     *  The fade duration, in ms
+     * @param value
+     *  The intensity to set, given as a double between 0.0 and 1.0
+     *  No guarantee of reception.
+     */
+    public void postFade(int chan, long duration, double value);
+
+    /**
+     * Queue a fade for an LED channel that should start at a given time,
+     * without blocking
+     *
+     * The firmware starts a fade when the command arrives, so the duration
+     * is adjusted by how early or late the command is expected to arrive,
+     * and the fade still ends on time. Posting a little ahead of the start
+     * time, by the expected link delay, lets it start on time too.
+     *
+     * @param chan
+     *  The LED channel to set (currently 0-4 are supported)
+     * @param startNanos
+     *  When the fade should start, from System.nanoTime()
+     * @param duration
+     *  The fade duration, in ms
+     * @param value
+     *  The intensity to set, given as a double between 0.0 and 1.0
+     *  No guarantee of reception.
+     */
+    public void postFade(int chan, long startNanos, long duration,
+            double value);
+
+    /**
+     * Queue a SET for an LED channel in a priority lane without blocking
+     *
+     * Pending ALERT commands are sent ahead of everything else, without
+     * waiting for the link's backlog to drain - use them for warnings that
+     * can't wait behind animations. A command still pending at its deadline
+     * is dropped and counted as a deadline miss.
+     *
+     * @param chan
+     *  The LED channel to set (currently 0-4 are supported)
+     * @param value
+     *  The intensity to set, given as a double between 0.0 and 1.0
+     * @param priority
+     *  The lane to send the command in
+     * @param deadlineNanos
+     *  The System.nanoTime() after which the command isn't worth sending,
+     *  or NO_DEADLINE
+     *  No guarantee of reception.
+     */
+    public void postSet(int chan, double value, Priority priority,
+            long deadlineNanos);
+
+    /**
+     * Queue a fade for an LED channel in a priority lane without blocking
+     *
+     * Like postSet() with a priority, and like postFade() with a start time.
+     *
+     * @param chan
+     *  The LED channel to set (currently 0-4 are supported)
+     * @param startNanos
+     *  When the fade should start, from System.nanoTime()
+     * @param duration
+     *  The fade duration, in ms
+     * @param value
+     *  The intensity to set, given as a double between 0.0 and 1.0
+     * @param priority
+     *  The lane to send the command in
+     * @param deadlineNanos
+     *  The System.nanoTime() after which the command isn't worth sending,
+     *  or NO_DEADLINE
+     *  No guarantee of reception.
+     */
+    public void postFade(int chan, long startNanos, long duration,
+            double value, Priority priority, long deadlineNanos);
+
+    /**
+     * Queue SETs for a group of LED channels in a priority lane without
+     * blocking
+     *
+     * Like postSet() with a priority for each channel in the mask, but the
+     * writer is only woken once, so the channels go out together in one
+     * batch.
+     *
+     * @param channelMask
+     *  A bit mask of the channels to update - bit n selects channel n
+     * @param values
+     *  The intensity for each channel, indexed by channel number, given as
+     *  doubles between 0.0 and 1.0. Channels not in the mask are ignored.
+     * @param priority
+     *  The lane to send the commands in
+     * @param deadlineNanos
+     *  The System.nanoTime() after which the commands aren't worth sending,
+     *  or NO_DEADLINE
+     *  No guarantee of reception.
+     */
+    public void postFrame(int channelMask, double[] values,
+            Priority priority, long deadlineNanos);
+
+    /**
+     * Upload a sequence of fades for an LED channel, which the device then
+     * plays by itself without any more traffic from the phone
+     *
+     * The sequence starts from whatever the channel is showing. Any later
+     * command for the channel stops it.
+     *
+     * @param chan
+     *  The LED channel to play the sequence on (currently 0-4 are supported)
+     * @throws BluetoothException
+     *  If the device doesn't respond, or its firmware doesn't support
+     *  sequences.
+     */
+    public void uploadSequence(int chan, Sequence sequence)
+            throws BluetoothException;
+
+    /**
+     * Disconnect the bluetooth device.
+     * In order to re-establish a connection, connect() must be called.
+     */
+    public void disconnect() throws BluetoothException;
+
+    public void connect(String targetAddress) throws BluetoothException;
+
+    /**
+     * Start connecting to the device without waiting for the link
+     *
+     * @return
+     *  A future that completes when the link is open. It fails if
+     *  disconnect() is called before then.
+     */
+    public ResponseFuture requestConnect(String targetAddress)
+            throws BluetoothException;
+}
@@ -0,0 +1,515 @@
+package com.openxc.hardware.hud;
+
+import java.util.Arrays;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The CoalescingWriter sends LED commands to the HUD from its own thread.
+ *
+ * Producers post the latest target for a channel and return immediately -
+ * they never block on the socket. Each channel has a single pending slot in
+ * each priority lane, so if a channel is updated again before the writer
+ * thread gets to it, only the newest command is sent. Every command that is
+ * pending when the writer wakes up is encoded into one batch and written
+ * with a single write - the ALERT lane first, then NORMAL, then AMBIENT -
+ * with each lane's SETs combined into one frame.
+ *
+ * Batches are paced by a LinkBudget: while the link still has a backlog to
+ * drain, the writer waits and lets newer commands replace the pending ones,
+ * rather than queueing stale commands in the Bluetooth stack. This keeps the
+ * delay between posting a command and the LED changing bounded, no matter how
+ * fast producers post.
+ *
+ * ALERT commands don't wait for the budget: while lower lanes are held back,
+ * pending alerts are still written as soon as they are posted, and AMBIENT
+ * commands are held back at a smaller backlog than NORMAL ones (see
+ * LinkBudget). An alert only ever waits for the backlog the budget allows
+ * plus any write already in progress. A command that was posted before a
+ * higher priority command for the same channel was sent is dropped, so a
+ * stale animation step can't overwrite an alert. A command can also carry a
+ * deadline, and is dropped (and counted as a deadline miss) if it hasn't been
+ * sent by then.
+ *
+ * Commands that wouldn't change the LEDs according to the ShadowState are
+ * dropped when the batch is encoded.
+ *
+ * The firmware starts a fade when the command arrives, so with a
+ * LinkDelayEstimator set, each fade's duration is adjusted by how late (or
+ * early) it is expected to arrive compared to when it was meant to start -
+ * the time it was posted, unless the producer gave a start time. Fades
+ * posted together then end together, however long they queued and wherever
+ * they fall in the batch.
+ *
+ * Pending commands are packed into a long so the slots can live in an
+ * AtomicLongArray and posting doesn't allocate. A command's post time,
+ * start time and deadline are stored next to it, so each slot has a
+ * sequence number that is odd while a producer (or the writer taking the
+ * command) is updating it, which keeps the command and its times together.
+ *
+ * The time each command spent queued, and the number of commands replaced
+ * or dropped before they were sent, are recorded in the HudMetrics.
+ *
+ * A writer normally runs on its own thread, but it can also be driven from
+ * an event loop that calls flush() when the budget allows - the HudFleet
+ * does this for many devices on a few threads.
+ */
+public class CoalescingWriter implements Runnable {
+    private static final long EMPTY = -1;
+    private static final long FADE_FLAG = 1L << 62;
+    private static final int DURATION_SHIFT = 8;
+    private static final long MAX_DURATION = (1L << 40) - 1;
+    private static final long MAX_VALUE = 255;
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+    private static final Priority[] LANES = Priority.values();
+    // Room for a command in every lane for every channel
+    private static final int BATCH_CAPACITY = 128 * LANES.length;
+
+    private final CommandSink mSink;
+    private final LinkBudget mBudget;
+    private final ShadowState mShadowState;
+    private final Object mLock;
+    private final HudMetrics mMetrics;
+    private final CommandEncoder mEncoder = new CommandEncoder(BATCH_CAPACITY);
+    private final int[] mWrittenSlots = new int[CHANNELS * LANES.length];
+    private final long[] mWrittenPostedAt = new long[CHANNELS * LANES.length];
+    private final long[] mFrame = new long[CHANNELS];
+    // The lane and post time of the last command written for each channel
+    private final int[] mSentLane = new int[CHANNELS];
+    private final long[] mSentPostedAt = new long[CHANNELS];
+    // Indexed by slot, lane * CHANNELS + channel. The times are only read
+    // or written while holding the slot's sequence number.
+    private final AtomicLongArray mPending;
+    private final AtomicIntegerArray mSequence;
+    private final long[] mPostedAt;
+    private final long[] mLatestAt;
+    private final long[] mStartAt;
+    private final long[] mDeadline;
+    private volatile LinkDelayEstimator mDelayEstimator;
+    private volatile DesiredState mDesiredState;
+    private volatile boolean mRunning;
+    private volatile Thread mThread;
+
+    /**
+     * @param budget
+     *  The budget for the link the sink writes to - the sink is responsible
+     *  for recording its writes in the budget.
+     * @param shadowState
+     *  The model of the device's LEDs, shared with anything else that writes
+     *  to the sink
+     * @param lock
+     *  The lock that guards the shadow state and the sink
+     */
+    public CoalescingWriter(CommandSink sink, LinkBudget budget,
+            ShadowState shadowState, Object lock, HudMetrics metrics) {
+        mSink = sink;
+        mBudget = budget;
+        mShadowState = shadowState;
+        mLock = lock;
+        mMetrics = metrics;
+        int slots = CHANNELS * LANES.length;
+        mPending = new AtomicLongArray(slots);
+        mSequence = new AtomicIntegerArray(slots);
+        mPostedAt = new long[slots];
+        mLatestAt = new long[slots];
+        mStartAt = new long[slots];
+        mDeadline = new long[slots];
+        for(int i = 0; i < slots; i++) {
+            mPending.set(i, EMPTY);
+        }
+        Arrays.fill(mSentLane, LANES.length);
+        mRunning = true;
+    }
+
+    /**
+     * Replace any pending NORMAL command for the channel with a SET.
+     *
+     * @param value
+     *  The intensity as a 0-255 value; values outside of that range are
+     *  clamped.
+     */
+    public void postSet(int chan, long value) {
+        postSet(chan, value, Priority.NORMAL,
+                BluetoothHudInterface.NO_DEADLINE);
+    }
+
+    /**
+     * Replace any pending command for the channel in the priority's lane
+     * with a SET.
+     *
+     * @param deadlineNanos
+     *  The System.nanoTime() after which the command is dropped rather than
+     *  sent, or NO_DEADLINE
+     */
+    public void postSet(int chan, long value, Priority priority,
+            long deadlineNanos) {
+        post(chan, priority, clamp(value, MAX_VALUE), System.nanoTime(),
+                deadlineNanos);
+    }
+
+    /**
+     * Replace any pending commands in the priority's lane for the channels
+     * in the mask with SETs, waking the writer once for all of them.
+     *
+     * @param values
+     *  The intensity for each channel, indexed by channel number, given as
+     *  doubles between 0.0 and 1.0
+     */
+    public void postFrame(int channelMask, double[] values,
+            Priority priority, long deadlineNanos) {
+        long now = System.nanoTime();
+        for(int chan = 0; chan < CHANNELS; chan++) {
+            if((channelMask & (1 << chan)) != 0) {
+                enqueue(chan, priority, clamp(
+                            CommandEncoder.intensity(values[chan]), MAX_VALUE),
+                        now, deadlineNanos);
+            }
+        }
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Replace any pending NORMAL command for the channel with a FADE.
+     *
+     * @param value
+     *  The intensity as a 0-255 value; values outside of that range are
+     *  clamped.
+     */
+    public void postFade(int chan, long duration, long value) {
+        postFade(chan, System.nanoTime(), duration, value);
+    }
+
+    /**
+     * Replace any pending NORMAL command for the channel with a FADE that
+     * should start at the given time, e.g. one posted ahead of time by the
+     * Animator.
+     *
+     * @param startNanos
+     *  When the fade should start, from System.nanoTime()
+     */
+    public void postFade(int chan, long startNanos, long duration,
+            long value) {
+        postFade(chan, startNanos, duration, value, Priority.NORMAL,
+                BluetoothHudInterface.NO_DEADLINE);
+    }
+
+    /**
+     * Replace any pending command for the channel in the priority's lane
+     * with a FADE that should start at the given time.
+     *
+     * @param deadlineNanos
+     *  The System.nanoTime() after which the command is dropped rather than
+     *  sent, or NO_DEADLINE
+     */
+    public void postFade(int chan, long startNanos, long duration,
+            long value, Priority priority, long deadlineNanos) {
+        post(chan, priority, FADE_FLAG
+                | (clamp(duration, MAX_DURATION) << DURATION_SHIFT)
+                | clamp(value, MAX_VALUE), startNanos, deadlineNanos);
+    }
+
+    /**
+     * Drop any commands still pending for the channels in the mask, in every
+     * lane - e.g. because a command sent straight to the device has replaced
+     * them. To keep them from being sent afterwards, this must be called
+     * with the lock that guards the sink held, so a flush can't be halfway
+     * through taking them.
+     */
+    public void discard(int channelMask) {
+        for(int lane = 0; lane < LANES.length; lane++) {
+            for(int chan = 0; chan < CHANNELS; chan++) {
+                if((channelMask & (1 << chan)) == 0) {
+                    continue;
+                }
+                int slot = lane * CHANNELS + chan;
+                if(mPending.get(slot) == EMPTY) {
+                    continue;
+                }
+                int sequence = lockSlot(slot);
+                long command = mPending.getAndSet(slot, EMPTY);
+                unlockSlot(slot, sequence);
+                if(command != EMPTY) {
+                    mMetrics.recordSuperseded();
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the command format for the batches, once the device's firmware
+     * version is known.
+     */
+    public void setProtocol(CommandEncoder.Protocol protocol) {
+        synchronized(mLock) {
+            mEncoder.setProtocol(protocol);
+        }
+    }
+
+    /**
+     * Adjust fade durations for the link delay, or stop adjusting them.
+     *
+     * @param estimator
+     *  The estimate for the link the sink writes to, or null to send fades
+     *  as they were posted
+     */
+    public void setLinkDelayEstimator(LinkDelayEstimator estimator) {
+        mDelayEstimator = estimator;
+    }
+
+    /**
+     * Remember the value of each command taken from the lanes, even if the
+     * write fails, so it can be restored after the link drops.
+     *
+     * @param desired
+     *  The state to update, guarded by the same lock as the shadow state, or
+     *  null to stop updating it
+     */
+    public void setDesiredState(DesiredState desired) {
+        mDesiredState = desired;
+    }
+
+    public void stop() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+    }
+
+    public void run() {
+        mThread = Thread.currentThread();
+        while(mRunning) {
+            // Find the lowest lane the budget lets through - alerts always
+            // go, and each lane after that needs a smaller backlog
+            long now = System.nanoTime();
+            Priority lowest = Priority.ALERT;
+            long delay = 0;
+            for(int lane = 1; lane < LANES.length; lane++) {
+                delay = mBudget.delayNanos(now, LANES[lane]);
+                if(delay > 0) {
+                    break;
+                }
+                lowest = LANES[lane];
+            }
+
+            if(flush(lowest)) {
+                continue;
+            }
+            if(delay > 0 && hasPendingBelow(lowest)) {
+                LockSupport.parkNanos(this, delay);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * @return true if any channel has a command waiting to be sent.
+     */
+    public boolean hasPending() {
+        for(int slot = 0; slot < mPending.length(); slot++) {
+            if(mPending.get(slot) != EMPTY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if any channel has a command waiting in the lane.
+     */
+    public boolean hasPending(Priority priority) {
+        int first = priority.ordinal() * CHANNELS;
+        for(int slot = first; slot < first + CHANNELS; slot++) {
+            if(mPending.get(slot) != EMPTY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasPendingBelow(Priority priority) {
+        for(int lane = priority.ordinal() + 1; lane < LANES.length; lane++) {
+            if(hasPending(LANES[lane])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encode every pending command into one batch and write it to the sink.
+     * This ignores the link budget - run() only calls it once the budget
+     * allows another batch.
+     *
+     * @return true if anything was pending.
+     */
+    public boolean flush() {
+        return flush(Priority.AMBIENT);
+    }
+
+    /**
+     * Encode the pending commands in the lanes down to the given priority
+     * into one batch, highest priority first, and write it to the sink.
+     *
+     * @param lowest
+     *  The lowest priority lane to send
+     * @return true if anything was pending in those lanes.
+     */
+    public boolean flush(Priority lowest) {
+        boolean pending = false;
+        int written = 0;
+        synchronized(mLock) {
+            long now = ShadowState.currentTime();
+            long writeAt = System.nanoTime();
+            LinkDelayEstimator estimator = mDelayEstimator;
+            DesiredState desired = mDesiredState;
+            for(int lane = 0; lane <= lowest.ordinal(); lane++) {
+                int frameMask = 0;
+                for(int chan = 0; chan < CHANNELS; chan++) {
+                    int slot = lane * CHANNELS + chan;
+                    if(mPending.get(slot) == EMPTY) {
+                        continue;
+                    }
+                    int sequence = lockSlot(slot);
+                    long command = mPending.getAndSet(slot, EMPTY);
+                    long postedAt = mPostedAt[slot];
+                    long latestAt = mLatestAt[slot];
+                    long startAt = mStartAt[slot];
+                    long deadline = mDeadline[slot];
+                    unlockSlot(slot, sequence);
+                    if(command == EMPTY) {
+                        continue;
+                    }
+                    pending = true;
+
+                    if(mSentLane[chan] < lane
+                            && latestAt - mSentPostedAt[chan] < 0) {
+                        // A higher priority command for the channel has
+                        // gone out since this one was posted
+                        mMetrics.recordSuperseded();
+                        continue;
+                    }
+                    if(deadline != BluetoothHudInterface.NO_DEADLINE
+                            && writeAt - deadline > 0) {
+                        mMetrics.recordDeadlineMissed();
+                        continue;
+                    }
+
+                    long value = command & MAX_VALUE;
+                    if(desired != null) {
+                        desired.set(chan, value);
+                    }
+                    boolean changed;
+                    if((command & FADE_FLAG) != 0) {
+                        long duration =
+                                (command & ~FADE_FLAG) >>> DURATION_SHIFT;
+                        if(estimator != null) {
+                            // Each lane's fades go ahead of its frame, so
+                            // this is where the command ends up in the batch
+                            int end = mEncoder.length() + mEncoder.fadeLength(
+                                    chan, duration, value);
+                            duration = estimator.compensate(duration,
+                                    startAt, writeAt, end);
+                        }
+                        changed = mShadowState.fade(chan, duration, value,
+                                now);
+                        if(changed) {
+                            mEncoder.appendFade(chan, duration, value);
+                        }
+                    } else {
+                        changed = mShadowState.set(chan, value, now);
+                        if(changed) {
+                            mFrame[chan] = value;
+                            frameMask |= 1 << chan;
+                        }
+                    }
+
+                    mSentLane[chan] = lane;
+                    mSentPostedAt[chan] = latestAt;
+                    if(changed) {
+                        mWrittenSlots[written] = slot;
+                        mWrittenPostedAt[written++] = postedAt;
+                    } else {
+                        mMetrics.recordSuppressed();
+                    }
+                }
+
+                if(frameMask != 0) {
+                    mEncoder.appendFrame(frameMask, mFrame);
+                }
+            }
+
+            if(!mEncoder.isEmpty()) {
+                try {
+                    mSink.write(mEncoder);
+                    long writtenAt = System.nanoTime();
+                    for(int i = 0; i < written; i++) {
+                        mMetrics.recordQueued(
+                                LANES[mWrittenSlots[i] / CHANNELS],
+                                mWrittenPostedAt[i], writtenAt);
+                    }
+                } catch(BluetoothException e) {
+                    // The sink has already reported the failure, and the next
+                    // update for each channel will supersede these anyway
+                }
+                mEncoder.reset();
+            }
+        }
+        return pending;
+    }
+
+    private void post(int chan, Priority priority, long command,
+            long startNanos, long deadlineNanos) {
+        enqueue(chan, priority, command, startNanos, deadlineNanos);
+        LockSupport.unpark(mThread);
+    }
+
+    private void enqueue(int chan, Priority priority, long command,
+            long startNanos, long deadlineNanos) {
+        if(chan < 0 || chan >= CHANNELS) {
+            throw new IllegalArgumentException("Invalid channel: " + chan);
+        }
+        int slot = priority.ordinal() * CHANNELS + chan;
+        long now = System.nanoTime();
+        int sequence = lockSlot(slot);
+        // Stamp the slot when it goes from empty to pending, so the queue
+        // time covers the oldest command that this one replaces
+        boolean replaced = mPending.getAndSet(slot, command) != EMPTY;
+        if(!replaced) {
+            mPostedAt[slot] = now;
+        }
+        mLatestAt[slot] = now;
+        mStartAt[slot] = startNanos;
+        mDeadline[slot] = deadlineNanos;
+        unlockSlot(slot, sequence);
+        if(replaced) {
+            mMetrics.recordSuperseded();
+        }
+    }
+
+    /**
+     * Wait for the slot's sequence number to be even, and make it odd.
+     * Whoever holds a slot only does a few stores, so this spins rather than
+     * parking.
+     *
+     * @return the sequence number to pass to unlockSlot().
+     */
+    private int lockSlot(int slot) {
+        while(true) {
+            int sequence = mSequence.get(slot);
+            if((sequence & 1) == 0
+                    && mSequence.compareAndSet(slot, sequence, sequence + 1)) {
+                return sequence;
+            }
+            Thread.yield();
+        }
+    }
+
+    private void unlockSlot(int slot, int sequence) {
+        mSequence.set(slot, sequence + 2);
+    }
+
+    private static long clamp(long value, long max) {
+        return Math.max(0, Math.min(max, value));
+    }
+}
@@ -0,0 +1,334 @@
+package com.openxc.hardware.hud;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The CommandEncoder writes HUD commands into a reusable byte buffer.
+ *
+ * Commands use the same ASCII protocol as the firmware expects (e.g.
+ * "S2255M" or "F12000,255M"), but digits are written directly as bytes so
+ * that encoding a command doesn't allocate any Strings or run a charset
+ * encoder. Several commands can be appended before the buffer is written out,
+ * and the encoder is reset after each write so it can be used again.
+ *
+ * Firmware that reports protocol version 2 or later also accepts binary
+ * SET, FADE and FRAME commands, which are a fraction of the size - a SET is
+ * 4 bytes rather than up to 6, a FADE 6 rather than up to 11, and a frame
+ * of all 5 channels 9 rather than up to 30. Each one is framed as:
+ *
+ *  0xA5, opcode | channel, payload..., checksum
+ *
+ * where the checksum makes the opcode, payload and checksum add up to 0
+ * (mod 256). In the BINARY protocol, commands whose values don't fit the
+ * binary fields (fades longer than 65535ms, or values outside of 0-255)
+ * are still sent as ASCII, which the firmware accepts either way. Queries
+ * and sequences are always ASCII.
+ *
+ * This class is not thread safe - callers must synchronize around the encode
+ * and write steps.
+ */
+public class CommandEncoder {
+    /**
+     * The command formats the encoder can write.
+     */
+    public enum Protocol {
+        /** Text commands, understood by every firmware version. */
+        ASCII,
+        /** Binary commands where they fit, for protocol version 2 and up. */
+        BINARY
+    }
+
+    /**
+     * The first protocol version whose firmware accepts binary commands.
+     * Firmware without the version query speaks version 1.
+     */
+    public static final int BINARY_VERSION = 2;
+
+    /**
+     * The longest fade a binary FADE can carry, in ms.
+     */
+    public static final long MAX_BINARY_DURATION = 0xffff;
+
+    static final int FRAME_START = 0xa5;
+    static final int OP_SET = 0x10;
+    static final int OP_FADE = 0x20;
+    static final int OP_FRAME = 0x30;
+
+    private static final int DEFAULT_CAPACITY = 128;
+    private static final int MAX_BINARY_VALUE = 0xff;
+    private static final int MAX_BINARY_CHANNEL = 0x0f;
+    // Enough room for the digits of Long.MIN_VALUE
+    private static final int MAX_LONG_DIGITS = 20;
+
+    private final byte[] mBuffer;
+    private final byte[] mDigits = new byte[MAX_LONG_DIGITS];
+    private int mLength;
+    private int mChecksum;
+    private Protocol mProtocol = Protocol.ASCII;
+
+    public CommandEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public CommandEncoder(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Convert an intensity between 0.0 and 1.0 to the 0-255 value the
+     * firmware expects.
+     */
+    public static long intensity(double value) {
+        return Math.round(value * 255);
+    }
+
+    public void setProtocol(Protocol protocol) {
+        mProtocol = protocol;
+    }
+
+    public Protocol getProtocol() {
+        return mProtocol;
+    }
+
+    /**
+     * Append a SET command, e.g. "S2255M".
+     */
+    public CommandEncoder appendSet(int chan, long value) {
+        if(isBinary(chan) && fitsByte(value)) {
+            beginFrame(OP_SET | chan);
+            appendFrameByte((int) value);
+            endFrame();
+            return this;
+        }
+
+        appendByte('S');
+        appendNumber(chan);
+        appendNumber(value);
+        appendByte('M');
+        return this;
+    }
+
+    /**
+     * Append a FADE command, e.g. "F12000,255M".
+     */
+    public CommandEncoder appendFade(int chan, long duration, long value) {
+        if(isBinaryFade(chan, duration, value)) {
+            beginFrame(OP_FADE | chan);
+            appendFrameByte((int) (duration >> 8));
+            appendFrameByte((int) duration);
+            appendFrameByte((int) value);
+            endFrame();
+            return this;
+        }
+
+        appendByte('F');
+        appendNumber(chan);
+        appendNumber(duration);
+        appendByte(',');
+        appendNumber(value);
+        appendByte('M');
+        return this;
+    }
+
+    /**
+     * @return
+     *  The number of bytes appendFade() would append for the command, without
+     *  appending it.
+     */
+    public int fadeLength(int chan, long duration, long value) {
+        if(isBinaryFade(chan, duration, value)) {
+            // Start byte, opcode, two duration bytes, value and checksum
+            return 6;
+        }
+        return 3 + numberLength(chan) + numberLength(duration)
+                + numberLength(value);
+    }
+
+    /**
+     * Append SETs for the channels in the mask - in the BINARY protocol,
+     * that is a single FRAME command if more than one channel is set.
+     *
+     * @param values
+     *  The value for each channel, indexed by channel number
+     */
+    public CommandEncoder appendFrame(int channelMask, long[] values) {
+        int count = Integer.bitCount(channelMask);
+        boolean binary = mProtocol == Protocol.BINARY && count > 1
+                && (channelMask & ~MAX_BINARY_VALUE) == 0;
+        for(int chan = 0; binary && chan < values.length; chan++) {
+            if((channelMask & (1 << chan)) != 0 && !fitsByte(values[chan])) {
+                binary = false;
+            }
+        }
+
+        if(!binary) {
+            for(int chan = 0; chan < values.length; chan++) {
+                if((channelMask & (1 << chan)) != 0) {
+                    appendSet(chan, values[chan]);
+                }
+            }
+            return this;
+        }
+
+        beginFrame(OP_FRAME);
+        appendFrameByte(channelMask);
+        for(int chan = 0; chan < values.length; chan++) {
+            if((channelMask & (1 << chan)) != 0) {
+                appendFrameByte((int) values[chan]);
+            }
+        }
+        endFrame();
+        return this;
+    }
+
+    /**
+     * Append a SEQUENCE command, e.g. "Q20,500,255,500,0M".
+     */
+    public CommandEncoder appendSequence(int chan, Sequence sequence) {
+        appendByte('Q');
+        appendNumber(chan);
+        appendNumber(sequence.getLoopCount());
+        for(int i = 0; i < sequence.getStepCount(); i++) {
+            appendByte(',');
+            appendNumber(sequence.getDuration(i));
+            appendByte(',');
+            appendNumber(sequence.getValue(i));
+        }
+        appendByte('M');
+        return this;
+    }
+
+    /**
+     * Append a PING command, "PM".
+     */
+    public CommandEncoder appendPing() {
+        appendByte('P');
+        appendByte('M');
+        return this;
+    }
+
+    /**
+     * Append a BATTERY command, "BM".
+     */
+    public CommandEncoder appendBatteryQuery() {
+        appendByte('B');
+        appendByte('M');
+        return this;
+    }
+
+    /**
+     * Append a VERSION command, "VM".
+     */
+    public CommandEncoder appendVersionQuery() {
+        appendByte('V');
+        appendByte('M');
+        return this;
+    }
+
+    /**
+     * Write all of the encoded commands to the stream and reset the encoder.
+     *
+     * The encoder is reset even if the write fails, so a partially written
+     * batch is never sent twice.
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        try {
+            stream.write(mBuffer, 0, mLength);
+        } finally {
+            reset();
+        }
+    }
+
+    public void reset() {
+        mLength = 0;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public boolean isEmpty() {
+        return mLength == 0;
+    }
+
+    /**
+     * @return
+     *  The underlying buffer - only the first length() bytes are valid.
+     */
+    public byte[] buffer() {
+        return mBuffer;
+    }
+
+    private void appendByte(char c) {
+        if(mLength >= mBuffer.length) {
+            throw new IllegalStateException("Command buffer is full (" +
+                    mBuffer.length + " bytes)");
+        }
+        mBuffer[mLength++] = (byte) c;
+    }
+
+    private boolean isBinary(int chan) {
+        return mProtocol == Protocol.BINARY && chan >= 0
+                && chan <= MAX_BINARY_CHANNEL;
+    }
+
+    private boolean isBinaryFade(int chan, long duration, long value) {
+        return isBinary(chan) && fitsByte(value) && duration >= 0
+                && duration <= MAX_BINARY_DURATION;
+    }
+
+    private static boolean fitsByte(long value) {
+        return value >= 0 && value <= MAX_BINARY_VALUE;
+    }
+
+    private void beginFrame(int opcode) {
+        appendByte((char) FRAME_START);
+        appendByte((char) opcode);
+        mChecksum = opcode;
+    }
+
+    private void appendFrameByte(int b) {
+        appendByte((char) (b & 0xff));
+        mChecksum += b & 0xff;
+    }
+
+    private void endFrame() {
+        appendByte((char) (-mChecksum & 0xff));
+    }
+
+    /**
+     * @return the number of characters in the decimal form of the value.
+     */
+    static int numberLength(long value) {
+        int length = value < 0 ? 2 : 1;
+        while(value <= -10 || value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    private void appendNumber(long value) {
+        if(value == 0) {
+            appendByte('0');
+            return;
+        }
+
+        boolean negative = value < 0;
+        int count = 0;
+        // Work with negative values so Long.MIN_VALUE doesn't overflow
+        long remaining = negative ? value : -value;
+        while(remaining != 0) {
+            mDigits[count++] = (byte) ('0' - (remaining % 10));
+            remaining /= 10;
+        }
+
+        if(negative) {
+            appendByte('-');
+        }
+        while(count > 0) {
+            appendByte((char) mDigits[--count]);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.openxc.hardware.hud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A CommandLog reads back the records written by a CommandRecorder, one at a
+ * time and without allocating:
+ *
+ *  while(log.next()) {
+ *      if(log.getType() == CommandLog.OUTGOING) {
+ *          int length = log.getPayload(buffer);
+ *          ...
+ *      }
+ *  }
+ *
+ * A log that was cut short, e.g. because the process died while writing
+ * to a memory-mapped file, reads up to its last complete record.
+ */
+public class CommandLog {
+    /** Marks the end of the log. */
+    public static final int END = 0;
+    /** Bytes written to the device. */
+    public static final int OUTGOING = 1;
+    /** Bytes read from the device. */
+    public static final int INCOMING = 2;
+    /** The link to the device opened, with no payload. */
+    public static final int LINK_OPENED = 3;
+    /** The link to the device closed, with no payload. */
+    public static final int LINK_CLOSED = 4;
+
+    private final ByteBuffer mBuffer;
+    private final long mStartTimeMillis;
+    private int mType = END;
+    private long mTime;
+    private int mPayloadOffset;
+    private int mLength;
+
+    /**
+     * @throws IllegalArgumentException
+     *  if the buffer doesn't start with a log header.
+     */
+    public CommandLog(ByteBuffer buffer) {
+        mBuffer = buffer.duplicate();
+        mBuffer.position(0);
+        if(mBuffer.limit() < CommandRecorder.HEADER_LENGTH) {
+            throw new IllegalArgumentException("Not a HUD command log");
+        }
+        for(int i = 0; i < CommandRecorder.MAGIC.length; i++) {
+            if(mBuffer.get() != CommandRecorder.MAGIC[i]) {
+                throw new IllegalArgumentException("Not a HUD command log");
+            }
+        }
+        int version = mBuffer.get();
+        if(version != CommandRecorder.FORMAT_VERSION) {
+            throw new IllegalArgumentException(
+                    "Unsupported command log version: " + version);
+        }
+        mBuffer.position(mBuffer.position() + 3);
+        mStartTimeMillis = mBuffer.getLong();
+    }
+
+    /**
+     * Read a log from a file, such as one written by a memory-mapped
+     * recorder.
+     */
+    public static CommandLog read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return new CommandLog(ByteBuffer.wrap(bytes));
+        } catch(IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return
+     *  The wall clock time the recording started, in ms since the epoch.
+     */
+    public long getStartTimeMillis() {
+        return mStartTimeMillis;
+    }
+
+    /**
+     * Go back to before the first record.
+     */
+    public void rewind() {
+        mBuffer.position(CommandRecorder.HEADER_LENGTH);
+        mType = END;
+        mTime = 0;
+        mPayloadOffset = 0;
+        mLength = 0;
+    }
+
+    /**
+     * Move on to the next record.
+     *
+     * @return false if there are no more records.
+     */
+    public boolean next() {
+        if(!mBuffer.hasRemaining()) {
+            return end();
+        }
+
+        int start = mBuffer.position();
+        try {
+            int type = mBuffer.get();
+            if(type == END) {
+                mBuffer.position(start);
+                return end();
+            }
+            long delta = getVarint();
+            long length = getVarint();
+            if(length < 0 || length > mBuffer.remaining()) {
+                mBuffer.position(start);
+                return end();
+            }
+            mType = type;
+            mTime += delta;
+            mLength = (int) length;
+            mPayloadOffset = mBuffer.position();
+            mBuffer.position(mPayloadOffset + mLength);
+            return true;
+        } catch(BufferUnderflowException e) {
+            mBuffer.position(start);
+            return end();
+        }
+    }
+
+    /**
+     * @return the type of the current record, e.g. OUTGOING.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return
+     *  The time of the current record, in ns since the recording started.
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return the length of the current record's payload.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Copy the current record's payload to the start of an array, which
+     * must be at least getLength() long.
+     *
+     * @return the payload length.
+     */
+    public int getPayload(byte[] destination) {
+        // Absolute gets leave the position at the next record
+        for(int i = 0; i < mLength; i++) {
+            destination[i] = mBuffer.get(mPayloadOffset + i);
+        }
+        return mLength;
+    }
+
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    private boolean end() {
+        mType = END;
+        mLength = 0;
+        return false;
+    }
+
+    private long getVarint() {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = mBuffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
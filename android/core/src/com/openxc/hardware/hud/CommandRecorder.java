@@ -0,0 +1,202 @@
+package com.openxc.hardware.hud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The CommandRecorder keeps a log of every byte sent to and received from
+ * the HUD, with nanosecond timestamps, so a session that stuttered can be
+ * replayed later (see TraceReplayer in the simulator module).
+ *
+ * The log is appended to a buffer that is allocated up front - either on the
+ * heap or memory-mapped from a file, so the log survives the process being
+ * killed - and recording a write or a read is a short synchronized copy with
+ * no allocation, cheap enough to leave on. Once the buffer is full, further
+ * records are dropped and counted, so the log always holds the start of the
+ * session.
+ *
+ * The format is a 16 byte header:
+ *
+ *  "HUDL", the format version, 3 reserved bytes, the wall clock time the
+ *      recording started (ms since the epoch, 8 bytes big-endian)
+ *
+ * followed by records of:
+ *
+ *  the record type, the nanoseconds since the previous record (or since
+ *      the recording started) as a varint, the payload length as a varint,
+ *      the payload
+ *
+ * where a varint is 7 bits per byte, least significant first, with the top
+ * bit set on every byte but the last. A zero type byte (like the unused
+ * part of a mapped file) marks the end of the log. Use a CommandLog to read
+ * one.
+ */
+public class CommandRecorder {
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    static final byte[] MAGIC = { 'H', 'U', 'D', 'L' };
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+    // The type byte and the longest varints for the time and length
+    private static final int MAX_RECORD_OVERHEAD = 1 + 10 + 5;
+
+    private final ByteBuffer mBuffer;
+    private long mLastRecordAt;
+    private long mRecords;
+    private long mDroppedRecords;
+
+    /**
+     * Record into a buffer on the heap.
+     */
+    public CommandRecorder(int capacity) {
+        this(ByteBuffer.allocate(capacity));
+    }
+
+    private CommandRecorder(ByteBuffer buffer) {
+        if(buffer.capacity() <= HEADER_LENGTH) {
+            throw new IllegalArgumentException("Invalid capacity: " +
+                    buffer.capacity());
+        }
+        mBuffer = buffer;
+        mLastRecordAt = System.nanoTime();
+        writeHeader();
+    }
+
+    /**
+     * Record into a file, which is created (or overwritten) with the given
+     * size and memory-mapped.
+     */
+    public static CommandRecorder map(File file, int capacity)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(capacity);
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new CommandRecorder(buffer);
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Record bytes written to the device.
+     *
+     * @param time
+     *  When the write started, from System.nanoTime()
+     */
+    public void recordOutgoing(byte[] bytes, int offset, int length,
+            long time) {
+        record(CommandLog.OUTGOING, bytes, offset, length, time);
+    }
+
+    /**
+     * Record bytes read from the device.
+     *
+     * @param time
+     *  When the read returned, from System.nanoTime()
+     */
+    public void recordIncoming(byte[] bytes, int offset, int length,
+            long time) {
+        record(CommandLog.INCOMING, bytes, offset, length, time);
+    }
+
+    public void recordLinkOpened() {
+        record(CommandLog.LINK_OPENED, null, 0, 0, System.nanoTime());
+    }
+
+    public void recordLinkClosed() {
+        record(CommandLog.LINK_CLOSED, null, 0, 0, System.nanoTime());
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecords;
+    }
+
+    /**
+     * @return the number of records that didn't fit in the buffer.
+     */
+    public synchronized long getDroppedRecordCount() {
+        return mDroppedRecords;
+    }
+
+    /**
+     * @return the number of bytes of the buffer used so far.
+     */
+    public synchronized int size() {
+        return mBuffer.position();
+    }
+
+    /**
+     * @return a reader for a copy of the log as it stands.
+     */
+    public synchronized CommandLog snapshot() {
+        byte[] copy = new byte[mBuffer.position()];
+        ByteBuffer source = mBuffer.duplicate();
+        source.flip();
+        source.get(copy);
+        return new CommandLog(ByteBuffer.wrap(copy));
+    }
+
+    /**
+     * Write the log as it stands to a stream, e.g. to attach it to a bug
+     * report.
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        CommandLog log = snapshot();
+        stream.write(log.getBuffer().array(), 0, log.getBuffer().limit());
+    }
+
+    /**
+     * Flush a memory-mapped log to its file.
+     */
+    public synchronized void force() {
+        if(mBuffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) mBuffer).force();
+        }
+    }
+
+    private synchronized void record(int type, byte[] bytes, int offset,
+            int length, long time) {
+        if(mBuffer.remaining() < MAX_RECORD_OVERHEAD + length) {
+            mDroppedRecords++;
+            return;
+        }
+
+        // Records can arrive from the writer and reader threads slightly out
+        // of order, so clamp the delta rather than going backwards
+        long delta = Math.max(0, time - mLastRecordAt);
+        mLastRecordAt += delta;
+        mBuffer.put((byte) type);
+        putVarint(delta);
+        putVarint(length);
+        if(length > 0) {
+            mBuffer.put(bytes, offset, length);
+        }
+        mRecords++;
+    }
+
+    private void writeHeader() {
+        mBuffer.clear();
+        mBuffer.put(MAGIC);
+        mBuffer.put((byte) FORMAT_VERSION);
+        mBuffer.put(new byte[3]);
+        mBuffer.putLong(System.currentTimeMillis());
+    }
+
+    private void putVarint(long value) {
+        while((value & ~0x7fL) != 0) {
+            mBuffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mBuffer.put((byte) value);
+    }
+}
@@ -0,0 +1,13 @@
+package com.openxc.hardware.hud;
+
+/**
+ * A CommandSink accepts a batch of encoded commands and writes it to the HUD.
+ */
+public interface CommandSink {
+    /**
+     * Write all of the commands in the encoder to the HUD.
+     *
+     * The sink must reset the encoder, whether or not the write succeeds.
+     */
+    public void write(CommandEncoder commands) throws BluetoothException;
+}
@@ -0,0 +1,46 @@
+package com.openxc.hardware.hud;
+
+/**
+ * The DesiredState remembers the intensity last asked for on each channel,
+ * whether or not the command reached the HUD, so that the LEDs can be
+ * restored in a single frame when the link comes back after dropping.
+ *
+ * A fade is remembered by its destination, since by the time the link is
+ * back it should have finished. A channel given a sequence to play is
+ * forgotten, since the sequence can't be resumed where it left off.
+ *
+ * This class is not thread safe - callers must hold the lock that guards
+ * writes to the HUD.
+ */
+public class DesiredState {
+    private final long[] mValues =
+            new long[BluetoothHudInterface.CHANNEL_COUNT];
+    private int mChannelMask;
+
+    /**
+     * @param value
+     *  The intensity as a 0-255 value
+     */
+    public void set(int chan, long value) {
+        mValues[chan] = value;
+        mChannelMask |= 1 << chan;
+    }
+
+    public void forget(int chan) {
+        mChannelMask &= ~(1 << chan);
+    }
+
+    /**
+     * @return true if anything has been asked for on the channel.
+     */
+    public boolean isSet(int chan) {
+        return (mChannelMask & (1 << chan)) != 0;
+    }
+
+    /**
+     * @return the intensity last asked for on the channel.
+     */
+    public long getValue(int chan) {
+        return mValues[chan];
+    }
+}
@@ -0,0 +1,202 @@
+package com.openxc.hardware.hud;
+
+import java.util.Arrays;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A FrameTicker sends a frame of LED values to the HUD from its own thread,
+ * at most once per tick, for components that build up the frame faster than
+ * it is worth sending - the SignalPipeline and the LayerCompositor.
+ *
+ * A subclass marks the frame dirty when its input changes, with its own
+ * lock (the ticker) held. Once a tick has passed since the last frame, the
+ * ticker thread has the subclass compose the frame, and sends only the
+ * channels that differ from the last frame it sent, in one postFrame(). Any
+ * changes in between are folded into the next frame rather than queueing
+ * behind it, and postFrame() lets the HUD's link budget pace the writes, so
+ * a busy producer can only ever have one frame in flight and never blocks
+ * on the link.
+ */
+public abstract class FrameTicker implements Runnable {
+    public static final double DEFAULT_FRAME_RATE = 30;
+
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final BluetoothHudInterface mHud;
+    private final String mThreadName;
+    private final int[] mFrame = new int[CHANNELS];
+    private final int[] mSent = new int[CHANNELS];
+    private final double[] mValues = new double[CHANNELS];
+    private Priority mPriority = Priority.NORMAL;
+    private boolean mDirty;
+    private boolean mSentAny;
+    private long mFrameInterval;
+    private long mLastFrameAt;
+    private long mFrameCount;
+    private long mChannelsSent;
+    private boolean mRunning;
+    private Thread mThread;
+
+    /**
+     * @param hud
+     *  Where to send the frames - usually a HudClient or HudService
+     */
+    protected FrameTicker(BluetoothHudInterface hud, String threadName) {
+        mHud = hud;
+        mThreadName = threadName;
+        setFrameRate(DEFAULT_FRAME_RATE);
+        mLastFrameAt = System.nanoTime() - mFrameInterval;
+    }
+
+    /**
+     * Set the most frames per second to send to the HUD.
+     */
+    public synchronized void setFrameRate(double framesPerSecond) {
+        if(!(framesPerSecond > 0)) {
+            throw new IllegalArgumentException("Invalid frame rate: " +
+                    framesPerSecond);
+        }
+        mFrameInterval = (long) (NANOS_PER_SECOND / framesPerSecond);
+        notifyAll();
+    }
+
+    /**
+     * Set the lane to send the frames in.
+     *
+     * @param priority
+     *  The priority lane - NORMAL by default
+     */
+    public synchronized void setPriority(Priority priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Start the ticker thread.
+     */
+    public synchronized void start() {
+        if(mThread == null) {
+            mRunning = true;
+            mThread = new Thread(this, mThreadName);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stop the ticker thread. Changes that haven't been sent yet are
+     * dropped, and the LEDs are left as they are.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        mThread = null;
+        mDirty = false;
+        notifyAll();
+    }
+
+    /**
+     * @return
+     *  The number of frames composed - a frame that comes out the same as
+     *  the last one sends nothing.
+     */
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the number of channel updates sent to the HUD.
+     */
+    public synchronized long getChannelsSent() {
+        return mChannelsSent;
+    }
+
+    public void run() {
+        while(nextFrame()) {
+            Priority priority;
+            synchronized(this) {
+                priority = mPriority;
+            }
+            int changedMask = 0;
+            for(int i = 0; i < CHANNELS; i++) {
+                if(!mSentAny || mFrame[i] != mSent[i]) {
+                    mValues[i] = mFrame[i] / 255.0;
+                    changedMask |= 1 << i;
+                }
+            }
+            if(changedMask != 0) {
+                mHud.postFrame(changedMask, mValues, priority,
+                        BluetoothHudInterface.NO_DEADLINE);
+            }
+            synchronized(this) {
+                System.arraycopy(mFrame, 0, mSent, 0, CHANNELS);
+                mSentAny = true;
+                mChannelsSent += Integer.bitCount(changedMask);
+            }
+        }
+    }
+
+    /**
+     * Fill in the frame to send, as 0-255 values. Called from the ticker
+     * thread with the lock held.
+     */
+    protected abstract void compose(int[] frame);
+
+    /**
+     * Mark the frame as needing to be sent on the next tick, or not. Must be
+     * called with the lock held.
+     */
+    protected void setDirty(boolean dirty) {
+        if(dirty && !mDirty) {
+            notifyAll();
+        }
+        mDirty = dirty;
+    }
+
+    /**
+     * @return true if a frame is waiting for the next tick. Must be called
+     *  with the lock held.
+     */
+    protected boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * @return true if the frame is the same as the last one sent. Must be
+     *  called with the lock held.
+     */
+    protected boolean isSent(int[] frame) {
+        return mSentAny && Arrays.equals(frame, mSent);
+    }
+
+    /**
+     * Wait until the frame is dirty and the tick has passed since the last
+     * one, and compose it into mFrame.
+     *
+     * @return false if the ticker was stopped.
+     */
+    private synchronized boolean nextFrame() {
+        // A thread left over from before a stop() and start() must exit
+        while(mRunning && mThread == Thread.currentThread()) {
+            try {
+                if(!mDirty) {
+                    wait();
+                    continue;
+                }
+
+                long now = System.nanoTime();
+                long remaining = mLastFrameAt + mFrameInterval - now;
+                if(remaining <= 0) {
+                    compose(mFrame);
+                    mDirty = false;
+                    mLastFrameAt = now;
+                    mFrameCount++;
+                    return true;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch(InterruptedException e) {
+                mRunning = false;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,1153 @@
+package com.openxc.hardware.hud;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HudClient runs the HUD protocol over a HudTransport.
+ *
+ * It owns the command encoder, the coalescing writer, the response reader and
+ * the connection keepalive, and has no dependencies on Android, so the whole
+ * driver can run (and be profiled) on an ordinary JVM against a TCP or
+ * in-memory stand-in for the HUD. The HudService wraps a HudClient with a
+ * Bluetooth transport.
+ *
+ * After connect() is called, a keepalive thread opens the transport, watches
+ * the link and reopens the transport whenever it drops, until disconnect() is
+ * called. Every response from the device proves the link is alive, so the
+ * keepalive only pings once the link has been quiet for the idle window.
+ * Reconnects back off exponentially, starting with a fast first retry.
+ *
+ * connect() returns straight away - the transport is opened on the keepalive
+ * thread. Use requestConnect() to get a future for the link coming up, and a
+ * StateListener to follow the connection as it drops and recovers.
+ *
+ * Each time the link opens, the keepalive asks the firmware for its protocol
+ * version, and switches to the compact binary commands if it accepts them.
+ * Older firmware doesn't know the query, so it stays on ASCII commands.
+ *
+ * A write that fails drops the link straight away, rather than waiting for
+ * the next ping to notice it is dead. The value last asked for on each
+ * channel is kept while the link is down - set() and the other blocking
+ * calls still throw, but what they asked for isn't lost - and when the link
+ * is reopened after dropping, or the device resets, the LEDs are restored
+ * with a single frame.
+ *
+ * The round trips of pings and queries sent on an idle link feed a
+ * LinkDelayEstimator, and fades - sent straight away or through the writer -
+ * are lengthened or shortened by how late they are expected to reach the
+ * firmware, so fades meant to run together stay in phase.
+ *
+ * set(), fade() and the other blocking calls write straight away, holding
+ * the client lock until the write returns. Posted commands go through the
+ * coalescing writer in priority lanes instead: urgent warnings should be
+ * posted as ALERTs, which are sent ahead of queued animation and signal
+ * traffic and don't wait for the link's backlog to drain.
+ *
+ * Command latencies, bytes written and connection events are recorded in a
+ * HudMetrics, available through getMetrics(). To capture the exact traffic,
+ * e.g. to replay a session that stuttered, set a CommandRecorder.
+ */
+public class HudClient implements BluetoothHudInterface {
+    private static final long DEFAULT_KEEPALIVE_IDLE = 3000;
+    private static final long DEFAULT_RECONNECT_DELAY = 250;
+    private static final long DEFAULT_MAX_RECONNECT_DELAY = 30 * 1000;
+    private static final long RESPONSE_TIMEOUT = 2000;
+    // The HUD firmware runs its serial link to the Bluetooth module at 57600
+    private static final int LINK_BAUD_RATE = 57600;
+    // Every request is two bytes, e.g. "PM"
+    private static final int REQUEST_LENGTH = 2;
+    private static final int NEGOTIATE_ATTEMPTS = 2;
+
+    /**
+     * Callbacks are made from the client's background threads.
+     */
+    public interface Listener {
+        public void onConnected();
+        public void onDisconnected();
+        public void onConnectFailed(BluetoothException e);
+
+        /**
+         * The device printed its startup banner, so it has rebooted.
+         */
+        public void onDeviceReset();
+
+        /**
+         * A line arrived from the device that didn't match any request.
+         */
+        public void onUnexpectedResponse(String line);
+    }
+
+    /**
+     * The state of the connection to the device.
+     */
+    public enum State {
+        /** Not connected, and not trying to connect. */
+        DISCONNECTED,
+        /** Trying to open the link, or waiting to retry. */
+        CONNECTING,
+        /** The link is open. */
+        CONNECTED
+    }
+
+    /**
+     * Callbacks are made from the thread that changed the state, with the
+     * state lock held so that they arrive in order. They should return
+     * quickly.
+     */
+    public interface StateListener {
+        public void onStateChanged(State state);
+    }
+
+    private final HudTransport.Factory mTransportFactory;
+    private final Listener mListener;
+    private final CommandEncoder mEncoder = new CommandEncoder();
+    private final double[] mAllValues = new double[CHANNEL_COUNT];
+    private final long[] mFrameValues = new long[CHANNEL_COUNT];
+    private final LinkBudget mLinkBudget = new LinkBudget(LINK_BAUD_RATE);
+    private final LinkDelayEstimator mDelayEstimator =
+            new LinkDelayEstimator(mLinkBudget);
+    private final ShadowState mShadowState = new ShadowState();
+    private final DesiredState mDesiredState = new DesiredState();
+    private final HudMetrics mMetrics = new HudMetrics();
+    private final CoalescingWriter mWriter;
+    private final Object mLinkLock = new Object();
+    private final Object mStateLock = new Object();
+    private final List<StateListener> mStateListeners =
+            new CopyOnWriteArrayList<StateListener>();
+    private final List<ResponseFuture> mConnectFutures =
+            new ArrayList<ResponseFuture>();
+    private State mState = State.DISCONNECTED;
+
+    private HudTransport mTransport;
+    private volatile boolean mConnected;
+    private OutputStream mOutStream;
+    private ResponseReader mReader;
+
+    private final CommandSink mSink = new CommandSink() {
+        public void write(CommandEncoder commands) throws BluetoothException {
+            writeCommands(commands);
+        }
+    };
+
+    private final ResponseReader.Listener mReaderListener =
+            new ResponseReader.Listener() {
+        public void onDisconnected() {
+            closeLink();
+        }
+
+        public void onDeviceReset() {
+            synchronized(HudClient.this) {
+                mShadowState.invalidate();
+            }
+            ConnectionKeepalive keepalive = mConnectionKeepalive;
+            if(keepalive != null) {
+                keepalive.onDeviceReset();
+            }
+            mListener.onDeviceReset();
+        }
+
+        public void onUnexpectedResponse(String line) {
+            // A garbled response (or a rejected binary command) means a
+            // command may have been lost, so don't trust the shadow state
+            synchronized(HudClient.this) {
+                mShadowState.invalidate();
+            }
+            mListener.onUnexpectedResponse(line);
+        }
+    };
+
+    private final BatteryMonitor mBatteryMonitor = new BatteryMonitor();
+    private volatile long mKeepaliveIdle = DEFAULT_KEEPALIVE_IDLE;
+    private volatile long mReconnectDelay = DEFAULT_RECONNECT_DELAY;
+    private volatile long mMaxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+    private volatile CommandEncoder.Protocol mPreferredProtocol =
+            CommandEncoder.Protocol.BINARY;
+    private volatile CommandRecorder mRecorder;
+    private volatile boolean mLatencyCompensation = true;
+
+    private volatile ConnectionKeepalive mConnectionKeepalive;
+    private class ConnectionKeepalive implements Runnable {
+        private final Backoff mBackoff;
+        private boolean mRunning;
+        private boolean mLinkDropped;
+        private boolean mDeviceReset;
+
+        public ConnectionKeepalive() {
+            mBackoff = new Backoff(mReconnectDelay, mMaxReconnectDelay);
+            mRunning = true;
+        }
+
+        public synchronized void stop() {
+            mRunning = false;
+            notifyAll();
+        }
+
+        /**
+         * Wake the keepalive up early because the link dropped.
+         */
+        public synchronized void onLinkDropped() {
+            mLinkDropped = true;
+            notifyAll();
+        }
+
+        /**
+         * Wake the keepalive up early to restore the LEDs, because the
+         * device restarted and cleared them.
+         */
+        public synchronized void onDeviceReset() {
+            mDeviceReset = true;
+            notifyAll();
+        }
+
+        /**
+         * @return true if the device has reset since the last call.
+         */
+        public synchronized boolean takeDeviceReset() {
+            boolean reset = mDeviceReset;
+            mDeviceReset = false;
+            return reset;
+        }
+
+        public void run() {
+            boolean reconnect = false;
+            while(isRunning()) {
+                try {
+                    openLink(this, reconnect);
+                } catch(BluetoothException e) {
+                    if(!isRunning()) {
+                        return;
+                    }
+                    mMetrics.recordConnectFailure();
+                    mListener.onConnectFailed(e);
+                    if(!pause(mBackoff.nextDelay(), false)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                boolean reopened = reconnect;
+                reconnect = true;
+                if(negotiateProtocol(this)) {
+                    if(takeDeviceReset() || reopened) {
+                        restoreState();
+                    }
+                    superviseLink();
+                }
+                if(!pause(mBackoff.nextDelay(), false)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Watch the open link until it drops, pinging the device whenever
+         * nothing has arrived from it for the idle window, and reading the
+         * battery whenever the monitor wants a reading. A reading that is
+         * due before the next ping would be due replaces the ping, since
+         * its response proves the link works just as well. If the device
+         * resets, the LEDs are restored.
+         */
+        private void superviseLink() {
+            ResponseReader reader = mReader;
+            while(isRunning() && isConnected()) {
+                if(takeDeviceReset()) {
+                    restoreState();
+                }
+                if(reader.hasResponded()) {
+                    // The link works, so the next drop gets a fast retry
+                    mBackoff.reset();
+                }
+
+                long idle = TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - reader.getLastResponseTime());
+                long keepaliveIdle = mKeepaliveIdle;
+                long untilReading = mBatteryMonitor.getDelayUntilDue(
+                        System.nanoTime());
+                if(untilReading == 0 || (idle >= keepaliveIdle
+                            && untilReading <= keepaliveIdle)) {
+                    if(!readBattery()) {
+                        return;
+                    }
+                } else if(idle < keepaliveIdle) {
+                    if(!pause(Math.min(keepaliveIdle - idle, untilReading),
+                                true)) {
+                        return;
+                    }
+                } else if(!ping()) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized boolean isRunning() {
+            return mRunning;
+        }
+
+        /**
+         * Wait until the delay has passed or the keepalive is stopped.
+         *
+         * @param untilDropped
+         *  Also return early if the link drops or the device resets
+         * @return true if the keepalive is still running.
+         */
+        private synchronized boolean pause(long delay, boolean untilDropped) {
+            if(!untilDropped) {
+                mLinkDropped = false;
+            }
+
+            long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(delay);
+            while(mRunning && !(untilDropped
+                        && (mLinkDropped || mDeviceReset))) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch(InterruptedException e) {
+                    mRunning = false;
+                }
+            }
+            mLinkDropped = false;
+            return mRunning;
+        }
+    }
+
+    /**
+     * @param transportFactory
+     *  Creates the transport for the address passed to connect()
+     * @param listener
+     *  Receives connection events
+     */
+    public HudClient(HudTransport.Factory transportFactory,
+            Listener listener) {
+        mTransportFactory = transportFactory;
+        mListener = listener;
+        mWriter = new CoalescingWriter(mSink, mLinkBudget, mShadowState, this,
+                mMetrics);
+        mWriter.setLinkDelayEstimator(mDelayEstimator);
+        mWriter.setDesiredState(mDesiredState);
+        new Thread(mWriter, "HudWriter").start();
+    }
+
+    /**
+     * Disconnect and stop the writer thread. The client can't be used after
+     * it is shut down.
+     */
+    public void shutdown() {
+        mWriter.stop();
+        stopKeepalive();
+        closeLink();
+        setState(State.DISCONNECTED);
+        mMetrics.recordDisconnectRequested();
+    }
+
+    /**
+     * Start connecting to the device. This returns without waiting for the
+     * link, which is opened (and reopened whenever it drops) by the
+     * keepalive thread.
+     */
+    @Override
+    public void connect(String targetAddress) throws BluetoothException {
+        connect(targetAddress, null);
+    }
+
+    /**
+     * Start connecting to the device.
+     *
+     * @return
+     *  A future that completes when the link opens. Failed attempts are
+     *  retried, so the future only fails if the client is disconnected (or
+     *  connected somewhere else) first - use get() with a timeout to bound
+     *  the wait.
+     */
+    @Override
+    public ResponseFuture requestConnect(String targetAddress)
+            throws BluetoothException {
+        ResponseFuture future = new ResponseFuture();
+        connect(targetAddress, future);
+        return future;
+    }
+
+    private void connect(String targetAddress, ResponseFuture future)
+            throws BluetoothException {
+        stopKeepalive();
+        closeLink();
+        setState(State.DISCONNECTED);
+
+        HudTransport transport = mTransportFactory.create(targetAddress);
+        ConnectionKeepalive keepalive = new ConnectionKeepalive();
+        synchronized(mLinkLock) {
+            mTransport = transport;
+            mConnectionKeepalive = keepalive;
+        }
+
+        synchronized(mStateLock) {
+            if(future != null) {
+                mConnectFutures.add(future);
+            }
+            setState(State.CONNECTING);
+        }
+        mMetrics.recordConnectRequested();
+        new Thread(keepalive, "HudKeepalive").start();
+    }
+
+    /**
+     * Close the link and stop reconnecting. This also cancels a connection
+     * that hasn't come up yet.
+     */
+    @Override
+    public void disconnect() throws BluetoothException {
+        if(getState() == State.DISCONNECTED) {
+            throw new BluetoothException(
+                    "Unable to disconnect -- not connected");
+        }
+
+        stopKeepalive();
+        closeLink();
+        setState(State.DISCONNECTED);
+        mMetrics.recordDisconnectRequested();
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public State getState() {
+        synchronized(mStateLock) {
+            return mState;
+        }
+    }
+
+    public void addStateListener(StateListener listener) {
+        mStateListeners.add(listener);
+    }
+
+    public void removeStateListener(StateListener listener) {
+        mStateListeners.remove(listener);
+    }
+
+    /**
+     * Set how long the link can go without any response from the device
+     * before the keepalive pings it.
+     *
+     * @param idle
+     *  The idle window in ms
+     */
+    public void setKeepaliveIdle(long idle) {
+        mKeepaliveIdle = idle;
+    }
+
+    /**
+     * Set the delays between reconnect attempts. This takes effect at the
+     * next call to connect().
+     *
+     * @param initialDelay
+     *  The delay before the first retry, in ms
+     * @param maxDelay
+     *  The longest delay between retries, in ms
+     */
+    public void setReconnectDelay(long initialDelay, long maxDelay) {
+        if(initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid reconnect delays: "
+                    + initialDelay + ", " + maxDelay);
+        }
+        mReconnectDelay = initialDelay;
+        mMaxReconnectDelay = maxDelay;
+    }
+
+    /**
+     * Choose whether to use binary commands when the firmware accepts them.
+     * This takes effect the next time the link opens.
+     *
+     * @param protocol
+     *  BINARY (the default) to negotiate binary commands, or ASCII to always
+     *  send text commands, e.g. to follow the traffic in a serial monitor
+     */
+    public void setPreferredProtocol(CommandEncoder.Protocol protocol) {
+        mPreferredProtocol = protocol;
+    }
+
+    /**
+     * @return
+     *  The command format in use on the current link - ASCII until the
+     *  device has reported a firmware version that accepts binary commands.
+     */
+    public synchronized CommandEncoder.Protocol getProtocol() {
+        return mEncoder.getProtocol();
+    }
+
+    /**
+     * Record every byte written to and read from the device, and each time
+     * the link opens and closes.
+     *
+     * @param recorder
+     *  The recorder, or null to stop recording
+     */
+    public void setRecorder(CommandRecorder recorder) {
+        synchronized(mLinkLock) {
+            mRecorder = recorder;
+            if(mReader != null) {
+                mReader.setRecorder(recorder);
+            }
+        }
+    }
+
+    public CommandRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * Choose whether to adjust fade durations for the link delay.
+     *
+     * @param enabled
+     *  True (the default) to shorten or lengthen each fade by how late or
+     *  early it is expected to reach the firmware, false to send durations
+     *  as given
+     */
+    public void setLatencyCompensation(boolean enabled) {
+        mLatencyCompensation = enabled;
+        mWriter.setLinkDelayEstimator(enabled ? mDelayEstimator : null);
+    }
+
+    /**
+     * @return
+     *  The estimate of how long commands take to reach the device, e.g. for
+     *  an Animator to send its commands ahead of time.
+     */
+    public LinkDelayEstimator getLinkDelayEstimator() {
+        return mDelayEstimator;
+    }
+
+    /**
+     * @return a snapshot of the client's metrics since it was created.
+     */
+    public HudMetrics.Snapshot getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    @Override
+    public void set(int chan, double value) throws BluetoothException {
+        long start = System.nanoTime();
+        synchronized(this) {
+            checkChannel(chan);
+            long intensity = CommandEncoder.intensity(value);
+            // Remember it even if the link is down, to restore on reconnect
+            mDesiredState.set(chan, intensity);
+            // A command posted earlier must not overwrite this one
+            mWriter.discard(1 << chan);
+            if(!isConnected()) {
+                throw new BluetoothException("Unable to set -- not connected");
+            }
+
+            if(!mShadowState.set(chan, intensity, ShadowState.currentTime())) {
+                mMetrics.recordSuppressed();
+                return;
+            }
+            mEncoder.appendSet(chan, intensity);
+            writeCommands();
+        }
+        mMetrics.recordCommand(HudMetrics.Command.SET, start);
+    }
+
+    @Override
+    public synchronized void setAll(double value) throws BluetoothException {
+        // setFrame() remembers the values before checking the link
+        Arrays.fill(mAllValues, value);
+        setFrame(ALL_CHANNELS, mAllValues);
+    }
+
+    @Override
+    public void setFrame(double[] values) throws BluetoothException {
+        setFrame(ALL_CHANNELS, values);
+    }
+
+    @Override
+    public void setFrame(int channelMask, double[] values)
+            throws BluetoothException {
+        checkFrame(values);
+        long start = System.nanoTime();
+        synchronized(this) {
+            for(int i = 0; i < CHANNEL_COUNT; i++) {
+                if((channelMask & (1 << i)) != 0) {
+                    mDesiredState.set(i, CommandEncoder.intensity(values[i]));
+                }
+            }
+            mWriter.discard(channelMask);
+            if(!isConnected()) {
+                throw new BluetoothException(
+                        "Unable to set frame -- not connected");
+            }
+
+            long now = ShadowState.currentTime();
+            int changedMask = 0;
+            for(int i = 0; i < CHANNEL_COUNT; i++) {
+                if((channelMask & (1 << i)) != 0) {
+                    long intensity = CommandEncoder.intensity(values[i]);
+                    if(mShadowState.set(i, intensity, now)) {
+                        mFrameValues[i] = intensity;
+                        changedMask |= 1 << i;
+                    } else {
+                        mMetrics.recordSuppressed();
+                    }
+                }
+            }
+
+            if(changedMask == 0) {
+                return;
+            }
+            mEncoder.appendFrame(changedMask, mFrameValues);
+            writeCommands();
+        }
+        mMetrics.recordCommand(HudMetrics.Command.FRAME, start);
+    }
+
+    @Override
+    public void fade(int chan, long duration, double value)
+            throws BluetoothException {
+        long start = System.nanoTime();
+        synchronized(this) {
+            checkChannel(chan);
+            long intensity = CommandEncoder.intensity(value);
+            mDesiredState.set(chan, intensity);
+            mWriter.discard(1 << chan);
+            if(!isConnected()) {
+                throw new BluetoothException(
+                        "Unable to fade -- not connected");
+            }
+
+            if(mLatencyCompensation) {
+                // The fade was meant to start when we were called
+                int end = mEncoder.length()
+                        + mEncoder.fadeLength(chan, duration, intensity);
+                duration = mDelayEstimator.compensate(duration, start,
+                        System.nanoTime(), end);
+            }
+            if(!mShadowState.fade(chan, duration, intensity,
+                        ShadowState.currentTime())) {
+                mMetrics.recordSuppressed();
+                return;
+            }
+            mEncoder.appendFade(chan, duration, intensity);
+            writeCommands();
+        }
+        mMetrics.recordCommand(HudMetrics.Command.FADE, start);
+    }
+
+    @Override
+    public void postSet(int chan, double value) {
+        mWriter.postSet(chan, CommandEncoder.intensity(value));
+    }
+
+    @Override
+    public void postFade(int chan, long duration, double value) {
+        mWriter.postFade(chan, duration, CommandEncoder.intensity(value));
+    }
+
+    @Override
+    public void postFade(int chan, long startNanos, long duration,
+            double value) {
+        mWriter.postFade(chan, startNanos, duration,
+                CommandEncoder.intensity(value));
+    }
+
+    @Override
+    public void postSet(int chan, double value, Priority priority,
+            long deadlineNanos) {
+        mWriter.postSet(chan, CommandEncoder.intensity(value), priority,
+                deadlineNanos);
+    }
+
+    @Override
+    public void postFade(int chan, long startNanos, long duration,
+            double value, Priority priority, long deadlineNanos) {
+        mWriter.postFade(chan, startNanos, duration,
+                CommandEncoder.intensity(value), priority, deadlineNanos);
+    }
+
+    @Override
+    public void postFrame(int channelMask, double[] values,
+            Priority priority, long deadlineNanos) {
+        mWriter.postFrame(channelMask, values, priority, deadlineNanos);
+    }
+
+    /**
+     * Read the battery level from the device, and add it to the battery
+     * monitor's history. Use getBatteryMonitor() for the cached level
+     * instead of polling this.
+     */
+    @Override
+    public int rawBatteryLevel() throws BluetoothException {
+        long sentAt = System.nanoTime();
+        boolean idle = isLinkIdle(sentAt);
+        ResponseFuture future = requestRawBatteryLevel();
+        int level = awaitResponse(ResponseReader.Request.BATTERY, future);
+        recordRoundTrip(ResponseReader.Request.BATTERY, level, sentAt, idle);
+        mBatteryMonitor.record(level, System.nanoTime(),
+                System.currentTimeMillis());
+        return level;
+    }
+
+    /**
+     * @return
+     *  The history of battery readings, which the keepalive thread keeps up
+     *  to date while connected.
+     */
+    public BatteryMonitor getBatteryMonitor() {
+        return mBatteryMonitor;
+    }
+
+    @Override
+    public ResponseFuture requestRawBatteryLevel() throws BluetoothException {
+        if(!isConnected()) {
+            throw new BluetoothException(
+                    "Unable to check battery level -- not connected");
+        }
+        return sendRequest(ResponseReader.Request.BATTERY);
+    }
+
+    /**
+     * Ask the device which protocol version its firmware speaks, and switch
+     * to binary commands if it accepts them. Anything sent before the answer
+     * arrives goes out as ASCII, which every version understands, so the
+     * link can be used straight away.
+     *
+     * A device that resets when the link opens fails the query when its
+     * startup banner arrives, so the query is sent again if that happens.
+     *
+     * @return false if the device didn't answer, and the link was dropped.
+     */
+    private boolean negotiateProtocol(ConnectionKeepalive keepalive) {
+        if(mPreferredProtocol != CommandEncoder.Protocol.BINARY) {
+            return true;
+        }
+
+        int version;
+        long sentAt;
+        boolean idle;
+        for(int attempt = 1; ; attempt++) {
+            sentAt = System.nanoTime();
+            idle = isLinkIdle(sentAt);
+            try {
+                version = awaitResponse(ResponseReader.Request.VERSION,
+                        sendRequest(ResponseReader.Request.VERSION));
+                break;
+            } catch(BluetoothException e) {
+                if(attempt >= NEGOTIATE_ATTEMPTS || !isConnected()
+                        || !keepalive.takeDeviceReset()) {
+                    closeLink();
+                    return false;
+                }
+                // Leave the reset for the keepalive to restore the LEDs
+                keepalive.onDeviceReset();
+            }
+        }
+        recordRoundTrip(ResponseReader.Request.VERSION, version, sentAt,
+                idle);
+        if(version >= CommandEncoder.BINARY_VERSION) {
+            setProtocol(CommandEncoder.Protocol.BINARY);
+        }
+        return true;
+    }
+
+    /**
+     * Send the value last asked for on every channel in a single frame,
+     * after the link was reopened. Channels that nothing has been asked for
+     * on are left as the device shows them.
+     */
+    private void restoreState() {
+        synchronized(this) {
+            long now = ShadowState.currentTime();
+            int mask = 0;
+            for(int i = 0; i < CHANNEL_COUNT; i++) {
+                if(mDesiredState.isSet(i) && mShadowState.set(i,
+                            mDesiredState.getValue(i), now)) {
+                    mFrameValues[i] = mDesiredState.getValue(i);
+                    mask |= 1 << i;
+                }
+            }
+
+            if(mask != 0) {
+                mEncoder.appendFrame(mask, mFrameValues);
+                try {
+                    writeCommands();
+                } catch(BluetoothException e) {
+                    // The link dropped again - the state will be restored
+                    // when it is reopened
+                    return;
+                }
+            }
+        }
+        long now = System.nanoTime();
+        mMetrics.recordRecovered(now
+                + mDelayEstimator.arrivalDelayNanos(now, 0));
+    }
+
+    private synchronized void setProtocol(CommandEncoder.Protocol protocol) {
+        mEncoder.setProtocol(protocol);
+        mWriter.setProtocol(protocol);
+    }
+
+    /**
+     * Read the battery for the monitor, and drop the link if the device
+     * doesn't answer, like ping().
+     */
+    private boolean readBattery() {
+        try {
+            rawBatteryLevel();
+        } catch(BluetoothException e) {
+            closeLink();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ping the device, and drop the link if it doesn't answer. The keepalive
+     * thread will then try to reconnect.
+     */
+    @Override
+    public boolean ping() {
+        if(!isConnected()) {
+            return false;
+        }
+
+        long sentAt = System.nanoTime();
+        boolean idle = isLinkIdle(sentAt);
+        try {
+            awaitResponse(ResponseReader.Request.PING, requestPing());
+        } catch(BluetoothException e) {
+            closeLink();
+            return false;
+        }
+        recordRoundTrip(ResponseReader.Request.PING, 0, sentAt, idle);
+        return true;
+    }
+
+    @Override
+    public ResponseFuture requestPing() throws BluetoothException {
+        if(!isConnected()) {
+            throw new BluetoothException("Unable to ping -- not connected");
+        }
+        return sendRequest(ResponseReader.Request.PING);
+    }
+
+    @Override
+    public void uploadSequence(int chan, Sequence sequence)
+            throws BluetoothException {
+        ResponseFuture future = requestSequence(chan, sequence);
+        int stored = awaitResponse(ResponseReader.Request.SEQUENCE, future);
+        if(stored != sequence.getStepCount()) {
+            throw new BluetoothException("Device stored " + stored +
+                    " of " + sequence.getStepCount() + " sequence steps");
+        }
+    }
+
+    /**
+     * Upload a sequence without waiting for the device to accept it.
+     *
+     * @return
+     *  A future that completes with the number of steps the device stored.
+     */
+    public synchronized ResponseFuture requestSequence(int chan,
+            Sequence sequence) throws BluetoothException {
+        if(!isConnected()) {
+            throw new BluetoothException(
+                    "Unable to upload sequence -- not connected");
+        }
+
+        checkChannel(chan);
+        ResponseFuture future = mReader.expect(
+                ResponseReader.Request.SEQUENCE);
+        mEncoder.appendSequence(chan, sequence);
+        // The device is now in charge of the channel, so we can't tell what
+        // it's showing any more, or restore it after a reconnect
+        mShadowState.forget(chan);
+        mDesiredState.forget(chan);
+        mWriter.discard(1 << chan);
+
+        try {
+            writeCommands();
+        } catch(BluetoothException e) {
+            mReader.withdraw(ResponseReader.Request.SEQUENCE, future);
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Write a request and register for its response. Only the write holds the
+     * client lock - the response is delivered by the reader thread, so other
+     * commands can go out while we wait for it.
+     */
+    private synchronized ResponseFuture sendRequest(
+            ResponseReader.Request request) throws BluetoothException {
+        if(!isConnected()) {
+            throw new BluetoothException("Not connected");
+        }
+
+        ResponseFuture future = mReader.expect(request);
+        switch(request) {
+        case PING:
+            mEncoder.appendPing();
+            break;
+        case VERSION:
+            mEncoder.appendVersionQuery();
+            break;
+        default:
+            mEncoder.appendBatteryQuery();
+            break;
+        }
+
+        try {
+            writeCommands();
+        } catch(BluetoothException e) {
+            mReader.withdraw(request, future);
+            throw e;
+        }
+        return future;
+    }
+
+    private int awaitResponse(ResponseReader.Request request,
+            ResponseFuture future) throws BluetoothException {
+        try {
+            return future.get(RESPONSE_TIMEOUT);
+        } catch(BluetoothException e) {
+            ResponseReader reader = mReader;
+            if(reader != null) {
+                reader.cancel(request, future);
+            }
+            throw e;
+        }
+    }
+
+    private boolean isLinkIdle(long now) {
+        return mLinkBudget.backlogNanos(now) == 0;
+    }
+
+    /**
+     * Feed a request's round trip to the link delay estimate. Only requests
+     * sent while the link was idle are counted, since time spent queued
+     * behind other commands isn't latency.
+     */
+    private void recordRoundTrip(ResponseReader.Request request, int value,
+            long sentAt, boolean idle) {
+        if(idle) {
+            mDelayEstimator.recordRoundTrip(System.nanoTime() - sentAt,
+                    REQUEST_LENGTH, responseLength(request, value));
+        }
+    }
+
+    /**
+     * @return
+     *  The length of the response to a request, up to the end of the line
+     *  that answered it.
+     */
+    private static int responseLength(ResponseReader.Request request,
+            int value) {
+        switch(request) {
+        case PING:
+            // "ACK\r\n"
+            return 5;
+        case VERSION:
+            if(value < CommandEncoder.BINARY_VERSION) {
+                // Older firmware rejects the query with "ERRCO56\r\n"
+                return 9;
+            }
+            // Otherwise "VER:n\r\n", like a battery reading
+            return 6 + CommandEncoder.numberLength(value);
+        default:
+            return 6 + CommandEncoder.numberLength(value);
+        }
+    }
+
+    /**
+     * Write everything queued in the command encoder to the transport in a
+     * single write and flush.
+     */
+    private void writeCommands() throws BluetoothException {
+        writeCommands(mEncoder);
+    }
+
+    private synchronized void writeCommands(CommandEncoder commands)
+            throws BluetoothException {
+        if(!isConnected()) {
+            commands.reset();
+            mShadowState.invalidate();
+            throw new BluetoothException("Not connected");
+        }
+
+        int length = commands.length();
+        long start = System.nanoTime();
+        CommandRecorder recorder = mRecorder;
+        if(recorder != null) {
+            recorder.recordOutgoing(commands.buffer(), 0, length, start);
+        }
+        try {
+            commands.writeTo(mOutStream);
+            mOutStream.flush();
+            mLinkBudget.recordWrite(length, start, System.nanoTime());
+            mMetrics.recordWrite(length);
+        } catch(IOException e) {
+            // We don't know how much of the batch made it to the device
+            mShadowState.invalidate();
+            mMetrics.recordWriteError();
+            // The link is dead, so have the reader drop it now rather than
+            // waiting for a ping to time out. Closing the link here would
+            // take the link lock while holding the client lock.
+            mReader.abort();
+            throw new BluetoothException("Unable to write to the HUD: " + e);
+        }
+    }
+
+    /**
+     * Open the transport and start reading responses from it.
+     *
+     * @param keepalive
+     *  The keepalive opening the link - if it has been stopped by the time
+     *  the transport opens, the link is closed again
+     * @param reconnect
+     *  True if the link is being reopened after it dropped
+     */
+    private void openLink(ConnectionKeepalive keepalive, boolean reconnect)
+            throws BluetoothException {
+        HudTransport transport;
+        synchronized(mLinkLock) {
+            transport = mTransport;
+        }
+        transport.open();
+
+        ResponseReader reader;
+        OutputStream outStream;
+        try {
+            outStream = transport.getOutputStream();
+            reader = new ResponseReader(transport.getInputStream(),
+                    mReaderListener, mMetrics);
+        } catch(IOException e) {
+            transport.close();
+            throw new BluetoothException("Unable to open streams: " + e);
+        }
+
+        synchronized(mLinkLock) {
+            if(mConnectionKeepalive != keepalive) {
+                transport.close();
+                throw new BluetoothException("Connection was cancelled");
+            }
+            CommandRecorder recorder = mRecorder;
+            if(recorder != null) {
+                recorder.recordLinkOpened();
+            }
+            reader.setRecorder(recorder);
+            synchronized(this) {
+                mShadowState.invalidate();
+                // The new link may have a different latency, and nothing
+                // written to the old one is still in flight
+                mDelayEstimator.reset();
+                mLinkBudget.clearBacklog();
+                // The firmware may have been replaced since the last link
+                setProtocol(CommandEncoder.Protocol.ASCII);
+                mOutStream = outStream;
+                mReader = reader;
+                mConnected = true;
+            }
+        }
+        new Thread(reader, "HudReader").start();
+        mMetrics.recordConnected(reconnect);
+        setState(State.CONNECTED);
+        mListener.onConnected();
+    }
+
+    /**
+     * Close the transport if it's open. This doesn't take the client lock,
+     * so it can be used to unblock a writer that is stuck on a dead link.
+     */
+    private void closeLink() {
+        synchronized(mLinkLock) {
+            if(!mConnected) {
+                return;
+            }
+            mConnected = false;
+            mMetrics.recordDisconnected();
+            mTransport.close();
+            mReader.close();
+            CommandRecorder recorder = mRecorder;
+            if(recorder != null) {
+                recorder.recordLinkClosed();
+            }
+        }
+
+        ConnectionKeepalive keepalive = mConnectionKeepalive;
+        if(keepalive != null) {
+            mMetrics.recordLinkLost();
+            keepalive.onLinkDropped();
+            setState(State.CONNECTING);
+        } else {
+            setState(State.DISCONNECTED);
+        }
+        mListener.onDisconnected();
+    }
+
+    private void stopKeepalive() {
+        ConnectionKeepalive keepalive;
+        synchronized(mLinkLock) {
+            keepalive = mConnectionKeepalive;
+            mConnectionKeepalive = null;
+        }
+        if(keepalive != null) {
+            keepalive.stop();
+        }
+    }
+
+    /**
+     * Move to a new state, notifying the state listeners, and complete or
+     * fail any connect futures that the change settles.
+     */
+    private void setState(State state) {
+        List<ResponseFuture> settled;
+        synchronized(mStateLock) {
+            if(mState == state) {
+                return;
+            }
+            mState = state;
+            for(StateListener listener : mStateListeners) {
+                listener.onStateChanged(state);
+            }
+
+            if(state == State.CONNECTING) {
+                return;
+            }
+            settled = new ArrayList<ResponseFuture>(mConnectFutures);
+            mConnectFutures.clear();
+        }
+
+        for(ResponseFuture future : settled) {
+            if(state == State.CONNECTED) {
+                future.complete(0);
+            } else {
+                future.fail(new BluetoothException("Connection was cancelled"));
+            }
+        }
+    }
+
+    private void checkChannel(int chan) throws BluetoothException {
+        if(chan < 0 || chan >= CHANNEL_COUNT) {
+            throw new BluetoothException("Invalid channel: " + chan);
+        }
+    }
+
+    private static void checkFrame(double[] values) {
+        if(values.length < CHANNEL_COUNT) {
+            throw new IllegalArgumentException("Expected " + CHANNEL_COUNT +
+                    " values, got " + values.length);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.openxc.hardware.hud;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HudMetrics collects counters and latency histograms for a HudClient.
+ *
+ * Everything is recorded with atomic operations and without allocating, so
+ * the metrics are always on. Readers call snapshot() to get an immutable copy
+ * that can be logged or shipped off to telemetry.
+ *
+ * Latencies are recorded in nanoseconds:
+ *
+ *  SET, FADE, FRAME - from the call until the command was written to the
+ *      transport, including any wait for the client lock
+ *  PING, BATTERY, SEQUENCE, VERSION - from the request being sent until
+ *      its response arrived
+ *
+ * Commands posted to the coalescing writer are tracked separately, by the
+ * time they spent queued before being written, overall and for each
+ * priority lane, along with the number that missed their deadline.
+ *
+ * Each call to connect() also records how long it took for the link to come
+ * up, and for the first LED command to be written after that. Each time the
+ * link drops and is reopened, the time from losing the link until the LEDs
+ * were restored to what the app last asked for is recorded as well.
+ */
+public class HudMetrics {
+    /**
+     * The kinds of command with a latency histogram.
+     */
+    public enum Command {
+        SET, FADE, FRAME, PING, BATTERY, SEQUENCE, VERSION
+    }
+
+    // Markers for the nanoTime() fields - System.nanoTime() can be negative,
+    // so these use the one value it is never expected to return
+    private static final long CONNECTED = Long.MIN_VALUE;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final LatencyHistogram[] mLatencies =
+            new LatencyHistogram[Command.values().length];
+    private final LatencyHistogram mQueueTime = new LatencyHistogram();
+    private final LatencyHistogram[] mLaneQueueTimes =
+            new LatencyHistogram[Priority.values().length];
+    private final LatencyHistogram mTimeToConnect = new LatencyHistogram();
+    private final LatencyHistogram mTimeToFirstFrame = new LatencyHistogram();
+    private final LatencyHistogram mTimeToRecover = new LatencyHistogram();
+    private final AtomicLong mConnectRequestedAt = new AtomicLong(NONE);
+    private final AtomicLong mFirstFramePendingAt = new AtomicLong(NONE);
+    private final AtomicLong mLinkLostAt = new AtomicLong(NONE);
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mFlushes = new AtomicLong();
+    private final AtomicLong mWriteErrors = new AtomicLong();
+    private final AtomicLong mParseErrors = new AtomicLong();
+    private final AtomicLong mSuppressed = new AtomicLong();
+    private final AtomicLong mSuperseded = new AtomicLong();
+    private final AtomicLong mDeadlineMisses = new AtomicLong();
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+    private final AtomicLong mConnectFailures = new AtomicLong();
+    private final AtomicLong mDisconnectedNanos = new AtomicLong();
+    private final AtomicLong mDisconnectedSince = new AtomicLong(CONNECTED);
+
+    public HudMetrics() {
+        for(int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+        for(int i = 0; i < mLaneQueueTimes.length; i++) {
+            mLaneQueueTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record a command that completed, given the System.nanoTime() at which
+     * it started.
+     */
+    public void recordCommand(Command command, long startNanos) {
+        long now = System.nanoTime();
+        mLatencies[command.ordinal()].record(now - startNanos);
+        if(command == Command.SET || command == Command.FADE
+                || command == Command.FRAME) {
+            recordFrame(now);
+        }
+    }
+
+    /**
+     * Record a posted command being written, given the System.nanoTime() at
+     * which it was first posted.
+     */
+    public void recordQueued(Priority priority, long postedNanos,
+            long writtenNanos) {
+        mQueueTime.record(writtenNanos - postedNanos);
+        mLaneQueueTimes[priority.ordinal()].record(writtenNanos - postedNanos);
+        recordFrame(writtenNanos);
+    }
+
+    /**
+     * Record a single write and flush to the transport.
+     */
+    public void recordWrite(int bytes) {
+        mBytesWritten.addAndGet(bytes);
+        mFlushes.incrementAndGet();
+    }
+
+    public void recordWriteError() {
+        mWriteErrors.incrementAndGet();
+    }
+
+    /**
+     * Record a line from the device that couldn't be parsed or matched.
+     */
+    public void recordParseError() {
+        mParseErrors.incrementAndGet();
+    }
+
+    /**
+     * Record a command that wasn't sent because it wouldn't change the LEDs.
+     */
+    public void recordSuppressed() {
+        mSuppressed.incrementAndGet();
+    }
+
+    /**
+     * Record a posted command that was replaced before it was sent.
+     */
+    public void recordSuperseded() {
+        mSuperseded.incrementAndGet();
+    }
+
+    /**
+     * Record a posted command that was dropped because its deadline passed
+     * before it could be sent.
+     */
+    public void recordDeadlineMissed() {
+        mDeadlineMisses.incrementAndGet();
+    }
+
+    /**
+     * Record the link coming up.
+     *
+     * @param reconnect
+     *  True if the link was reopened after it dropped
+     */
+    public void recordConnected(boolean reconnect) {
+        mConnects.incrementAndGet();
+        if(reconnect) {
+            mReconnects.incrementAndGet();
+        }
+        endDisconnected();
+
+        long requestedAt = mConnectRequestedAt.getAndSet(NONE);
+        if(requestedAt != NONE) {
+            mTimeToConnect.record(System.nanoTime() - requestedAt);
+        }
+    }
+
+    /**
+     * Record a call to connect(), which starts the clocks for the time to
+     * connect and the time to the first frame.
+     */
+    public void recordConnectRequested() {
+        long now = System.nanoTime();
+        mConnectRequestedAt.set(now);
+        mFirstFramePendingAt.set(now);
+        recordDisconnected();
+    }
+
+    /**
+     * Record a call to disconnect(), which stops counting time spent
+     * disconnected and abandons any connect() that hadn't finished.
+     */
+    public void recordDisconnectRequested() {
+        mConnectRequestedAt.set(NONE);
+        mFirstFramePendingAt.set(NONE);
+        mLinkLostAt.set(NONE);
+        endDisconnected();
+    }
+
+    public void recordConnectFailure() {
+        mConnectFailures.incrementAndGet();
+    }
+
+    /**
+     * Start counting time spent disconnected, if we aren't already. Only call
+     * this while a connection is wanted.
+     */
+    public void recordDisconnected() {
+        mDisconnectedSince.compareAndSet(CONNECTED, System.nanoTime());
+    }
+
+    /**
+     * Record the link dropping while a connection is wanted, which starts the
+     * clock for the time to recover. If the link drops again before the LEDs
+     * are restored, the clock keeps running from the first drop.
+     */
+    public void recordLinkLost() {
+        mLinkLostAt.compareAndSet(NONE, System.nanoTime());
+    }
+
+    /**
+     * Record the LEDs being restored after the link dropped.
+     *
+     * @param restoredAt
+     *  The System.nanoTime() at which the restored state is expected to
+     *  reach the device
+     */
+    public void recordRecovered(long restoredAt) {
+        long lostAt = mLinkLostAt.getAndSet(NONE);
+        if(lostAt != NONE) {
+            mTimeToRecover.record(restoredAt - lostAt);
+        }
+    }
+
+    private void endDisconnected() {
+        long since = mDisconnectedSince.getAndSet(CONNECTED);
+        if(since != CONNECTED) {
+            mDisconnectedNanos.addAndGet(System.nanoTime() - since);
+        }
+    }
+
+    private void recordFrame(long now) {
+        // Check first so the common case doesn't write to the shared field
+        if(mFirstFramePendingAt.get() == NONE) {
+            return;
+        }
+        long requestedAt = mFirstFramePendingAt.getAndSet(NONE);
+        if(requestedAt != NONE) {
+            mTimeToFirstFrame.record(now - requestedAt);
+        }
+    }
+
+    /**
+     * @return an immutable copy of the current metrics.
+     */
+    public Snapshot snapshot() {
+        LatencyHistogram.Snapshot[] latencies =
+                new LatencyHistogram.Snapshot[mLatencies.length];
+        for(int i = 0; i < latencies.length; i++) {
+            latencies[i] = mLatencies[i].snapshot();
+        }
+
+        long disconnected = mDisconnectedNanos.get();
+        long since = mDisconnectedSince.get();
+        if(since != CONNECTED) {
+            disconnected += System.nanoTime() - since;
+        }
+
+        LatencyHistogram.Snapshot[] laneQueueTimes =
+                new LatencyHistogram.Snapshot[mLaneQueueTimes.length];
+        for(int i = 0; i < laneQueueTimes.length; i++) {
+            laneQueueTimes[i] = mLaneQueueTimes[i].snapshot();
+        }
+
+        return new Snapshot(latencies, mQueueTime.snapshot(), laneQueueTimes,
+                mTimeToConnect.snapshot(), mTimeToFirstFrame.snapshot(),
+                mTimeToRecover.snapshot(), mBytesWritten.get(),
+                mFlushes.get(), mWriteErrors.get(), mParseErrors.get(),
+                mSuppressed.get(), mSuperseded.get(), mDeadlineMisses.get(),
+                mConnects.get(), mReconnects.get(), mConnectFailures.get(),
+                disconnected);
+    }
+
+    /**
+     * An immutable copy of a HudMetrics.
+     */
+    public static class Snapshot {
+        private final LatencyHistogram.Snapshot[] mLatencies;
+        private final LatencyHistogram.Snapshot mQueueTime;
+        private final LatencyHistogram.Snapshot[] mLaneQueueTimes;
+        private final LatencyHistogram.Snapshot mTimeToConnect;
+        private final LatencyHistogram.Snapshot mTimeToFirstFrame;
+        private final LatencyHistogram.Snapshot mTimeToRecover;
+        private final long mBytesWritten;
+        private final long mFlushes;
+        private final long mWriteErrors;
+        private final long mParseErrors;
+        private final long mSuppressed;
+        private final long mSuperseded;
+        private final long mDeadlineMisses;
+        private final long mConnects;
+        private final long mReconnects;
+        private final long mConnectFailures;
+        private final long mDisconnectedNanos;
+
+        Snapshot(LatencyHistogram.Snapshot[] latencies,
+                LatencyHistogram.Snapshot queueTime,
+                LatencyHistogram.Snapshot[] laneQueueTimes,
+                LatencyHistogram.Snapshot timeToConnect,
+                LatencyHistogram.Snapshot timeToFirstFrame,
+                LatencyHistogram.Snapshot timeToRecover, long bytesWritten,
+                long flushes, long writeErrors, long parseErrors,
+                long suppressed, long superseded, long deadlineMisses,
+                long connects, long reconnects, long connectFailures,
+                long disconnectedNanos) {
+            mLatencies = latencies;
+            mQueueTime = queueTime;
+            mLaneQueueTimes = laneQueueTimes;
+            mTimeToConnect = timeToConnect;
+            mTimeToFirstFrame = timeToFirstFrame;
+            mTimeToRecover = timeToRecover;
+            mBytesWritten = bytesWritten;
+            mFlushes = flushes;
+            mWriteErrors = writeErrors;
+            mParseErrors = parseErrors;
+            mSuppressed = suppressed;
+            mSuperseded = superseded;
+            mDeadlineMisses = deadlineMisses;
+            mConnects = connects;
+            mReconnects = reconnects;
+            mConnectFailures = connectFailures;
+            mDisconnectedNanos = disconnectedNanos;
+        }
+
+        public LatencyHistogram.Snapshot getLatency(Command command) {
+            return mLatencies[command.ordinal()];
+        }
+
+        /**
+         * @return how long posted commands waited before being written.
+         */
+        public LatencyHistogram.Snapshot getQueueTime() {
+            return mQueueTime;
+        }
+
+        /**
+         * @return
+         *  How long commands posted in the priority's lane waited before
+         *  being written.
+         */
+        public LatencyHistogram.Snapshot getQueueTime(Priority priority) {
+            return mLaneQueueTimes[priority.ordinal()];
+        }
+
+        /**
+         * @return how long each connect() took to open the link.
+         */
+        public LatencyHistogram.Snapshot getTimeToConnect() {
+            return mTimeToConnect;
+        }
+
+        /**
+         * @return
+         *  How long each connect() took until the first LED command was
+         *  written.
+         */
+        public LatencyHistogram.Snapshot getTimeToFirstFrame() {
+            return mTimeToFirstFrame;
+        }
+
+        /**
+         * @return
+         *  How long it took after each dropped link until the LEDs were
+         *  expected to show what the app last asked for again.
+         */
+        public LatencyHistogram.Snapshot getTimeToRecover() {
+            return mTimeToRecover;
+        }
+
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        public long getFlushCount() {
+            return mFlushes;
+        }
+
+        public long getWriteErrorCount() {
+            return mWriteErrors;
+        }
+
+        public long getParseErrorCount() {
+            return mParseErrors;
+        }
+
+        public long getSuppressedCount() {
+            return mSuppressed;
+        }
+
+        public long getSupersededCount() {
+            return mSuperseded;
+        }
+
+        /**
+         * @return
+         *  The number of posted commands dropped because they couldn't be
+         *  sent before their deadline.
+         */
+        public long getDeadlineMissCount() {
+            return mDeadlineMisses;
+        }
+
+        public long getConnectCount() {
+            return mConnects;
+        }
+
+        public long getReconnectCount() {
+            return mReconnects;
+        }
+
+        public long getConnectFailureCount() {
+            return mConnectFailures;
+        }
+
+        /**
+         * @return
+         *  The total time the link was down while a connection was wanted, in
+         *  nanoseconds, including the current outage.
+         */
+        public long getDisconnectedNanos() {
+            return mDisconnectedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for(Command command : Command.values()) {
+                builder.append(command).append(": ")
+                    .append(getLatency(command)).append('\n');
+            }
+            builder.append("QUEUED: ").append(mQueueTime).append('\n');
+            for(Priority priority : Priority.values()) {
+                builder.append("QUEUED ").append(priority).append(": ")
+                    .append(getQueueTime(priority)).append('\n');
+            }
+            builder.append("CONNECT: ").append(mTimeToConnect).append('\n')
+                .append("FIRST FRAME: ").append(mTimeToFirstFrame).append('\n')
+                .append("RECOVERY: ").append(mTimeToRecover).append('\n')
+                .append("bytes=").append(mBytesWritten)
+                .append(" flushes=").append(mFlushes)
+                .append(" writeErrors=").append(mWriteErrors)
+                .append(" parseErrors=").append(mParseErrors)
+                .append(" suppressed=").append(mSuppressed)
+                .append(" superseded=").append(mSuperseded)
+                .append(" deadlineMisses=").append(mDeadlineMisses)
+                .append(" connects=").append(mConnects)
+                .append(" reconnects=").append(mReconnects)
+                .append(" connectFailures=").append(mConnectFailures)
+                .append(" disconnectedMs=")
+                .append(mDisconnectedNanos / 1000000);
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.openxc.hardware.hud;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A HudTransport carries the byte streams between the host and a HUD.
+ *
+ * The HudClient runs the command protocol, keepalive and reconnect logic on
+ * top of a transport, so the same driver code can talk to a HUD over
+ * Bluetooth RFCOMM, to a simulator over TCP, or to an in-memory stand-in.
+ *
+ * A transport may be opened again after it is closed, which is how the
+ * HudClient reconnects after the link drops.
+ */
+public interface HudTransport {
+    /**
+     * A Factory creates the transport for a device address, e.g. a Bluetooth
+     * MAC address or a "host:port" pair.
+     */
+    public interface Factory {
+        /**
+         * This may block while the device is located, but should not open
+         * the connection.
+         */
+        public HudTransport create(String address) throws BluetoothException;
+    }
+
+    /**
+     * Open the connection to the device, blocking until it is ready.
+     */
+    public void open() throws BluetoothException;
+
+    /**
+     * @return the stream of bytes from the device - only valid while open.
+     */
+    public InputStream getInputStream() throws IOException;
+
+    /**
+     * @return the stream of bytes to the device - only valid while open.
+     */
+    public OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Close the connection. Any blocked reads or writes on the streams
+     * should fail once the transport is closed.
+     */
+    public void close();
+}
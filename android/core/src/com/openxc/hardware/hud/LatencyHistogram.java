@@ -0,0 +1,142 @@
+package com.openxc.hardware.hud;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram records durations into log-linear buckets, in the style
+ * of an HDR histogram.
+ *
+ * Each power of two is split into 16 linear sub-buckets, so any recorded
+ * value is reported within about 6% of its true value, from nanoseconds up
+ * to minutes, with a fixed amount of memory. Recording is lock-free and
+ * doesn't allocate, so it is cheap enough to leave on in production.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT =
+            (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record a duration, in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        mCounts.incrementAndGet(bucketIndex(value));
+        mTotal.addAndGet(value);
+
+        long max;
+        while(value > (max = mMax.get())) {
+            if(mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Take a consistent-enough copy of the histogram. Values recorded while
+     * the snapshot is taken may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long totalCount = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            totalCount += counts[i];
+        }
+        return new Snapshot(counts, totalCount, mTotal.get(), mMax.get());
+    }
+
+    static int bucketIndex(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+                & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls into the bucket.
+     */
+    static long highestValueInBucket(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * An immutable copy of a LatencyHistogram.
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            mCounts = counts;
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the mean duration in nanoseconds, or 0 if empty.
+         */
+        public long getMean() {
+            return mCount == 0 ? 0 : mTotal / mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @param percentile
+         *  The percentile to report, e.g. 99.9
+         * @return
+         *  The duration in nanoseconds that the given percentage of samples
+         *  were at or below, or 0 if empty.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if(mCount == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            rank = Math.max(1, Math.min(mCount, rank));
+            long seen = 0;
+            for(int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if(seen >= rank) {
+                    return Math.min(mMax, highestValueInBucket(i));
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                + " mean=" + getMean()
+                + " p50=" + getValueAtPercentile(50)
+                + " p99=" + getValueAtPercentile(99)
+                + " p99.9=" + getValueAtPercentile(99.9)
+                + " max=" + mMax + " (ns)";
+        }
+    }
+}
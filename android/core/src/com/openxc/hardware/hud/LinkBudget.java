@@ -0,0 +1,140 @@
+package com.openxc.hardware.hud;
+
+/**
+ * The LinkBudget models how fast bytes drain from the host to the HUD.
+ *
+ * The HUD's serial link runs at a fixed baud rate (57600 baud, or about 5.7KB/s
+ * with 10 bits per byte on the wire), which is much slower than the
+ * Bluetooth stack will accept writes. Anything written faster than that just
+ * waits in the RFCOMM buffers, so latency keeps growing under load. The budget
+ * keeps track of when everything written so far should have reached the
+ * device, and the CoalescingWriter holds back new batches until that backlog
+ * is small - in the meantime, newer commands replace older ones instead of
+ * piling up.
+ *
+ * The drain rate starts at the nominal baud rate and is corrected from write
+ * timing: when a write blocks, the stack's buffers are full and the time it
+ * took is a measurement of the real rate. When writes return immediately, the
+ * estimate relaxes back towards the nominal rate.
+ *
+ * Each priority lane has its own limit on the backlog: ALERT commands are
+ * never held back, and AMBIENT commands only go out while the backlog is a
+ * fraction of the limit for NORMAL commands, so background effects can't
+ * build up a queue that an alert would have to wait behind.
+ */
+public class LinkBudget {
+    private static final int BITS_PER_BYTE = 10;
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+    // A write that takes longer than this was blocked on a full buffer
+    private static final long BLOCKED_WRITE_NANOS = 2L * 1000 * 1000;
+    private static final long DEFAULT_MAX_BACKLOG_NANOS = 20L * 1000 * 1000;
+    // AMBIENT commands may only fill this fraction of the backlog, as 1/n
+    private static final int AMBIENT_SHARE = 4;
+    // Weight of a new measurement in the drain rate estimate, as 1/2^n
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private final long mNominalNanosPerByte;
+    private long mNanosPerByte;
+    private long mDrainedAt;
+    private long mMaxBacklogNanos = DEFAULT_MAX_BACKLOG_NANOS;
+
+    public LinkBudget(int baudRate) {
+        mNominalNanosPerByte = NANOS_PER_SECOND * BITS_PER_BYTE / baudRate;
+        mNanosPerByte = mNominalNanosPerByte;
+        mDrainedAt = System.nanoTime();
+    }
+
+    /**
+     * Set how much unsent data (measured in time to drain) may be in flight
+     * before new batches are held back.
+     */
+    public synchronized void setMaxBacklog(long nanos) {
+        mMaxBacklogNanos = nanos;
+    }
+
+    /**
+     * Record a write to the link.
+     *
+     * @param bytes
+     *  The number of bytes written
+     * @param startNanos
+     *  System.nanoTime() before the write
+     * @param endNanos
+     *  System.nanoTime() after the write and flush returned
+     */
+    public synchronized void recordWrite(int bytes, long startNanos,
+            long endNanos) {
+        if(bytes <= 0) {
+            return;
+        }
+
+        long elapsed = endNanos - startNanos;
+        long sample;
+        if(elapsed > BLOCKED_WRITE_NANOS) {
+            sample = Math.max(mNominalNanosPerByte, elapsed / bytes);
+        } else {
+            sample = mNominalNanosPerByte;
+        }
+        mNanosPerByte += (sample - mNanosPerByte) >> SMOOTHING_SHIFT;
+
+        // nanoTime() values may be negative, so only compare differences
+        if(mDrainedAt - startNanos < 0) {
+            mDrainedAt = startNanos;
+        }
+        mDrainedAt += bytes * mNanosPerByte;
+    }
+
+    /**
+     * Forget the backlog, e.g. when the link is reopened, since whatever was
+     * still in flight on the old link is gone.
+     */
+    public synchronized void clearBacklog() {
+        mDrainedAt = System.nanoTime();
+    }
+
+    /**
+     * @return
+     *  How long until the backlog is small enough to send another batch, in
+     *  nanoseconds - 0 if a batch can go out now.
+     */
+    public synchronized long delayNanos(long nowNanos) {
+        return Math.max(0, backlogNanos(nowNanos) - mMaxBacklogNanos);
+    }
+
+    /**
+     * @return
+     *  How long until the backlog is small enough to send a batch of
+     *  commands of the given priority, in nanoseconds - 0 if they can go out
+     *  now.
+     */
+    public synchronized long delayNanos(long nowNanos, Priority priority) {
+        switch(priority) {
+        case ALERT:
+            return 0;
+        case AMBIENT:
+            return Math.max(0, backlogNanos(nowNanos)
+                    - mMaxBacklogNanos / AMBIENT_SHARE);
+        default:
+            return delayNanos(nowNanos);
+        }
+    }
+
+    /**
+     * @return
+     *  The estimated time until everything written so far reaches the device.
+     */
+    public synchronized long backlogNanos(long nowNanos) {
+        return Math.max(0, mDrainedAt - nowNanos);
+    }
+
+    /**
+     * @return the current estimate of the link speed in bytes per second.
+     */
+    public synchronized long bytesPerSecond() {
+        return NANOS_PER_SECOND / mNanosPerByte;
+    }
+
+    public synchronized long nanosPerByte() {
+        return mNanosPerByte;
+    }
+}
@@ -0,0 +1,122 @@
+package com.openxc.hardware.hud;
+
+/**
+ * The LinkDelayEstimator predicts when a command written now will reach the
+ * HUD's firmware.
+ *
+ * The firmware starts a fade when the command arrives, not when it was sent,
+ * so fades sent back to back - or sent while the link is busy - start at
+ * different times and drift out of phase. The delay has three parts:
+ *
+ *  the latency of the Bluetooth link itself, which is the same for every
+ *      command
+ *  the backlog still draining from earlier writes, which the LinkBudget
+ *      tracks from write timings
+ *  the time to serialize the command, and anything ahead of it in the same
+ *      write, at the link's current byte rate (also from the LinkBudget)
+ *
+ * The latency is estimated from the round trips of pings, battery queries
+ * and version queries sent while the link was idle: the round trip less the
+ * time to serialize the request and its response, halved. Samples go into an
+ * exponentially weighted moving average, like the budget's byte rate.
+ *
+ * The writers use the estimate to stretch or shrink each fade by how early
+ * or late it will arrive, so that fades meant to run together end together,
+ * and the Animator uses it to send commands ahead of time.
+ */
+public class LinkDelayEstimator {
+    private static final double NANOS_PER_MILLI = 1000 * 1000;
+    // Weight of a new sample in the latency estimate, as 1/2^n
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private final LinkBudget mBudget;
+    private long mLatencyNanos;
+    private long mSamples;
+
+    public LinkDelayEstimator(LinkBudget budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Record the round trip of a request sent while the link had no backlog.
+     *
+     * @param roundTripNanos
+     *  The time from writing the request to its response arriving
+     * @param requestBytes
+     *  The length of the request
+     * @param responseBytes
+     *  The length of the response, up to the end of the line that answered
+     *  the request
+     */
+    public synchronized void recordRoundTrip(long roundTripNanos,
+            int requestBytes, int responseBytes) {
+        long serialization = (requestBytes + responseBytes)
+                * mBudget.nanosPerByte();
+        long sample = Math.max(0, (roundTripNanos - serialization) / 2);
+        if(mSamples == 0) {
+            mLatencyNanos = sample;
+        } else {
+            mLatencyNanos += (sample - mLatencyNanos) >> SMOOTHING_SHIFT;
+        }
+        mSamples++;
+    }
+
+    /**
+     * @return
+     *  The estimated one way latency of the link, not counting serialization,
+     *  or 0 until there has been a round trip to measure.
+     */
+    public synchronized long getLatencyNanos() {
+        return mLatencyNanos;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    /**
+     * Forget the latency, e.g. when the link is reopened and may take a
+     * different route.
+     */
+    public synchronized void reset() {
+        mLatencyNanos = 0;
+        mSamples = 0;
+    }
+
+    /**
+     * @param nowNanos
+     *  System.nanoTime() when the write starts
+     * @param bytes
+     *  The number of bytes written up to and including the command
+     * @return
+     *  The estimated time until the command reaches the firmware, in
+     *  nanoseconds.
+     */
+    public long arrivalDelayNanos(long nowNanos, int bytes) {
+        long latency = getLatencyNanos();
+        return latency + mBudget.backlogNanos(nowNanos)
+                + bytes * mBudget.nanosPerByte();
+    }
+
+    /**
+     * Adjust a fade's duration for when it will reach the firmware, so that
+     * it ends when it would have if it had started on time - shorter if it
+     * will arrive late, longer if it will arrive early.
+     *
+     * @param duration
+     *  The fade duration, in ms
+     * @param startNanos
+     *  When the fade should start, from System.nanoTime()
+     * @param nowNanos
+     *  System.nanoTime() when the write starts
+     * @param bytes
+     *  The number of bytes written up to and including the command
+     * @return the adjusted duration in ms, never negative.
+     */
+    public long compensate(long duration, long startNanos, long nowNanos,
+            int bytes) {
+        long arrival = nowNanos + arrivalDelayNanos(nowNanos, bytes);
+        long late = Math.round((arrival - startNanos) / NANOS_PER_MILLI);
+        return Math.max(0, duration - late);
+    }
+}
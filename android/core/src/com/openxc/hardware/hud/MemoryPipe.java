@@ -0,0 +1,161 @@
+package com.openxc.hardware.hud;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A MemoryPipe is a bounded, blocking byte buffer with an InputStream on one
+ * end and an OutputStream on the other.
+ *
+ * Unlike java.io.PipedInputStream, it doesn't care which threads read and
+ * write. Writes block while the buffer is full, so the capacity can be used to
+ * model a device's receive buffer. Closing the output lets the reader drain
+ * what is left and then see end of stream; closing the input makes any
+ * further writes fail.
+ */
+public class MemoryPipe {
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final byte[] mBuffer;
+    private int mHead;
+    private int mCount;
+    private boolean mInputClosed;
+    private boolean mOutputClosed;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            if(MemoryPipe.this.read(single, 0, 1) < 0) {
+                return -1;
+            }
+            return single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException {
+            return MemoryPipe.this.read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() {
+            return MemoryPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeInput();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            MemoryPipe.this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+                throws IOException {
+            MemoryPipe.this.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            closeOutput();
+        }
+    };
+
+    public MemoryPipe() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MemoryPipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    public synchronized int available() {
+        return mCount;
+    }
+
+    public synchronized void closeInput() {
+        mInputClosed = true;
+        notifyAll();
+    }
+
+    public synchronized void closeOutput() {
+        mOutputClosed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] buffer, int offset, int length)
+            throws IOException {
+        if(length == 0) {
+            return 0;
+        }
+
+        while(mCount == 0 && !mOutputClosed && !mInputClosed) {
+            await();
+        }
+        if(mInputClosed) {
+            throw new IOException("Pipe closed");
+        }
+        if(mCount == 0) {
+            return -1;
+        }
+
+        int read = 0;
+        while(read < length && mCount > 0) {
+            int chunk = Math.min(Math.min(length - read, mCount),
+                    mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, buffer, offset + read, chunk);
+            mHead = (mHead + chunk) % mBuffer.length;
+            mCount -= chunk;
+            read += chunk;
+        }
+        notifyAll();
+        return read;
+    }
+
+    private synchronized void write(byte[] buffer, int offset, int length)
+            throws IOException {
+        while(length > 0) {
+            while(mCount == mBuffer.length && !mInputClosed
+                    && !mOutputClosed) {
+                await();
+            }
+            if(mInputClosed || mOutputClosed) {
+                throw new IOException("Pipe closed");
+            }
+
+            int tail = (mHead + mCount) % mBuffer.length;
+            int chunk = Math.min(Math.min(length, mBuffer.length - mCount),
+                    mBuffer.length - tail);
+            System.arraycopy(buffer, offset, mBuffer, tail, chunk);
+            mCount += chunk;
+            offset += chunk;
+            length -= chunk;
+            notifyAll();
+        }
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
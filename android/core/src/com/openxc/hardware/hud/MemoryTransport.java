@@ -0,0 +1,98 @@
+package com.openxc.hardware.hud;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The MemoryTransport connects the host to an in-process stand-in for the HUD,
+ * such as a firmware simulator, through a pair of MemoryPipes.
+ *
+ * Each time the transport is opened it creates fresh pipes and hands the
+ * device's ends to the Peer, so reconnects can be exercised as well.
+ */
+public class MemoryTransport implements HudTransport {
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The device end of the transport.
+     */
+    public interface Peer {
+        /**
+         * Called each time the transport is opened.
+         *
+         * @param fromHost
+         *  The bytes written by the host
+         * @param toHost
+         *  The stream the device should write its responses to
+         */
+        public void onOpen(InputStream fromHost, OutputStream toHost)
+                throws BluetoothException;
+    }
+
+    private final Peer mPeer;
+    private final int mCapacity;
+    private MemoryPipe mToDevice;
+    private MemoryPipe mToHost;
+
+    public MemoryTransport(Peer peer) {
+        this(peer, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *  The size of the buffer in each direction, in bytes
+     */
+    public MemoryTransport(Peer peer, int capacity) {
+        mPeer = peer;
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return
+     *  A factory that returns this transport for any address.
+     */
+    public Factory asFactory() {
+        return new Factory() {
+            public HudTransport create(String address) {
+                return MemoryTransport.this;
+            }
+        };
+    }
+
+    public void open() throws BluetoothException {
+        MemoryPipe toDevice = new MemoryPipe(mCapacity);
+        MemoryPipe toHost = new MemoryPipe(mCapacity);
+        synchronized(this) {
+            close();
+            mToDevice = toDevice;
+            mToHost = toHost;
+        }
+        mPeer.onOpen(toDevice.getInputStream(), toHost.getOutputStream());
+    }
+
+    public synchronized InputStream getInputStream() throws IOException {
+        if(mToHost == null) {
+            throw new IOException("Transport is not open");
+        }
+        return mToHost.getInputStream();
+    }
+
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if(mToDevice == null) {
+            throw new IOException("Transport is not open");
+        }
+        return mToDevice.getOutputStream();
+    }
+
+    public synchronized void close() {
+        if(mToDevice != null) {
+            // Like closing a socket: the device sees the end of the stream
+            // and the host's pending reads and writes fail
+            mToDevice.closeOutput();
+            mToHost.closeInput();
+            mToDevice = null;
+            mToHost = null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.openxc.hardware.hud;
+
+/**
+ * The lane a posted command is sent in.
+ *
+ * The CoalescingWriter sends pending commands highest priority first. ALERT
+ * commands skip the link budget, so they go out as soon as the writer wakes
+ * up instead of waiting for a backlog of lower priority traffic to drain.
+ */
+public enum Priority {
+    /** Warnings that must show straight away, e.g. a collision alert. */
+    ALERT,
+    /** Ordinary updates - the default. */
+    NORMAL,
+    /** Background effects, e.g. animations, that can be late or dropped. */
+    AMBIENT
+}
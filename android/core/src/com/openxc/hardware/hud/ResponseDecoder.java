@@ -0,0 +1,255 @@
+package com.openxc.hardware.hud;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The ResponseDecoder splits the bytes from the HUD into lines and
+ * classifies each one in place, without allocating.
+ *
+ * The firmware prints:
+ *
+ *  "OK" - after a SET
+ *  "ACK" - after a PING
+ *  "VAL:n" - the raw battery level, after a BATTERY query
+ *  "SEQ:n" - the number of steps stored, after a SEQUENCE
+ *  "VER:n" - the protocol version, after a VERSION query
+ *  "ERRCO<hex>" - an unknown command, given as the hex code of its first
+ *      byte. Every PING is followed by "ERRCO50", because the 'P' case falls
+ *      through to the error handler.
+ *  "ERRCH" - a channel number out of range
+ *  "START" - the device has booted
+ *
+ * each terminated by "\r\n". Numbers are parsed straight from the bytes.
+ *
+ * The decoder keeps a partial line between calls, so bytes can be fed to it
+ * in whatever chunks they arrive. It also resynchronizes on garbage: a
+ * control or non-ASCII byte (e.g. line noise while the RN-42 connects)
+ * discards the line so far, so a response after the noise is still
+ * recognized, and a line too long to be a response is discarded up to its
+ * terminator. Either way the line is reported as UNKNOWN.
+ *
+ * Decoders are not thread safe.
+ */
+public class ResponseDecoder {
+    public enum Type {
+        OK, ACK, VALUE, SEQUENCE, VERSION, COMMAND_ERROR, CHANNEL_ERROR,
+        START, UNKNOWN
+    }
+
+    /**
+     * The value reported for a response whose number couldn't be parsed, and
+     * for responses that don't carry one.
+     */
+    public static final int INVALID = -1;
+
+    /**
+     * Longer than any response the firmware sends.
+     */
+    public static final int MAX_LINE_LENGTH = 32;
+
+    /**
+     * Receives each line as it is decoded.
+     */
+    public interface Handler {
+        /**
+         * @param value
+         *  The number from a VALUE, SEQUENCE or VERSION line, the command
+         *  code from a COMMAND_ERROR line, or INVALID
+         */
+        public void onResponse(Type type, int value);
+    }
+
+    private static final byte[] OK = ascii("OK");
+    private static final byte[] ACK = ascii("ACK");
+    private static final byte[] START = ascii("START");
+    private static final byte[] CHANNEL_ERROR = ascii("ERRCH");
+    private static final byte[] COMMAND_ERROR = ascii("ERRCO");
+    private static final byte[] VALUE = ascii("VAL:");
+    private static final byte[] SEQUENCE = ascii("SEQ:");
+    private static final byte[] VERSION = ascii("VER:");
+    // Enough digits for any value the firmware prints, without overflowing
+    private static final int MAX_DIGITS = 9;
+
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+    private int mLength;
+    private boolean mCorrupt;
+    private long mDiscardedBytes;
+
+    /**
+     * Decode a chunk of bytes, calling the handler for each complete line.
+     */
+    public void decode(byte[] bytes, int offset, int length,
+            Handler handler) {
+        int end = offset + length;
+        for(int i = offset; i < end; i++) {
+            decode(bytes[i], handler);
+        }
+    }
+
+    /**
+     * Decode the bytes remaining in the buffer, leaving it empty.
+     */
+    public void decode(ByteBuffer buffer, Handler handler) {
+        if(buffer.hasArray()) {
+            decode(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining(), handler);
+            buffer.position(buffer.limit());
+        } else {
+            while(buffer.hasRemaining()) {
+                decode(buffer.get(), handler);
+            }
+        }
+    }
+
+    /**
+     * @return
+     *  The text of the line being reported, for logging UNKNOWN lines. This
+     *  allocates, and is only valid during a call to the handler.
+     */
+    public String getLine() {
+        char[] chars = new char[mLength];
+        for(int i = 0; i < mLength; i++) {
+            chars[i] = (char) mLine[i];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the number of bytes thrown away while resynchronizing.
+     */
+    public long getDiscardedBytes() {
+        return mDiscardedBytes;
+    }
+
+    /**
+     * Forget any partial line, e.g. when a new connection starts.
+     */
+    public void reset() {
+        mLength = 0;
+        mCorrupt = false;
+    }
+
+    private void decode(byte b, Handler handler) {
+        if(b == '\n' || b == '\r') {
+            if(mCorrupt) {
+                handler.onResponse(Type.UNKNOWN, INVALID);
+            } else if(mLength > 0) {
+                classify(handler);
+            }
+            reset();
+        } else if(b < ' ' || b > '~') {
+            // Noise - start again after it
+            mDiscardedBytes += mLength + 1;
+            mLength = 0;
+            mCorrupt = true;
+        } else if(mLength == mLine.length) {
+            // Too long to be a response, so drop the rest of the line
+            mDiscardedBytes++;
+            mCorrupt = true;
+        } else {
+            if(mCorrupt && mLength == 0 && b != ' ') {
+                // A printable byte after noise may be the start of a
+                // response, so give the line another chance
+                mCorrupt = false;
+            }
+            mLine[mLength++] = b;
+        }
+    }
+
+    private void classify(Handler handler) {
+        int start = 0;
+        int end = mLength;
+        while(start < end && mLine[start] == ' ') {
+            start++;
+        }
+        while(end > start && mLine[end - 1] == ' ') {
+            end--;
+        }
+        if(start == end) {
+            return;
+        }
+
+        if(matches(OK, start, end, true)) {
+            handler.onResponse(Type.OK, INVALID);
+        } else if(matches(ACK, start, end, true)) {
+            handler.onResponse(Type.ACK, INVALID);
+        } else if(matches(VALUE, start, end, false)) {
+            handler.onResponse(Type.VALUE,
+                    parseDecimal(start + VALUE.length, end));
+        } else if(matches(SEQUENCE, start, end, false)) {
+            handler.onResponse(Type.SEQUENCE,
+                    parseDecimal(start + SEQUENCE.length, end));
+        } else if(matches(VERSION, start, end, false)) {
+            handler.onResponse(Type.VERSION,
+                    parseDecimal(start + VERSION.length, end));
+        } else if(matches(CHANNEL_ERROR, start, end, true)) {
+            handler.onResponse(Type.CHANNEL_ERROR, INVALID);
+        } else if(matches(COMMAND_ERROR, start, end, false)) {
+            handler.onResponse(Type.COMMAND_ERROR,
+                    parseHex(start + COMMAND_ERROR.length, end));
+        } else if(matches(START, start, end, true)) {
+            handler.onResponse(Type.START, INVALID);
+        } else {
+            handler.onResponse(Type.UNKNOWN, INVALID);
+        }
+    }
+
+    private boolean matches(byte[] token, int start, int end,
+            boolean whole) {
+        int length = end - start;
+        if(length < token.length || (whole && length != token.length)) {
+            return false;
+        }
+        for(int i = 0; i < token.length; i++) {
+            if(mLine[start + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int parseDecimal(int start, int end) {
+        if(start == end || end - start > MAX_DIGITS) {
+            return INVALID;
+        }
+        int value = 0;
+        for(int i = start; i < end; i++) {
+            int digit = mLine[i] - '0';
+            if(digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private int parseHex(int start, int end) {
+        if(start == end || end - start > 2) {
+            return INVALID;
+        }
+        int value = 0;
+        for(int i = start; i < end; i++) {
+            byte b = mLine[i];
+            int digit;
+            if(b >= '0' && b <= '9') {
+                digit = b - '0';
+            } else if(b >= 'A' && b <= 'F') {
+                digit = b - 'A' + 10;
+            } else if(b >= 'a' && b <= 'f') {
+                digit = b - 'a' + 10;
+            } else {
+                return INVALID;
+            }
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    private static byte[] ascii(String token) {
+        byte[] bytes = new byte[token.length()];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) token.charAt(i);
+        }
+        return bytes;
+    }
+}
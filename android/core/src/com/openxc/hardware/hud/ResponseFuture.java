@@ -0,0 +1,151 @@
+package com.openxc.hardware.hud;
+
+/**
+ * A ResponseFuture holds the result of a command that the HUD answers, such as
+ * a ping or a battery level query, or of a request to connect.
+ *
+ * The future is completed by the ResponseReader thread when the matching line
+ * arrives from the device. Callers can either block on get() or register a
+ * Listener to be called back from the reader thread.
+ */
+public class ResponseFuture {
+    /**
+     * Callbacks are made from the thread that completes the future, so they
+     * should return quickly.
+     */
+    public interface Listener {
+        public void onResponse(int value);
+        public void onError(BluetoothException e);
+    }
+
+    private final long mCreatedAt = System.nanoTime();
+    // Guarded by the ResponseReader's lock
+    private boolean mAbandoned;
+    private long mDiscardAt;
+    private boolean mDone;
+    private int mValue;
+    private BluetoothException mError;
+    private Listener mListener;
+
+    /**
+     * Wait for the response.
+     *
+     * @param timeout
+     *  The maximum time to wait, in ms
+     * @return
+     *  The value carried by the response, e.g. the raw battery level. Responses
+     *  without a value (like the ping ACK) return 0.
+     * @throws BluetoothException
+     *  If the request failed or no response arrived before the timeout.
+     */
+    public synchronized int get(long timeout) throws BluetoothException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(!mDone) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) {
+                throw new BluetoothException("Timed out waiting for response");
+            }
+            try {
+                wait(remaining);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BluetoothException(
+                        "Interrupted while waiting for response");
+            }
+        }
+
+        if(mError != null) {
+            throw mError;
+        }
+        return mValue;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Set the listener to call when the response arrives. If the future is
+     * already done, the listener is called immediately.
+     */
+    public void setListener(Listener listener) {
+        synchronized(this) {
+            if(!mDone) {
+                mListener = listener;
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * @return the System.nanoTime() at which the request was registered.
+     */
+    long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    /**
+     * Mark the request as timed out, but keep it waiting for a late response
+     * until the given time. Must be called with the ResponseReader's lock
+     * held.
+     *
+     * @param discardAt
+     *  The System.nanoTime() after which the ResponseReader gives up on the
+     *  response
+     */
+    void abandon(long discardAt) {
+        mAbandoned = true;
+        mDiscardAt = discardAt;
+    }
+
+    /**
+     * @return
+     *  true if the request timed out and its late response is no longer
+     *  worth waiting for. Must be called with the ResponseReader's lock
+     *  held.
+     */
+    boolean isDiscardable(long now) {
+        return mAbandoned && now - mDiscardAt >= 0;
+    }
+
+    void complete(int value) {
+        Listener listener;
+        synchronized(this) {
+            if(mDone) {
+                return;
+            }
+            mValue = value;
+            mDone = true;
+            listener = mListener;
+            notifyAll();
+        }
+        notifyListener(listener);
+    }
+
+    void fail(BluetoothException error) {
+        Listener listener;
+        synchronized(this) {
+            if(mDone) {
+                return;
+            }
+            mError = error;
+            mDone = true;
+            listener = mListener;
+            notifyAll();
+        }
+        notifyListener(listener);
+    }
+
+    private void notifyListener(Listener listener) {
+        if(listener == null) {
+            return;
+        }
+
+        if(mError != null) {
+            listener.onError(mError);
+        } else {
+            listener.onResponse(mValue);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.openxc.hardware.hud;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ResponseReader reads every line the HUD sends back and routes it to the
+ * request waiting for it.
+ *
+ * The firmware answers commands in the order it receives them:
+ *
+ *  S - "OK"
+ *  F - nothing
+ *  P - "ACK", followed by "ERRCO50" because the 'P' case falls through to the
+ *      unknown command handler
+ *  B - "VAL:n"
+ *  Q - "SEQ:n", or "ERRCO51" from firmware without sequence support
+ *  V - "VER:n", or "ERRCO56" from version 1 firmware, which is reported as
+ *      version 1
+ *
+ * Binary commands are only answered if they fail, with "ERRCOA5" or
+ * "ERRCH". The firmware also prints "START" when it boots. Only pings,
+ * battery queries, sequences and version queries have callers waiting for
+ * an answer, so each of those has its own queue of pending futures. Since
+ * responses of a given kind arrive in the same order as the requests, the
+ * oldest pending future of the matching kind is always the right one. Lines
+ * that nobody is waiting for (like the "OK" after every SET) are consumed
+ * here, so they never leak into a later read.
+ *
+ * A request that times out keeps its place in the queue for a grace period,
+ * so that its late response is discarded rather than handed to the next
+ * request of the same kind. After that its response is assumed lost - e.g.
+ * to an overrun receive buffer - and it is dropped from the queue the next
+ * time a request is made or a response arrives, so one lost response can't
+ * leave every later request answered one response late.
+ *
+ * Lines are split and classified by a ResponseDecoder straight from the
+ * bytes read off the stream, so nothing is allocated per line, and noise on
+ * the link costs at most the line it lands in.
+ *
+ * Every line, expected or not, proves the link is alive, so the reader also
+ * keeps track of when the last one arrived.
+ *
+ * If a CommandRecorder is set, every chunk read is recorded before it is
+ * decoded.
+ */
+public class ResponseReader implements Runnable {
+    /**
+     * The commands that expect a response.
+     */
+    public enum Request {
+        PING, BATTERY, SEQUENCE, VERSION
+    }
+
+    /**
+     * Callbacks are made from the reader thread.
+     */
+    public interface Listener {
+        /**
+         * The input stream was closed or failed.
+         */
+        public void onDisconnected();
+
+        /**
+         * The device printed its startup banner, so it has rebooted and lost
+         * its LED state.
+         */
+        public void onDeviceReset();
+
+        /**
+         * A line arrived that didn't match any known response.
+         */
+        public void onUnexpectedResponse(String line);
+    }
+
+    public static final long DEFAULT_LATE_RESPONSE_GRACE = 2000;
+
+    // The hex codes in "ERRCO<hex>" for the commands that cause one
+    private static final int PING_ERROR = 'P';
+    private static final int SEQUENCE_ERROR = 'Q';
+    private static final int VERSION_ERROR = 'V';
+    // Firmware without the version query speaks the original protocol
+    private static final int ASCII_VERSION = 1;
+    private static final int READ_BUFFER_SIZE = 256;
+
+    private final InputStream mStream;
+    private final byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+    private final ResponseDecoder mDecoder = new ResponseDecoder();
+    private final Listener mListener;
+    private final HudMetrics mMetrics;
+    private final LinkedList<ResponseFuture> mPendingPings =
+            new LinkedList<ResponseFuture>();
+    private final LinkedList<ResponseFuture> mPendingBatteryQueries =
+            new LinkedList<ResponseFuture>();
+    private final LinkedList<ResponseFuture> mPendingSequences =
+            new LinkedList<ResponseFuture>();
+    private final LinkedList<ResponseFuture> mPendingVersionQueries =
+            new LinkedList<ResponseFuture>();
+    private boolean mClosed;
+    private volatile long mLastResponseAt = System.nanoTime();
+    private volatile boolean mResponded;
+    private volatile CommandRecorder mRecorder;
+    private volatile long mLateResponseGraceNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATE_RESPONSE_GRACE);
+
+    private final ResponseDecoder.Handler mHandler =
+            new ResponseDecoder.Handler() {
+        public void onResponse(ResponseDecoder.Type type, int value) {
+            mLastResponseAt = System.nanoTime();
+            mResponded = true;
+            dispatch(type, value);
+        }
+    };
+
+    /**
+     * @param metrics
+     *  Receives the round trip time of each request and a count of the lines
+     *  that couldn't be parsed
+     */
+    public ResponseReader(InputStream stream, Listener listener,
+            HudMetrics metrics) {
+        mStream = stream;
+        mListener = listener;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Register a future for the response to a request.
+     *
+     * This must be called before the request is written, so that a fast
+     * response can't arrive before anyone is waiting for it.
+     */
+    public synchronized ResponseFuture expect(Request request) {
+        ResponseFuture future = new ResponseFuture();
+        if(mClosed) {
+            future.fail(new BluetoothException("Not connected"));
+        } else {
+            LinkedList<ResponseFuture> pending = pendingFor(request);
+            discardLost(pending, System.nanoTime());
+            pending.add(future);
+        }
+        return future;
+    }
+
+    /**
+     * Stop waiting for a response that didn't arrive in time. The future is
+     * failed, but it keeps its place in the queue for the grace period: if
+     * the response turns up late, it is matched to this request and
+     * discarded, rather than being handed to the next request of the same
+     * kind.
+     */
+    public void cancel(Request request, ResponseFuture future) {
+        synchronized(this) {
+            if(pendingFor(request).contains(future)) {
+                future.abandon(System.nanoTime() + mLateResponseGraceNanos);
+            }
+        }
+        future.fail(new BluetoothException("Timed out waiting for response"));
+    }
+
+    /**
+     * Stop waiting for a response to a request that was never written, e.g.
+     * because the write failed, so no response will arrive for it.
+     */
+    public synchronized void withdraw(Request request, ResponseFuture future) {
+        pendingFor(request).remove(future);
+    }
+
+    /**
+     * Close the input stream, which stops the reader thread and fails any
+     * pending requests.
+     */
+    public void close() {
+        failAll("Disconnected", true);
+        // This unblocks the reader thread's read()
+        try {
+            mStream.close();
+        } catch(IOException e) { }
+    }
+
+    /**
+     * Close the input stream as if the device had dropped the link, so the
+     * reader thread reports it to the listener - e.g. because a write to the
+     * same link failed.
+     */
+    public void abort() {
+        try {
+            mStream.close();
+        } catch(IOException e) { }
+    }
+
+    /**
+     * @param millis
+     *  How long after a request times out its response may still arrive,
+     *  and be discarded, before it is assumed lost
+     */
+    public void setLateResponseGrace(long millis) {
+        mLateResponseGraceNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @return
+     *  The System.nanoTime() at which the last line arrived from the device,
+     *  or at which the reader was created if nothing has arrived yet.
+     */
+    public long getLastResponseTime() {
+        return mLastResponseAt;
+    }
+
+    /**
+     * @param recorder
+     *  Receives everything read from the device, or null to stop recording
+     */
+    public void setRecorder(CommandRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    /**
+     * @return true if anything has arrived from the device.
+     */
+    public boolean hasResponded() {
+        return mResponded;
+    }
+
+    public void run() {
+        while(true) {
+            int count;
+            try {
+                count = mStream.read(mBuffer);
+            } catch(IOException e) {
+                count = -1;
+            }
+
+            if(count < 0) {
+                if(failAll("Device has dropped offline", true)) {
+                    mListener.onDisconnected();
+                }
+                return;
+            }
+            CommandRecorder recorder = mRecorder;
+            if(recorder != null) {
+                recorder.recordIncoming(mBuffer, 0, count, System.nanoTime());
+            }
+            mDecoder.decode(mBuffer, 0, count, mHandler);
+        }
+    }
+
+    private void dispatch(ResponseDecoder.Type type, int value) {
+        switch(type) {
+        case OK:
+            break;
+        case ACK:
+            complete(Request.PING, 0);
+            break;
+        case VALUE:
+            if(value == ResponseDecoder.INVALID) {
+                mMetrics.recordParseError();
+                fail(Request.BATTERY, "Invalid battery level: " +
+                        mDecoder.getLine());
+            } else {
+                complete(Request.BATTERY, value);
+            }
+            break;
+        case SEQUENCE:
+            if(value == ResponseDecoder.INVALID) {
+                mMetrics.recordParseError();
+                fail(Request.SEQUENCE, "Invalid sequence response: " +
+                        mDecoder.getLine());
+            } else {
+                complete(Request.SEQUENCE, value);
+            }
+            break;
+        case VERSION:
+            if(value == ResponseDecoder.INVALID) {
+                mMetrics.recordParseError();
+                fail(Request.VERSION, "Invalid version response: " +
+                        mDecoder.getLine());
+            } else {
+                complete(Request.VERSION, value);
+            }
+            break;
+        case COMMAND_ERROR:
+            if(value == SEQUENCE_ERROR) {
+                fail(Request.SEQUENCE,
+                        "The HUD firmware doesn't support sequences");
+            } else if(value == VERSION_ERROR) {
+                complete(Request.VERSION, ASCII_VERSION);
+            } else if(value != PING_ERROR) {
+                unexpected();
+            }
+            break;
+        case START:
+            // The device rebooted, so it will never answer anything that was
+            // sent before this
+            failAll("Device was reset", false);
+            mListener.onDeviceReset();
+            break;
+        default:
+            unexpected();
+            break;
+        }
+    }
+
+    private void unexpected() {
+        mMetrics.recordParseError();
+        mListener.onUnexpectedResponse(mDecoder.getLine());
+    }
+
+    private void complete(Request request, int value) {
+        ResponseFuture future = take(request);
+        // A future that is already done timed out, and this is its late
+        // response
+        if(future != null && !future.isDone()) {
+            mMetrics.recordCommand(commandFor(request),
+                    future.getCreatedAt());
+            future.complete(value);
+        }
+    }
+
+    private void fail(Request request, String reason) {
+        ResponseFuture future = take(request);
+        if(future != null) {
+            future.fail(new BluetoothException(reason));
+        }
+    }
+
+    /**
+     * @return true if the reader was still open.
+     */
+    private boolean failAll(String reason, boolean close) {
+        LinkedList<ResponseFuture> failed = new LinkedList<ResponseFuture>();
+        boolean wasOpen;
+        synchronized(this) {
+            wasOpen = !mClosed;
+            if(close) {
+                mClosed = true;
+            }
+            failed.addAll(mPendingPings);
+            failed.addAll(mPendingBatteryQueries);
+            failed.addAll(mPendingSequences);
+            failed.addAll(mPendingVersionQueries);
+            mPendingPings.clear();
+            mPendingBatteryQueries.clear();
+            mPendingSequences.clear();
+            mPendingVersionQueries.clear();
+        }
+
+        for(ResponseFuture future : failed) {
+            future.fail(new BluetoothException(reason));
+        }
+        return wasOpen;
+    }
+
+    /**
+     * @return
+     *  The oldest future still waiting for a response of the request's
+     *  kind, or null if there isn't one.
+     */
+    private synchronized ResponseFuture take(Request request) {
+        LinkedList<ResponseFuture> pending = pendingFor(request);
+        discardLost(pending, System.nanoTime());
+        return pending.poll();
+    }
+
+    /**
+     * Drop the futures that timed out longer than the grace period ago, since
+     * their responses must have been lost. Must be called with the lock held.
+     */
+    private static void discardLost(LinkedList<ResponseFuture> pending,
+            long now) {
+        Iterator<ResponseFuture> futures = pending.iterator();
+        while(futures.hasNext()) {
+            if(futures.next().isDiscardable(now)) {
+                futures.remove();
+            }
+        }
+    }
+
+    private LinkedList<ResponseFuture> pendingFor(Request request) {
+        switch(request) {
+        case PING:
+            return mPendingPings;
+        case BATTERY:
+            return mPendingBatteryQueries;
+        case VERSION:
+            return mPendingVersionQueries;
+        default:
+            return mPendingSequences;
+        }
+    }
+
+    private static HudMetrics.Command commandFor(Request request) {
+        switch(request) {
+        case PING:
+            return HudMetrics.Command.PING;
+        case BATTERY:
+            return HudMetrics.Command.BATTERY;
+        case VERSION:
+            return HudMetrics.Command.VERSION;
+        default:
+            return HudMetrics.Command.SEQUENCE;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.openxc.hardware.hud;
+
+/**
+ * A Sequence is a short list of steps that the HUD firmware plays on one
+ * channel by itself, after a single upload with the Q command.
+ *
+ * Each step is a linear fade from the end of the previous step to a new
+ * intensity over a duration (a duration of 0 jumps straight there). The
+ * first step starts from whatever the LED is showing when the sequence is
+ * uploaded. The sequence repeats a given number of times, or forever, and
+ * then holds its last value.
+ *
+ * On the wire a sequence is "Q<chan><loops>,<duration>,<value>,...M", which
+ * the firmware answers with "SEQ:<steps stored>". Firmware that predates the
+ * command answers "ERRCO51" instead.
+ */
+public class Sequence {
+    /**
+     * The most steps the firmware can store for a channel.
+     */
+    public static final int MAX_STEPS = 8;
+    /**
+     * The firmware stores durations and loop counts in 16-bit unsigned ints.
+     */
+    public static final long MAX_DURATION = 65535;
+    public static final int MAX_LOOPS = 65535;
+    /**
+     * A loop count that plays the sequence until the channel is given
+     * another command.
+     */
+    public static final int FOREVER = 0;
+
+    private final long[] mDurations = new long[MAX_STEPS];
+    private final long[] mValues = new long[MAX_STEPS];
+    private int mCount;
+    private int mLoops = FOREVER;
+
+    /**
+     * Add a step.
+     *
+     * @param duration
+     *  The time to fade to the value, in ms
+     * @param value
+     *  The intensity at the end of the step, given as a double between 0.0
+     *  and 1.0
+     */
+    public Sequence step(long duration, double value) {
+        if(mCount == MAX_STEPS) {
+            throw new IllegalArgumentException(
+                    "Sequences can have at most " + MAX_STEPS + " steps");
+        }
+        if(duration < 0 || duration > MAX_DURATION) {
+            throw new IllegalArgumentException(
+                    "Step duration must be between 0 and " + MAX_DURATION +
+                    " ms: " + duration);
+        }
+        if(value < 0 || value > 1) {
+            throw new IllegalArgumentException(
+                    "Intensity must be between 0.0 and 1.0: " + value);
+        }
+        mDurations[mCount] = duration;
+        mValues[mCount] = CommandEncoder.intensity(value);
+        mCount++;
+        return this;
+    }
+
+    /**
+     * @param loops
+     *  The number of times to play the sequence, or FOREVER
+     */
+    public void setLoopCount(int loops) {
+        if(loops < 0 || loops > MAX_LOOPS) {
+            throw new IllegalArgumentException("Invalid loop count: " + loops);
+        }
+        mLoops = loops;
+    }
+
+    public int getLoopCount() {
+        return mLoops;
+    }
+
+    public int getStepCount() {
+        return mCount;
+    }
+
+    public long getDuration(int step) {
+        return mDurations[step];
+    }
+
+    /**
+     * @return the 0-255 intensity at the end of the step.
+     */
+    public long getValue(int step) {
+        return mValues[step];
+    }
+}
@@ -0,0 +1,193 @@
+package com.openxc.hardware.hud;
+
+/**
+ * The ShadowState is a host-side model of the LED state inside the HUD
+ * firmware, used to skip commands that wouldn't change what the LEDs show.
+ *
+ * It mirrors the firmware's per-channel vals, act, act_dest, act_start and
+ * act_dur arrays, and applies the same arithmetic as the firmware's S and F
+ * handlers and doBlink(), including its quirks - for example, vals holds the
+ * starting value for the whole duration of a fade, and a FADE to the value
+ * in vals leaves any running fade alone.
+ *
+ * The model runs on the host's clock, and the device stamps a fade when the
+ * command arrives rather than when it was sent, so a fade is only treated as
+ * finished once a settling margin has passed. Until the first command for a
+ * channel is sent after connecting (or after the device resets), the channel's
+ * state is unknown and nothing is suppressed. A fade on an unknown channel
+ * makes it known once the fade has settled.
+ *
+ * This class is not thread safe - callers must hold the lock that guards
+ * writes to the HUD.
+ */
+public class ShadowState {
+    private static final int IDLE = 0;
+    private static final int FADE_UP = 1;
+    private static final int FADE_DOWN = 2;
+
+    /**
+     * How long after a fade should have ended before we assume the device
+     * has finished it, in ms.
+     */
+    public static final long SETTLE_MARGIN = 250;
+
+    private final boolean[] mKnown;
+    private final int[] mAction;
+    private final int[] mValue;
+    private final int[] mDestination;
+    private final long[] mStart;
+    private final long[] mDuration;
+
+    public ShadowState() {
+        int count = BluetoothHudInterface.CHANNEL_COUNT;
+        mKnown = new boolean[count];
+        mAction = new int[count];
+        mValue = new int[count];
+        mDestination = new int[count];
+        mStart = new long[count];
+        mDuration = new long[count];
+    }
+
+    /**
+     * @return
+     *  A monotonic timestamp in ms to use as the current time for the model.
+     */
+    public static long currentTime() {
+        return System.nanoTime() / (1000 * 1000);
+    }
+
+    /**
+     * Forget everything we know about the device, e.g. after reconnecting.
+     */
+    public void invalidate() {
+        for(int i = 0; i < mKnown.length; i++) {
+            mKnown[i] = false;
+            mAction[i] = IDLE;
+        }
+    }
+
+    /**
+     * Forget what one channel is showing, e.g. after giving it a sequence to
+     * play - the next command for it will always be sent.
+     */
+    public void forget(int chan) {
+        mKnown[chan] = false;
+        mAction[chan] = IDLE;
+    }
+
+    /**
+     * Record a SET command if it would change the channel.
+     *
+     * @param value
+     *  The 0-255 intensity
+     * @param now
+     *  The current time, in ms
+     * @return
+     *  true if the command should be sent, false if the LED already shows
+     *  this value.
+     */
+    public boolean set(int chan, long value, long now) {
+        int quantized = (int) (value & 0xff);
+        settle(chan, now);
+        if(mKnown[chan] && mAction[chan] == IDLE
+                && mValue[chan] == quantized) {
+            return false;
+        }
+
+        mKnown[chan] = true;
+        mValue[chan] = quantized;
+        mAction[chan] = IDLE;
+        return true;
+    }
+
+    /**
+     * Record a FADE command if it would change the channel.
+     *
+     * @param duration
+     *  The fade duration, in ms
+     * @param value
+     *  The 0-255 destination intensity
+     * @param now
+     *  The current time, in ms
+     * @return
+     *  true if the command should be sent, false if the channel is already
+     *  resting at the destination.
+     */
+    public boolean fade(int chan, long duration, long value, long now) {
+        int destination = (int) (value & 0xff);
+        settle(chan, now);
+        if(mKnown[chan] && mAction[chan] == IDLE
+                && mValue[chan] == destination) {
+            return false;
+        }
+
+        mDuration[chan] = duration;
+        mDestination[chan] = destination;
+        if(!mKnown[chan]) {
+            // We don't know where the fade starts, but once it is over the
+            // channel will be resting at the destination
+            mAction[chan] = FADE_UP;
+        } else if(destination < mValue[chan]) {
+            mAction[chan] = FADE_DOWN;
+        } else if(destination > mValue[chan]) {
+            mAction[chan] = FADE_UP;
+        }
+        mStart[chan] = now;
+        return true;
+    }
+
+    /**
+     * @return
+     *  true if the channel's state is known and it has no fade in progress.
+     */
+    public boolean isSettled(int chan, long now) {
+        settle(chan, now);
+        return mKnown[chan] && mAction[chan] == IDLE;
+    }
+
+    /**
+     * Estimate what the channel is showing, using the same interpolation as
+     * the firmware's doBlink().
+     *
+     * @return
+     *  The 0-255 intensity, or -1 if the channel's state is unknown.
+     */
+    public int output(int chan, long now) {
+        if(!mKnown[chan]) {
+            return -1;
+        }
+
+        long elapsed = now - mStart[chan];
+        long duration = mDuration[chan];
+        int value = mValue[chan];
+        int destination = mDestination[chan];
+        switch(mAction[chan]) {
+        case FADE_UP:
+            if(elapsed > duration || duration <= 0) {
+                return destination;
+            }
+            return (int) (elapsed * (destination - value) / duration) + value;
+        case FADE_DOWN:
+            if(elapsed > duration || duration <= 0) {
+                return destination;
+            }
+            return (int) ((duration - elapsed) * (value - destination)
+                    / duration) + destination;
+        default:
+            return value;
+        }
+    }
+
+    /**
+     * Finish the channel's fade if the device has certainly finished it, like
+     * doBlink() does once millis() passes the end of the fade.
+     */
+    private void settle(int chan, long now) {
+        if(mAction[chan] != IDLE
+                && now - mStart[chan] > mDuration[chan] + SETTLE_MARGIN) {
+            mAction[chan] = IDLE;
+            mValue[chan] = mDestination[chan];
+            mKnown[chan] = true;
+        }
+    }
+}
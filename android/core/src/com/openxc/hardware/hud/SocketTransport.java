@@ -0,0 +1,90 @@
+package com.openxc.hardware.hud;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The SocketTransport connects to a HUD (or a simulator standing in for one)
+ * over TCP.
+ */
+public class SocketTransport implements HudTransport {
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Creates transports for addresses of the form "host:port".
+     */
+    public static final Factory FACTORY = new Factory() {
+        public HudTransport create(String address)
+                throws BluetoothException {
+            int separator = address.lastIndexOf(':');
+            if(separator < 0) {
+                throw new BluetoothException("Invalid address: " + address);
+            }
+
+            try {
+                return new SocketTransport(address.substring(0, separator),
+                        Integer.parseInt(address.substring(separator + 1)));
+            } catch(NumberFormatException e) {
+                throw new BluetoothException("Invalid port: " + address);
+            }
+        }
+    };
+
+    private final String mHost;
+    private final int mPort;
+    private Socket mSocket;
+
+    public SocketTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    public synchronized void open() throws BluetoothException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(mHost, mPort),
+                    CONNECT_TIMEOUT);
+        } catch(IOException e) {
+            try {
+                socket.close();
+            } catch(IOException e2) { }
+            throw new BluetoothException("Unable to connect to " + this +
+                    ": " + e);
+        }
+        mSocket = socket;
+    }
+
+    public synchronized InputStream getInputStream() throws IOException {
+        return socket().getInputStream();
+    }
+
+    public synchronized OutputStream getOutputStream() throws IOException {
+        return socket().getOutputStream();
+    }
+
+    public synchronized void close() {
+        if(mSocket != null) {
+            try {
+                mSocket.close();
+            } catch(IOException e) { }
+            mSocket = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mHost + ":" + mPort;
+    }
+
+    private Socket socket() throws IOException {
+        if(mSocket == null) {
+            throw new IOException("Transport is not open");
+        }
+        return mSocket;
+    }
+}
@@ -0,0 +1,79 @@
+package com.openxc.hardware.hud.animation;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+
+/**
+ * An Animation is a set of Timelines played together, at most one for each
+ * LED channel.
+ *
+ * Each channel's timeline can be offset from the start of the animation,
+ * which makes effects like the KITT scanner - the same timeline on every
+ * channel, a step apart - easy to build.
+ */
+public class Animation {
+    private final Timeline[] mTimelines =
+            new Timeline[BluetoothHudInterface.CHANNEL_COUNT];
+    private final long[] mOffsets =
+            new long[BluetoothHudInterface.CHANNEL_COUNT];
+
+    /**
+     * Play the timeline on a channel from the start of the animation.
+     */
+    public Animation channel(int chan, Timeline timeline) {
+        return channel(chan, timeline, 0);
+    }
+
+    /**
+     * Play the timeline on a channel, replacing any timeline already set for
+     * it.
+     *
+     * @param offset
+     *  The delay from the start of the animation to the start of the
+     *  timeline, in ms
+     */
+    public Animation channel(int chan, Timeline timeline, long offset) {
+        checkChannel(chan);
+        if(offset < 0) {
+            throw new IllegalArgumentException("Invalid offset: " + offset);
+        }
+        mTimelines[chan] = timeline;
+        mOffsets[chan] = offset;
+        return this;
+    }
+
+    /**
+     * @return
+     *  A new animation with the channels of both animations. Where both have
+     *  a timeline for the same channel, the other animation's wins.
+     */
+    public Animation with(Animation other) {
+        Animation combined = new Animation();
+        for(int i = 0; i < mTimelines.length; i++) {
+            if(other.mTimelines[i] != null) {
+                combined.channel(i, other.mTimelines[i], other.mOffsets[i]);
+            } else if(mTimelines[i] != null) {
+                combined.channel(i, mTimelines[i], mOffsets[i]);
+            }
+        }
+        return combined;
+    }
+
+    /**
+     * @return the channel's timeline, or null if the channel isn't animated.
+     */
+    public Timeline getTimeline(int chan) {
+        checkChannel(chan);
+        return mTimelines[chan];
+    }
+
+    public long getOffset(int chan) {
+        checkChannel(chan);
+        return mOffsets[chan];
+    }
+
+    private static void checkChannel(int chan) {
+        if(chan < 0 || chan >= BluetoothHudInterface.CHANNEL_COUNT) {
+            throw new IllegalArgumentException("Invalid channel: " + chan);
+        }
+    }
+}
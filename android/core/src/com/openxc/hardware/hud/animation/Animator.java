@@ -0,0 +1,371 @@
+package com.openxc.hardware.hud.animation;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import java.util.concurrent.TimeUnit;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.LinkDelayEstimator;
+import com.openxc.hardware.hud.Priority;
+
+/**
+ * The Animator plays Animations on the HUD from a single timer thread,
+ * however many are running at once.
+ *
+ * Each channel's timeline is compiled into a FadePlan when the animation
+ * starts, and the animator sends each of the plan's commands when its time
+ * comes. Commands go through postSet() and postFade(), so the timer thread
+ * never blocks on the link.
+ *
+ * A channel plays one timeline at a time - starting an animation on a
+ * channel stops whatever was playing on it before. Command times are
+ * measured from when the animation started, so looping animations don't
+ * drift.
+ *
+ * Each fade is posted with the time it should start, so the driver can
+ * adjust its duration for the link delay. With a LinkDelayEstimator set,
+ * commands are also sent early by the expected delay, so they start on time
+ * rather than late.
+ *
+ * Commands go out in the AMBIENT lane by default, so alerts are sent ahead
+ * of them, and each one has the time the channel's next command is due as
+ * its deadline - a step that couldn't be sent before the next one is dropped
+ * instead of sent late.
+ */
+public class Animator implements Runnable {
+    /**
+     * The default time to cut from the end of each fade, in ms.
+     */
+    public static final long DEFAULT_GUARD = 20;
+
+    // A typical command, e.g. "F12000,255M", for the expected link delay
+    private static final int COMMAND_LENGTH = 11;
+
+    private final BluetoothHudInterface mHud;
+    private final PriorityQueue<Cursor> mQueue = new PriorityQueue<Cursor>(
+            BluetoothHudInterface.CHANNEL_COUNT, new Comparator<Cursor>() {
+        public int compare(Cursor a, Cursor b) {
+            long difference = a.mNextAt - b.mNextAt;
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    });
+    private final Cursor[] mOwners =
+            new Cursor[BluetoothHudInterface.CHANNEL_COUNT];
+    private long mGuard = DEFAULT_GUARD;
+    private LinkDelayEstimator mDelayEstimator;
+    private Priority mPriority = Priority.AMBIENT;
+    private boolean mRunning;
+    private Thread mThread;
+    // The thread posting a command it took off the queue, if any
+    private Thread mPosting;
+
+    /**
+     * A handle to a playing animation.
+     */
+    public class Playback {
+        private final Cursor[] mCursors;
+
+        private Playback(Cursor[] cursors) {
+            mCursors = cursors;
+        }
+
+        /**
+         * Stop the animation. The LEDs are left as they are, and nothing
+         * more is posted for it once this returns.
+         */
+        public void stop() {
+            synchronized(Animator.this) {
+                for(Cursor cursor : mCursors) {
+                    cancel(cursor);
+                }
+                awaitPost();
+            }
+        }
+
+        /**
+         * @return
+         *  True if every channel of the animation has finished or been
+         *  stopped. Looping animations only finish when they are stopped.
+         */
+        public boolean isDone() {
+            synchronized(Animator.this) {
+                for(Cursor cursor : mCursors) {
+                    if(!cursor.mCancelled && cursor.mIndex >= 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The playback position of one channel's plan.
+     */
+    private static class Cursor {
+        final int mChannel;
+        final FadePlan mPlan;
+        long mStartedAt;
+        long mNextAt;
+        // The next command to send, or -1 when finished
+        int mIndex;
+        boolean mCancelled;
+
+        Cursor(int chan, FadePlan plan, long startedAt) {
+            mChannel = chan;
+            mPlan = plan;
+            mStartedAt = startedAt;
+            mIndex = 0;
+            mNextAt = startedAt + millisToNanos(plan.getTime(0));
+        }
+
+        /**
+         * Move on to the next command, wrapping around if the plan loops.
+         */
+        void advance() {
+            mIndex++;
+            if(mIndex == mPlan.getCommandCount()) {
+                if(!mPlan.isLooping()) {
+                    mIndex = -1;
+                    return;
+                }
+                mStartedAt += millisToNanos(mPlan.getDuration());
+                mIndex = mPlan.isSeamless() && mPlan.getCommandCount() > 1
+                        ? 1 : 0;
+            }
+            mNextAt = mStartedAt + millisToNanos(mPlan.getTime(mIndex));
+        }
+    }
+
+    /**
+     * @param hud
+     *  Where to send the commands - usually a HudClient or HudService
+     */
+    public Animator(BluetoothHudInterface hud) {
+        mHud = hud;
+    }
+
+    /**
+     * Set the time to cut from the end of each fade, for animations started
+     * after this call. See FadePlan.
+     *
+     * @param guard
+     *  The guard time in ms
+     */
+    public synchronized void setGuard(long guard) {
+        mGuard = guard;
+    }
+
+    /**
+     * Set the lane to send commands in.
+     *
+     * @param priority
+     *  The priority lane - AMBIENT by default
+     */
+    public synchronized void setPriority(Priority priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Send commands ahead of time by the expected link delay.
+     *
+     * @param estimator
+     *  The estimate for the link to the HUD, e.g. from
+     *  HudClient.getLinkDelayEstimator(), or null to send commands when they
+     *  are due
+     */
+    public synchronized void setLinkDelayEstimator(
+            LinkDelayEstimator estimator) {
+        mDelayEstimator = estimator;
+        notifyAll();
+    }
+
+    /**
+     * Start the timer thread.
+     */
+    public synchronized void start() {
+        if(mThread == null) {
+            mRunning = true;
+            mThread = new Thread(this, "HudAnimator");
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stop every animation and the timer thread. Nothing more is posted
+     * once this returns.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        mThread = null;
+        for(Cursor cursor : mOwners) {
+            cancel(cursor);
+        }
+        mQueue.clear();
+        notifyAll();
+        awaitPost();
+    }
+
+    /**
+     * Start playing an animation now.
+     *
+     * @throws IllegalArgumentException
+     *  If one of the animation's timelines can't be played, e.g. it has no
+     *  keyframes.
+     */
+    public Playback play(Animation animation) {
+        long now = System.nanoTime();
+        long guard;
+        synchronized(this) {
+            guard = mGuard;
+        }
+
+        Cursor[] cursors = new Cursor[BluetoothHudInterface.CHANNEL_COUNT];
+        int count = 0;
+        for(int chan = 0; chan < cursors.length; chan++) {
+            Timeline timeline = animation.getTimeline(chan);
+            if(timeline != null) {
+                FadePlan plan = FadePlan.compile(timeline, guard);
+                cursors[count++] = new Cursor(chan, plan,
+                        now + millisToNanos(animation.getOffset(chan)));
+            }
+        }
+
+        Cursor[] playing = new Cursor[count];
+        System.arraycopy(cursors, 0, playing, 0, count);
+        synchronized(this) {
+            for(Cursor cursor : playing) {
+                cancel(mOwners[cursor.mChannel]);
+                mOwners[cursor.mChannel] = cursor;
+                mQueue.add(cursor);
+            }
+            notifyAll();
+        }
+        return new Playback(playing);
+    }
+
+    public void run() {
+        while(true) {
+            int chan;
+            long startAt;
+            long deadline;
+            long duration;
+            int value;
+            Priority priority;
+            synchronized(this) {
+                Cursor cursor = nextDue();
+                if(cursor == null) {
+                    return;
+                }
+
+                mPosting = Thread.currentThread();
+                chan = cursor.mChannel;
+                startAt = cursor.mNextAt;
+                duration = cursor.mPlan.getDuration(cursor.mIndex);
+                value = cursor.mPlan.getValue(cursor.mIndex);
+                priority = mPriority;
+                cursor.advance();
+                if(cursor.mIndex >= 0) {
+                    deadline = cursor.mNextAt;
+                    mQueue.add(cursor);
+                } else {
+                    // The last command leaves the channel at its final value,
+                    // so it must go out however late it is
+                    deadline = BluetoothHudInterface.NO_DEADLINE;
+                    if(mOwners[chan] == cursor) {
+                        mOwners[chan] = null;
+                    }
+                }
+            }
+
+            if(duration == 0) {
+                mHud.postSet(chan, value / 255.0, priority, deadline);
+            } else {
+                mHud.postFade(chan, startAt, duration, value / 255.0,
+                        priority, deadline);
+            }
+            synchronized(this) {
+                mPosting = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait for a command that the timer thread has already taken off the
+     * queue to be posted, so that once a stop() returns, a direct command
+     * to the HUD is sure to come after it. Must be called with the lock
+     * held.
+     */
+    private void awaitPost() {
+        while(mPosting != null && mPosting != Thread.currentThread()) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait for the next command to come due, and take its cursor off the
+     * queue. Must be called with the lock held.
+     *
+     * @return the cursor, or null if the animator was stopped.
+     */
+    private Cursor nextDue() {
+        // A thread left over from before a stop() and start() must exit
+        while(mRunning && mThread == Thread.currentThread()) {
+            Cursor cursor = mQueue.peek();
+            if(cursor != null && cursor.mCancelled) {
+                mQueue.poll();
+                continue;
+            }
+
+            try {
+                if(cursor == null) {
+                    wait();
+                    continue;
+                }
+
+                long remaining = cursor.mNextAt - lead()
+                        - System.nanoTime();
+                if(remaining <= 0) {
+                    return mQueue.poll();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch(InterruptedException e) {
+                mRunning = false;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return
+     *  How far ahead of its time to send a command, in nanoseconds. Must be
+     *  called with the lock held.
+     */
+    private long lead() {
+        if(mDelayEstimator == null) {
+            return 0;
+        }
+        return mDelayEstimator.arrivalDelayNanos(System.nanoTime(),
+                COMMAND_LENGTH);
+    }
+
+    private void cancel(Cursor cursor) {
+        if(cursor != null && !cursor.mCancelled) {
+            cursor.mCancelled = true;
+            if(mOwners[cursor.mChannel] == cursor) {
+                mOwners[cursor.mChannel] = null;
+            }
+        }
+    }
+
+    private static long millisToNanos(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
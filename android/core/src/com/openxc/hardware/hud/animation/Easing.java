@@ -0,0 +1,62 @@
+package com.openxc.hardware.hud.animation;
+
+/**
+ * An Easing shapes the change in intensity between two keyframes.
+ */
+public interface Easing {
+    /**
+     * @param t
+     *  How far through the segment we are, from 0.0 to 1.0
+     * @return
+     *  How far the value has moved from the start to the end of the segment,
+     *  which must be 0.0 at t = 0 and 1.0 at t = 1.
+     */
+    public double apply(double t);
+
+    /**
+     * A constant rate of change, which the firmware's fade reproduces
+     * exactly.
+     */
+    public static final Easing LINEAR = new Easing() {
+        public double apply(double t) {
+            return t;
+        }
+    };
+
+    /**
+     * Start slowly and speed up.
+     */
+    public static final Easing EASE_IN = new Easing() {
+        public double apply(double t) {
+            return t * t;
+        }
+    };
+
+    /**
+     * Start quickly and slow down.
+     */
+    public static final Easing EASE_OUT = new Easing() {
+        public double apply(double t) {
+            return t * (2 - t);
+        }
+    };
+
+    /**
+     * Speed up, then slow down.
+     */
+    public static final Easing EASE_IN_OUT = new Easing() {
+        public double apply(double t) {
+            return t * t * (3 - 2 * t);
+        }
+    };
+
+    /**
+     * Hold the start value, then jump to the end value at the end of the
+     * segment.
+     */
+    public static final Easing STEP = new Easing() {
+        public double apply(double t) {
+            return t < 1 ? 0 : 1;
+        }
+    };
+}
@@ -0,0 +1,253 @@
+package com.openxc.hardware.hud.animation;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.openxc.hardware.hud.Sequence;
+
+/**
+ * A FadePlan is a Timeline compiled into the commands the HUD needs to play
+ * it.
+ *
+ * The firmware can only fade linearly, so each segment between keyframes is
+ * split into the fewest linear fades that stay within one intensity step
+ * (1/255) of the eased curve - a linear segment is always a single fade.
+ * Holds don't need a command at all, and jumps become a SET. Each command is
+ * meant to be sent at its start time, so nothing goes over the air between
+ * segment boundaries.
+ *
+ * A fade is shortened by a small guard time so that it has finished on the
+ * device before the next command arrives, even if that command is delivered
+ * early relative to the previous one. This matters because the firmware
+ * starts a fade from the value the previous fade started from, not the value
+ * it had reached, if it is still running.
+ *
+ * The first command is always a SET of the timeline's starting value.
+ */
+public class FadePlan {
+    /**
+     * How far a fade may stray from the curve, in 0-255 intensity steps.
+     */
+    private static final double TOLERANCE = 1.0;
+    /**
+     * The most points per segment used to check the fit.
+     */
+    private static final int MAX_SAMPLES = 256;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private long[] mDurations = new long[INITIAL_CAPACITY];
+    private int[] mValues = new int[INITIAL_CAPACITY];
+    private int mCount;
+    private final long mDuration;
+    private final boolean mLooping;
+    private int mCurrent;
+
+    /**
+     * Compile a timeline.
+     *
+     * @param guard
+     *  The time in ms to cut from the end of each fade, limited to a quarter
+     *  of the fade
+     */
+    public static FadePlan compile(Timeline timeline, long guard) {
+        List<Timeline.Keyframe> keyframes = timeline.getKeyframes();
+        if(keyframes.isEmpty()) {
+            throw new IllegalArgumentException("Timeline has no keyframes");
+        }
+        if(timeline.isLooping() && timeline.getDuration() == 0) {
+            throw new IllegalArgumentException(
+                    "A looping timeline must have a duration");
+        }
+
+        FadePlan plan = new FadePlan(timeline.getDuration(),
+                timeline.isLooping());
+        Timeline.Keyframe first = keyframes.get(0);
+        plan.mCurrent = quantize(first.mValue * 255);
+        plan.add(first.mTime, 0, plan.mCurrent);
+
+        for(int i = 1; i < keyframes.size(); i++) {
+            plan.addSegment(keyframes.get(i - 1), keyframes.get(i), guard);
+        }
+        return plan;
+    }
+
+    private FadePlan(long duration, boolean looping) {
+        mDuration = duration;
+        mLooping = looping;
+    }
+
+    /**
+     * @return the number of commands in the plan.
+     */
+    public int getCommandCount() {
+        return mCount;
+    }
+
+    /**
+     * @return
+     *  The time to send the command, in ms from the start of the timeline.
+     */
+    public long getTime(int index) {
+        return mTimes[index];
+    }
+
+    /**
+     * @return
+     *  The fade duration in ms, or 0 if the command is a SET.
+     */
+    public long getDuration(int index) {
+        return mDurations[index];
+    }
+
+    /**
+     * @return the 0-255 intensity for the command.
+     */
+    public int getValue(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * @return the length of the timeline, and the loop period if it loops.
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public boolean isLooping() {
+        return mLooping;
+    }
+
+    /**
+     * @return
+     *  True if the first command (the SET of the starting value) can be
+     *  skipped when the timeline loops, because it ends where it started.
+     */
+    public boolean isSeamless() {
+        return mValues[0] == mCurrent;
+    }
+
+    /**
+     * Convert the plan into a Sequence the device can play by itself. Holds
+     * become steps that fade to the value they already have, and a looping
+     * timeline holds its last value until the end of the loop period.
+     *
+     * Compile the plan with no guard time for this - the device plays the
+     * steps back to back, so there's no link delay to allow for.
+     *
+     * @throws IllegalArgumentException
+     *  If the plan needs more steps than the device can store.
+     */
+    public Sequence toSequence() {
+        Sequence sequence = new Sequence();
+        long end = 0;
+        int previous = mValues[0];
+        for(int i = 0; i < mCount; i++) {
+            if(mTimes[i] > end) {
+                sequence.step(mTimes[i] - end, previous / 255.0);
+            }
+            sequence.step(mDurations[i], mValues[i] / 255.0);
+            end = mTimes[i] + mDurations[i];
+            previous = mValues[i];
+        }
+
+        if(mLooping) {
+            if(mDuration > end) {
+                sequence.step(mDuration - end, previous / 255.0);
+            }
+            sequence.setLoopCount(Sequence.FOREVER);
+        } else {
+            sequence.setLoopCount(1);
+        }
+        return sequence;
+    }
+
+    private void addSegment(Timeline.Keyframe from, Timeline.Keyframe to,
+            long guard) {
+        long start = from.mTime;
+        long length = to.mTime - start;
+        if(length == 0) {
+            addSet(start, quantize(to.mValue * 255));
+            return;
+        }
+
+        int samples = (int) Math.min(length, MAX_SAMPLES);
+        double[] curve = new double[samples + 1];
+        long[] times = new long[samples + 1];
+        for(int i = 0; i <= samples; i++) {
+            times[i] = start + length * i / samples;
+            double t = (double) (times[i] - start) / length;
+            curve[i] = 255 * (from.mValue
+                    + (to.mValue - from.mValue) * to.mEasing.apply(t));
+        }
+
+        int i = 0;
+        while(i < samples) {
+            // Try the rest of the segment first, since linear segments and
+            // short ones fit in one fade
+            int j = samples;
+            if(!fits(curve, times, i, j)) {
+                j = i + 1;
+                while(j < samples && fits(curve, times, i, j + 1)) {
+                    j++;
+                }
+            }
+
+            int value = quantize(curve[j]);
+            long duration = times[j] - times[i];
+            if(value != mCurrent) {
+                if(duration == 0) {
+                    addSet(times[i], value);
+                } else {
+                    long fade = duration - Math.min(guard, duration / 4);
+                    add(times[i], Math.max(1, fade), value);
+                    mCurrent = value;
+                }
+            }
+            i = j;
+        }
+    }
+
+    /**
+     * @return
+     *  True if a linear fade from the current value at sample i to the curve
+     *  at sample j stays close to the curve in between.
+     */
+    private boolean fits(double[] curve, long[] times, int i, int j) {
+        double from = mCurrent;
+        double to = quantize(curve[j]);
+        long length = times[j] - times[i];
+        for(int k = i + 1; k < j; k++) {
+            double linear = from + (to - from) * (times[k] - times[i])
+                    / length;
+            if(Math.abs(linear - curve[k]) > TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addSet(long time, int value) {
+        if(value != mCurrent) {
+            add(time, 0, value);
+            mCurrent = value;
+        }
+    }
+
+    private void add(long time, long duration, int value) {
+        if(mCount == mTimes.length) {
+            int capacity = mCount * 2;
+            mTimes = Arrays.copyOf(mTimes, capacity);
+            mDurations = Arrays.copyOf(mDurations, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+        }
+        mTimes[mCount] = time;
+        mDurations[mCount] = duration;
+        mValues[mCount] = value;
+        mCount++;
+    }
+
+    private static int quantize(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+}
@@ -0,0 +1,146 @@
+package com.openxc.hardware.hud.animation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Timeline describes the intensity of one LED channel over time, as a list
+ * of keyframes.
+ *
+ * Each keyframe gives an intensity at a time (in ms from the start of the
+ * timeline), and the easing used to get there from the previous keyframe.
+ * Two keyframes at the same time make an instant jump. Before the first
+ * keyframe and after the last one the value holds.
+ *
+ * A looping timeline starts over from its first keyframe when it reaches the
+ * last one, so its duration is the loop period.
+ *
+ * Timelines are built by chaining keyframe() calls:
+ *
+ *  Timeline pulse = new Timeline()
+ *      .keyframe(0, 0.0)
+ *      .keyframe(500, 1.0, Easing.EASE_OUT)
+ *      .keyframe(1000, 0.0, Easing.EASE_IN);
+ */
+public class Timeline {
+    private final List<Keyframe> mKeyframes = new ArrayList<Keyframe>();
+    private boolean mLooping;
+
+    static class Keyframe {
+        final long mTime;
+        final double mValue;
+        final Easing mEasing;
+
+        Keyframe(long time, double value, Easing easing) {
+            mTime = time;
+            mValue = value;
+            mEasing = easing;
+        }
+    }
+
+    /**
+     * Add a keyframe, reached from the previous one at a constant rate.
+     */
+    public Timeline keyframe(long time, double value) {
+        return keyframe(time, value, Easing.LINEAR);
+    }
+
+    /**
+     * Add a keyframe.
+     *
+     * @param time
+     *  The time of the keyframe in ms, which must not be before the previous
+     *  keyframe
+     * @param value
+     *  The intensity, from 0.0 to 1.0
+     * @param easing
+     *  How to get to this keyframe from the previous one
+     */
+    public Timeline keyframe(long time, double value, Easing easing) {
+        if(time < getDuration() || time < 0) {
+            throw new IllegalArgumentException(
+                    "Keyframes must be in order, but " + time +
+                    " comes after " + getDuration());
+        }
+        if(value < 0 || value > 1) {
+            throw new IllegalArgumentException(
+                    "Intensity must be between 0.0 and 1.0: " + value);
+        }
+        mKeyframes.add(new Keyframe(time, value, easing));
+        return this;
+    }
+
+    /**
+     * @return
+     *  A new timeline that plays this one and then the other. The other
+     *  timeline's keyframes are shifted by this one's duration and appended
+     *  as they are, so its first keyframe is reached from this timeline's
+     *  last value like any other keyframe - with its own easing if it has a
+     *  time after 0, or as an instant jump if it is at 0. The new timeline
+     *  loops, as a whole, if the other one does.
+     */
+    public Timeline then(Timeline other) {
+        Timeline combined = new Timeline();
+        combined.mKeyframes.addAll(mKeyframes);
+        long offset = getDuration();
+        for(Keyframe keyframe : other.mKeyframes) {
+            combined.mKeyframes.add(new Keyframe(keyframe.mTime + offset,
+                        keyframe.mValue, keyframe.mEasing));
+        }
+        combined.mLooping = other.mLooping;
+        return combined;
+    }
+
+    public void setLooping(boolean looping) {
+        mLooping = looping;
+    }
+
+    public boolean isLooping() {
+        return mLooping;
+    }
+
+    /**
+     * @return the time of the last keyframe, in ms.
+     */
+    public long getDuration() {
+        if(mKeyframes.isEmpty()) {
+            return 0;
+        }
+        return mKeyframes.get(mKeyframes.size() - 1).mTime;
+    }
+
+    /**
+     * @param time
+     *  The time in ms from the start of the timeline
+     * @return
+     *  The intensity at that time, from 0.0 to 1.0.
+     */
+    public double valueAt(long time) {
+        if(mKeyframes.isEmpty()) {
+            throw new IllegalStateException("Timeline has no keyframes");
+        }
+        long duration = getDuration();
+        if(mLooping && duration > 0 && time >= duration) {
+            time %= duration;
+        }
+
+        Keyframe previous = mKeyframes.get(0);
+        if(time <= previous.mTime) {
+            return previous.mValue;
+        }
+        for(Keyframe keyframe : mKeyframes) {
+            if(time < keyframe.mTime) {
+                double t = (double) (time - previous.mTime)
+                        / (keyframe.mTime - previous.mTime);
+                return previous.mValue + (keyframe.mValue - previous.mValue)
+                        * keyframe.mEasing.apply(t);
+            }
+            previous = keyframe;
+        }
+        return previous.mValue;
+    }
+
+    List<Keyframe> getKeyframes() {
+        return mKeyframes;
+    }
+}
@@ -0,0 +1,163 @@
+package com.openxc.hardware.hud.fleet;
+
+import java.io.IOException;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An EventLoop runs the links to a share of a fleet's devices on one thread.
+ *
+ * Each pass gives every device a chance to do its timed work - reconnecting,
+ * writing pending commands once its link budget allows, pinging an idle link
+ * - and then waits on the selector until a socket is ready or the earliest
+ * device deadline. Other threads never touch the sockets: they post commands
+ * to a device and wake the loop, or queue a task to run on it.
+ */
+class EventLoop implements Runnable {
+    // Wake up at least this often, so a lost wakeup can't stall a device
+    private static final long MAX_WAIT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks =
+            new ConcurrentLinkedQueue<Runnable>();
+    private final List<FleetDevice> mDevices = new ArrayList<FleetDevice>();
+    private final AtomicBoolean mWoken = new AtomicBoolean();
+    private volatile boolean mRunning = true;
+    private volatile Thread mThread;
+
+    EventLoop() throws IOException {
+        mSelector = Selector.open();
+    }
+
+    Selector getSelector() {
+        return mSelector;
+    }
+
+    /**
+     * Wake the loop from another thread, e.g. after posting a command. Calls
+     * between two passes of the loop only wake the selector once.
+     */
+    void wakeup() {
+        if(mWoken.compareAndSet(false, true)) {
+            mSelector.wakeup();
+        }
+    }
+
+    void execute(Runnable task) {
+        mTasks.add(task);
+        wakeup();
+    }
+
+    void add(final FleetDevice device) {
+        execute(new Runnable() {
+            public void run() {
+                mDevices.add(device);
+            }
+        });
+    }
+
+    void remove(final FleetDevice device) {
+        execute(new Runnable() {
+            public void run() {
+                mDevices.remove(device);
+                device.close();
+            }
+        });
+    }
+
+    void stop() {
+        mRunning = false;
+        mSelector.wakeup();
+        Thread thread = mThread;
+        if(thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void start(String name) {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+    }
+
+    public void run() {
+        try {
+            while(mRunning) {
+                // Clear the flag before looking at the devices, so anything
+                // posted after this point wakes the select below
+                mWoken.set(false);
+                runTasks();
+
+                long now = System.nanoTime();
+                long wait = MAX_WAIT_NANOS;
+                for(int i = 0; i < mDevices.size(); i++) {
+                    wait = Math.min(wait, mDevices.get(i).poll(now));
+                }
+
+                if(wait <= 0) {
+                    mSelector.selectNow();
+                } else {
+                    // select() takes ms and treats 0 as forever
+                    mSelector.select(Math.max(1,
+                                TimeUnit.NANOSECONDS.toMillis(wait)));
+                }
+                handleSelected();
+            }
+        } catch(IOException e) {
+            // The selector itself failed, so nothing more can be done here
+        } finally {
+            runTasks();
+            for(FleetDevice device : mDevices) {
+                device.close();
+            }
+            mDevices.clear();
+            try {
+                mSelector.close();
+            } catch(IOException e) { }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = mTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void handleSelected() {
+        Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+        while(keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if(!key.isValid()) {
+                continue;
+            }
+
+            FleetDevice device = (FleetDevice) key.attachment();
+            int ready = key.readyOps();
+            if((ready & SelectionKey.OP_CONNECT) != 0) {
+                device.onConnectable();
+            }
+            if(key.isValid() && (ready & SelectionKey.OP_READ) != 0) {
+                device.onReadable();
+            }
+            if(key.isValid() && (ready & SelectionKey.OP_WRITE) != 0) {
+                device.onWritable();
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.openxc.hardware.hud.fleet;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import com.openxc.hardware.hud.Backoff;
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.CoalescingWriter;
+import com.openxc.hardware.hud.CommandEncoder;
+import com.openxc.hardware.hud.CommandSink;
+import com.openxc.hardware.hud.HudClient;
+import com.openxc.hardware.hud.HudMetrics;
+import com.openxc.hardware.hud.LinkBudget;
+import com.openxc.hardware.hud.ResponseDecoder;
+import com.openxc.hardware.hud.ShadowState;
+
+/**
+ * A FleetDevice is one HUD in a HudFleet, addressed by its MAC address.
+ *
+ * Commands are posted the same way as HudClient.postSet() - each channel
+ * keeps only its newest command, and the device's event loop writes
+ * everything pending in one batch once the link budget allows it. The loop
+ * also reads the device's responses, pings it when the link has been idle
+ * and reconnects with a backoff when the link drops, so a device costs a
+ * socket and a few buffers rather than a set of threads.
+ *
+ * Everything other than the post methods and the getters runs on the event
+ * loop's thread.
+ */
+public class FleetDevice {
+    private static final int BAUD_RATE = 57600;
+    private static final long CONNECT_TIMEOUT_NANOS =
+            TimeUnit.SECONDS.toNanos(5);
+    private static final long RESPONSE_TIMEOUT_NANOS =
+            TimeUnit.SECONDS.toNanos(2);
+    // A batch is at most one fade per channel
+    private static final int OUT_CAPACITY = 128;
+    private static final int IN_CAPACITY = 256;
+
+    private final HudFleet mFleet;
+    private final EventLoop mLoop;
+    private final String mAddress;
+    private final long mKeepaliveIdleNanos;
+    private final Backoff mBackoff;
+    private final HudMetrics mMetrics = new HudMetrics();
+    private final ShadowState mShadowState = new ShadowState();
+    private final LinkBudget mBudget = new LinkBudget(BAUD_RATE);
+    private final CoalescingWriter mWriter;
+    private final CommandEncoder mPingEncoder = new CommandEncoder();
+    private final ByteBuffer mOut = ByteBuffer.allocate(OUT_CAPACITY);
+    private final ByteBuffer mIn = ByteBuffer.allocate(IN_CAPACITY);
+    private final ResponseDecoder mDecoder = new ResponseDecoder();
+
+    private volatile HudClient.State mState = HudClient.State.CONNECTING;
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private boolean mReconnect;
+    private boolean mResponded;
+    private long mRetryAt;
+    private long mConnectStartedAt;
+    private long mLastResponseAt;
+    private boolean mPingPending;
+    private long mPingSentAt;
+
+    private final ResponseDecoder.Handler mHandler =
+            new ResponseDecoder.Handler() {
+        public void onResponse(ResponseDecoder.Type type, int value) {
+            dispatch(type);
+        }
+    };
+
+    private final CommandSink mSink = new CommandSink() {
+        public void write(CommandEncoder commands) throws BluetoothException {
+            try {
+                send(commands);
+            } finally {
+                commands.reset();
+            }
+        }
+    };
+
+    FleetDevice(HudFleet fleet, EventLoop loop, String address,
+            long keepaliveIdle, long reconnectDelay, long maxReconnectDelay) {
+        mFleet = fleet;
+        mLoop = loop;
+        mAddress = address;
+        mKeepaliveIdleNanos = TimeUnit.MILLISECONDS.toNanos(keepaliveIdle);
+        mBackoff = new Backoff(reconnectDelay, maxReconnectDelay);
+        mWriter = new CoalescingWriter(mSink, mBudget, mShadowState, this,
+                mMetrics);
+        mOut.flip();
+        mRetryAt = System.nanoTime();
+        mMetrics.recordConnectRequested();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return
+     *  CONNECTING while the link is down and being retried, and DISCONNECTED
+     *  once the device has been removed from the fleet.
+     */
+    public HudClient.State getState() {
+        return mState;
+    }
+
+    public boolean isConnected() {
+        return mState == HudClient.State.CONNECTED;
+    }
+
+    /**
+     * Queue a new intensity for a channel.
+     *
+     * @param value
+     *  The intensity, given as a double between 0.0 and 1.0
+     */
+    public void postSet(int chan, double value) {
+        mWriter.postSet(chan, CommandEncoder.intensity(value));
+        mLoop.wakeup();
+    }
+
+    /**
+     * Queue a fade for a channel.
+     *
+     * @param duration
+     *  The fade duration, in ms
+     * @param value
+     *  The intensity, given as a double between 0.0 and 1.0
+     */
+    public void postFade(int chan, long duration, double value) {
+        mWriter.postFade(chan, duration, CommandEncoder.intensity(value));
+        mLoop.wakeup();
+    }
+
+    /**
+     * Queue a new intensity for every channel.
+     *
+     * @param values
+     *  An intensity between 0.0 and 1.0 for each channel
+     */
+    public void postFrame(double[] values) {
+        enqueueFrame(FleetGroup.intensities(values));
+        mLoop.wakeup();
+    }
+
+    /**
+     * @return the device's latencies, traffic and connection history.
+     */
+    public HudMetrics.Snapshot getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        return mAddress;
+    }
+
+    EventLoop getLoop() {
+        return mLoop;
+    }
+
+    /**
+     * Queue a frame of 0-255 intensities without waking the loop, so a
+     * group can wake each loop once.
+     */
+    void enqueueFrame(long[] intensities) {
+        for(int chan = 0; chan < BluetoothHudInterface.CHANNEL_COUNT;
+                chan++) {
+            mWriter.postSet(chan, intensities[chan]);
+        }
+    }
+
+    /**
+     * Do any work that is due.
+     *
+     * @return how long until the device next needs to be polled, in ns.
+     */
+    long poll(long now) {
+        if(mState == HudClient.State.CONNECTED) {
+            pollConnected(now);
+        } else if(mState == HudClient.State.CONNECTING) {
+            if(mChannel == null && now - mRetryAt >= 0) {
+                connect(now);
+            } else if(mChannel != null
+                    && now - mConnectStartedAt > CONNECT_TIMEOUT_NANOS) {
+                connectFailed(now);
+            }
+        }
+        return nextPoll(now);
+    }
+
+    void onConnectable() {
+        long now = System.nanoTime();
+        try {
+            if(mChannel.finishConnect()) {
+                mKey.interestOps(SelectionKey.OP_READ);
+                onConnected(now);
+            }
+        } catch(IOException e) {
+            connectFailed(now);
+        }
+    }
+
+    void onReadable() {
+        int count;
+        try {
+            count = mChannel.read(mIn);
+        } catch(IOException e) {
+            count = -1;
+        }
+        if(count < 0) {
+            drop(System.nanoTime());
+            return;
+        }
+
+        mIn.flip();
+        mDecoder.decode(mIn, mHandler);
+        mIn.clear();
+    }
+
+    void onWritable() {
+        try {
+            writeOut();
+        } catch(BluetoothException e) {
+            // Already dropped the link
+        }
+    }
+
+    /**
+     * Close the link for good, when the device is removed from the fleet.
+     */
+    void close() {
+        closeChannel();
+        mState = HudClient.State.DISCONNECTED;
+        mMetrics.recordDisconnectRequested();
+    }
+
+    private void pollConnected(long now) {
+        if(mPingPending) {
+            if(now - mPingSentAt > RESPONSE_TIMEOUT_NANOS) {
+                drop(now);
+                return;
+            }
+        } else if(now - mLastResponseAt >= mKeepaliveIdleNanos
+                && !mOut.hasRemaining()) {
+            mPingPending = true;
+            mPingSentAt = now;
+            mPingEncoder.appendPing();
+            try {
+                mSink.write(mPingEncoder);
+            } catch(BluetoothException e) {
+                return;
+            }
+        }
+
+        // Wait for the last batch to leave before encoding the next one
+        if(!mOut.hasRemaining() && mWriter.hasPending()
+                && mBudget.delayNanos(now) == 0) {
+            mWriter.flush();
+        }
+    }
+
+    private long nextPoll(long now) {
+        if(mState == HudClient.State.DISCONNECTED) {
+            return Long.MAX_VALUE;
+        } else if(mState == HudClient.State.CONNECTING) {
+            if(mChannel == null) {
+                return mRetryAt - now;
+            }
+            return mConnectStartedAt + CONNECT_TIMEOUT_NANOS - now;
+        }
+
+        long wait;
+        if(mPingPending) {
+            wait = mPingSentAt + RESPONSE_TIMEOUT_NANOS - now;
+        } else {
+            wait = mLastResponseAt + mKeepaliveIdleNanos - now;
+        }
+        if(!mOut.hasRemaining() && mWriter.hasPending()) {
+            wait = Math.min(wait, mBudget.delayNanos(now));
+        }
+        return wait;
+    }
+
+    private void connect(long now) {
+        mConnectStartedAt = now;
+        try {
+            SocketAddress address = mFleet.resolve(mAddress);
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().setTcpNoDelay(true);
+            if(mChannel.connect(address)) {
+                mKey = mChannel.register(mLoop.getSelector(),
+                        SelectionKey.OP_READ, this);
+                onConnected(now);
+            } else {
+                mKey = mChannel.register(mLoop.getSelector(),
+                        SelectionKey.OP_CONNECT, this);
+            }
+        } catch(IOException e) {
+            connectFailed(now);
+        }
+    }
+
+    private void onConnected(long now) {
+        synchronized(this) {
+            mShadowState.invalidate();
+        }
+        mState = HudClient.State.CONNECTED;
+        mMetrics.recordConnected(mReconnect);
+        mReconnect = true;
+        mResponded = false;
+        mLastResponseAt = now;
+        mPingPending = false;
+        mDecoder.reset();
+    }
+
+    private void connectFailed(long now) {
+        mMetrics.recordConnectFailure();
+        closeChannel();
+        scheduleRetry(now);
+    }
+
+    /**
+     * Close a link that has failed, and try again after the backoff.
+     */
+    private void drop(long now) {
+        closeChannel();
+        synchronized(this) {
+            mShadowState.invalidate();
+        }
+        mMetrics.recordDisconnected();
+        scheduleRetry(now);
+    }
+
+    private void scheduleRetry(long now) {
+        mState = HudClient.State.CONNECTING;
+        mRetryAt = now + TimeUnit.MILLISECONDS.toNanos(mBackoff.nextDelay());
+    }
+
+    private void closeChannel() {
+        if(mKey != null) {
+            mKey.cancel();
+            mKey = null;
+        }
+        if(mChannel != null) {
+            try {
+                mChannel.close();
+            } catch(IOException e) { }
+            mChannel = null;
+        }
+        mOut.clear();
+        mOut.flip();
+        mIn.clear();
+        mPingPending = false;
+    }
+
+    private void send(CommandEncoder commands) throws BluetoothException {
+        if(mState != HudClient.State.CONNECTED) {
+            mShadowState.invalidate();
+            throw new BluetoothException("Not connected");
+        }
+
+        int length = commands.length();
+        long start = System.nanoTime();
+        mOut.clear();
+        mOut.put(commands.buffer(), 0, length);
+        mOut.flip();
+        writeOut();
+        // The write never blocks, so the budget can only use the nominal rate
+        mBudget.recordWrite(length, start, start);
+        mMetrics.recordWrite(length);
+    }
+
+    private void writeOut() throws BluetoothException {
+        try {
+            mChannel.write(mOut);
+        } catch(IOException e) {
+            mMetrics.recordWriteError();
+            drop(System.nanoTime());
+            throw new BluetoothException("Unable to write to " + mAddress +
+                    ": " + e);
+        }
+
+        if(mOut.hasRemaining()) {
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            mKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void dispatch(ResponseDecoder.Type type) {
+        mLastResponseAt = System.nanoTime();
+        if(!mResponded) {
+            // The link has proven to work, so the next drop retries quickly
+            mResponded = true;
+            mBackoff.reset();
+        }
+
+        switch(type) {
+        case ACK:
+            if(mPingPending) {
+                mMetrics.recordCommand(HudMetrics.Command.PING, mPingSentAt);
+                mPingPending = false;
+            }
+            break;
+        case START:
+            // The device rebooted with its LEDs off
+            synchronized(this) {
+                mShadowState.invalidate();
+            }
+            break;
+        case CHANNEL_ERROR:
+        case UNKNOWN:
+            mMetrics.recordParseError();
+            break;
+        default:
+            // Nobody waits for anything else from a fleet device
+            break;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.openxc.hardware.hud.fleet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.CommandEncoder;
+
+/**
+ * A FleetGroup broadcasts commands to several devices in a HudFleet, e.g.
+ * every HUD in one vehicle.
+ *
+ * A broadcast converts the intensities once, posts them to each device's
+ * pending slots and then wakes each event loop once, however many of its
+ * devices are in the group. Devices that are down keep the newest frame and
+ * get it when they reconnect.
+ */
+public class FleetGroup {
+    private final List<FleetDevice> mDevices;
+    private final EventLoop[] mLoops;
+
+    FleetGroup(List<FleetDevice> devices) {
+        mDevices = Collections.unmodifiableList(
+                new ArrayList<FleetDevice>(devices));
+        Set<EventLoop> loops = new LinkedHashSet<EventLoop>();
+        for(FleetDevice device : devices) {
+            loops.add(device.getLoop());
+        }
+        mLoops = loops.toArray(new EventLoop[loops.size()]);
+    }
+
+    public List<FleetDevice> getDevices() {
+        return mDevices;
+    }
+
+    /**
+     * Queue a new intensity for every channel of every device in the group.
+     *
+     * @param values
+     *  An intensity between 0.0 and 1.0 for each channel
+     */
+    public void postFrame(double[] values) {
+        long[] intensities = intensities(values);
+        for(int i = 0; i < mDevices.size(); i++) {
+            mDevices.get(i).enqueueFrame(intensities);
+        }
+        wakeup();
+    }
+
+    /**
+     * Queue the same intensity for every channel of every device.
+     */
+    public void postAll(double value) {
+        double[] values = new double[BluetoothHudInterface.CHANNEL_COUNT];
+        Arrays.fill(values, value);
+        postFrame(values);
+    }
+
+    private void wakeup() {
+        for(EventLoop loop : mLoops) {
+            loop.wakeup();
+        }
+    }
+
+    static long[] intensities(double[] values) {
+        if(values.length < BluetoothHudInterface.CHANNEL_COUNT) {
+            throw new IllegalArgumentException("Expected " +
+                    BluetoothHudInterface.CHANNEL_COUNT + " values, got " +
+                    values.length);
+        }
+        long[] intensities = new long[BluetoothHudInterface.CHANNEL_COUNT];
+        for(int i = 0; i < intensities.length; i++) {
+            intensities[i] = CommandEncoder.intensity(values[i]);
+        }
+        return intensities;
+    }
+}
@@ -0,0 +1,201 @@
+package com.openxc.hardware.hud.fleet;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A HudFleet drives many HUDs from a small, fixed pool of threads.
+ *
+ * Where a HudClient runs a writer, a reader and a keepalive thread for its
+ * one device, the fleet spreads its devices over a few event loops, each of
+ * which multiplexes the writes, reads, keepalive pings and reconnects for
+ * its share of the devices with a NIO selector. Devices are addressed by
+ * their MAC address, and a FleetGroup broadcasts a frame to several of them.
+ *
+ * Android's Bluetooth sockets can't be used with a selector, so the fleet
+ * connects to devices over TCP - the Resolver maps each MAC address to a
+ * socket address, e.g. a SimulatorServer on the loopback interface or a
+ * serial-to-TCP bridge for a test rig.
+ */
+public class HudFleet {
+    public static final int DEFAULT_THREADS = 1;
+    private static final long DEFAULT_KEEPALIVE_IDLE = 3000;
+    private static final long DEFAULT_RECONNECT_DELAY = 250;
+    private static final long DEFAULT_MAX_RECONNECT_DELAY = 30 * 1000;
+
+    /**
+     * A Resolver finds the socket to connect to for a device.
+     */
+    public interface Resolver {
+        /**
+         * This is called on an event loop thread before each connection
+         * attempt, so it must not block.
+         *
+         * @throws IOException
+         *  If the device can't be reached, which counts as a failed connect.
+         */
+        public SocketAddress resolve(String address) throws IOException;
+    }
+
+    private final Resolver mResolver;
+    private final EventLoop[] mLoops;
+    private final Map<String, FleetDevice> mDevices =
+            new LinkedHashMap<String, FleetDevice>();
+    private int mNextLoop;
+    private long mKeepaliveIdle = DEFAULT_KEEPALIVE_IDLE;
+    private long mReconnectDelay = DEFAULT_RECONNECT_DELAY;
+    private long mMaxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+
+    public HudFleet(Resolver resolver) throws IOException {
+        this(resolver, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads
+     *  The number of event loop threads to spread the devices over
+     */
+    public HudFleet(Resolver resolver, int threads) throws IOException {
+        if(threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " +
+                    threads);
+        }
+        mResolver = resolver;
+        mLoops = new EventLoop[threads];
+        for(int i = 0; i < threads; i++) {
+            mLoops[i] = new EventLoop();
+        }
+        for(int i = 0; i < threads; i++) {
+            mLoops[i].start("HudFleet-" + i);
+        }
+    }
+
+    /**
+     * Set how long a device's link can go without any response before it is
+     * pinged. This applies to devices added after the call.
+     *
+     * @param idle
+     *  The idle window in ms
+     */
+    public synchronized void setKeepaliveIdle(long idle) {
+        mKeepaliveIdle = idle;
+    }
+
+    /**
+     * Set the delays between reconnect attempts. This applies to devices
+     * added after the call.
+     *
+     * @param initialDelay
+     *  The delay before the first retry, in ms
+     * @param maxDelay
+     *  The longest delay between retries, in ms
+     */
+    public synchronized void setReconnectDelay(long initialDelay,
+            long maxDelay) {
+        if(initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid reconnect delays: "
+                    + initialDelay + ", " + maxDelay);
+        }
+        mReconnectDelay = initialDelay;
+        mMaxReconnectDelay = maxDelay;
+    }
+
+    /**
+     * Add a device to the fleet and start connecting to it. The fleet keeps
+     * the link up until the device is removed.
+     *
+     * @return
+     *  The device, or the existing one if the address was already added.
+     */
+    public synchronized FleetDevice add(String address) {
+        String key = normalize(address);
+        FleetDevice device = mDevices.get(key);
+        if(device == null) {
+            EventLoop loop = mLoops[mNextLoop];
+            mNextLoop = (mNextLoop + 1) % mLoops.length;
+            device = new FleetDevice(this, loop, key, mKeepaliveIdle,
+                    mReconnectDelay, mMaxReconnectDelay);
+            mDevices.put(key, device);
+            loop.add(device);
+        }
+        return device;
+    }
+
+    /**
+     * Disconnect a device and remove it from the fleet.
+     */
+    public synchronized void remove(String address) {
+        FleetDevice device = mDevices.remove(normalize(address));
+        if(device != null) {
+            device.getLoop().remove(device);
+        }
+    }
+
+    /**
+     * @return the device with the address, or null if it hasn't been added.
+     */
+    public synchronized FleetDevice getDevice(String address) {
+        return mDevices.get(normalize(address));
+    }
+
+    public synchronized Collection<FleetDevice> getDevices() {
+        return Collections.unmodifiableList(
+                new ArrayList<FleetDevice>(mDevices.values()));
+    }
+
+    /**
+     * Create a group for broadcasting to some of the fleet's devices. The
+     * group keeps working with the devices that were in the fleet when it
+     * was created.
+     *
+     * @throws IllegalArgumentException
+     *  If an address hasn't been added to the fleet.
+     */
+    public synchronized FleetGroup group(String... addresses) {
+        List<FleetDevice> devices = new ArrayList<FleetDevice>();
+        for(String address : addresses) {
+            FleetDevice device = mDevices.get(normalize(address));
+            if(device == null) {
+                throw new IllegalArgumentException("Unknown device: " +
+                        address);
+            }
+            devices.add(device);
+        }
+        return new FleetGroup(devices);
+    }
+
+    /**
+     * @return a group of every device in the fleet.
+     */
+    public synchronized FleetGroup all() {
+        return new FleetGroup(new ArrayList<FleetDevice>(mDevices.values()));
+    }
+
+    /**
+     * Disconnect from every device and stop the event loops.
+     */
+    public void shutdown() {
+        synchronized(this) {
+            mDevices.clear();
+        }
+        for(EventLoop loop : mLoops) {
+            loop.stop();
+        }
+    }
+
+    SocketAddress resolve(String address) throws IOException {
+        return mResolver.resolve(address);
+    }
+
+    private static String normalize(String address) {
+        return address.toUpperCase(Locale.US);
+    }
+}
@@ -0,0 +1,183 @@
+package com.openxc.hardware.hud.layer;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.CommandEncoder;
+
+/**
+ * A Layer is one client's view of the HUD's LEDs in a LayerCompositor.
+ *
+ * Each layer holds an intensity for the channels it covers and leaves the
+ * rest transparent. The compositor stacks the layers by priority, lowest
+ * first, and each layer is blended onto the layers beneath it on the
+ * channels it covers:
+ *
+ *  REPLACE - the layer's value hides whatever is underneath
+ *  MAX - the brighter of the layer and what is underneath
+ *  ADD - the sum of the two, limited to full intensity
+ *
+ * and the layer's opacity then mixes the blended value with what was
+ * underneath, so a half-opaque REPLACE layer shows halfway between the two.
+ *
+ * Setting a value only updates the layer - the compositor sends the result
+ * on its next tick, so a layer can be updated as often as its owner likes
+ * without adding any traffic to the link.
+ */
+public class Layer {
+    public enum Blend {
+        REPLACE, MAX, ADD
+    }
+
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+    private static final int OPAQUE = 255;
+
+    private final LayerCompositor mCompositor;
+    private final int mPriority;
+    private final int[] mValues = new int[CHANNELS];
+    private int mMask;
+    private Blend mBlend;
+    private int mOpacity = OPAQUE;
+
+    Layer(LayerCompositor compositor, int priority, Blend blend) {
+        mCompositor = compositor;
+        mPriority = priority;
+        mBlend = blend;
+    }
+
+    /**
+     * @return the layer's place in the stack - higher layers go on top.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Cover a channel with the given intensity.
+     *
+     * @param value
+     *  The intensity, given as a double between 0.0 and 1.0; values outside
+     *  of that range are clamped.
+     */
+    public void set(int chan, double value) {
+        checkChannel(chan);
+        synchronized(mCompositor) {
+            mValues[chan] = intensity(value);
+            mMask |= 1 << chan;
+            mCompositor.invalidate();
+        }
+    }
+
+    /**
+     * Cover the channels in the mask with the given intensities.
+     *
+     * @param values
+     *  The intensity for each channel, indexed by channel number, clamped to
+     *  0.0-1.0 like set()
+     */
+    public void setFrame(int channelMask, double[] values) {
+        checkFrame(values);
+        synchronized(mCompositor) {
+            for(int chan = 0; chan < CHANNELS; chan++) {
+                if((channelMask & (1 << chan)) != 0) {
+                    mValues[chan] = intensity(values[chan]);
+                    mMask |= 1 << chan;
+                }
+            }
+            mCompositor.invalidate();
+        }
+    }
+
+    /**
+     * Make a channel transparent again, so the layers beneath show through.
+     */
+    public void clear(int chan) {
+        checkChannel(chan);
+        synchronized(mCompositor) {
+            mMask &= ~(1 << chan);
+            mCompositor.invalidate();
+        }
+    }
+
+    /**
+     * Make every channel transparent.
+     */
+    public void clear() {
+        synchronized(mCompositor) {
+            mMask = 0;
+            mCompositor.invalidate();
+        }
+    }
+
+    public void setBlend(Blend blend) {
+        synchronized(mCompositor) {
+            mBlend = blend;
+            mCompositor.invalidate();
+        }
+    }
+
+    /**
+     * @param opacity
+     *  How much of the blended value shows, between 0.0 (the layer is
+     *  invisible) and 1.0 (the default)
+     */
+    public void setOpacity(double opacity) {
+        if(!(opacity >= 0 && opacity <= 1)) {
+            throw new IllegalArgumentException("Invalid opacity: " +
+                    opacity);
+        }
+        synchronized(mCompositor) {
+            mOpacity = (int) Math.round(opacity * OPAQUE);
+            mCompositor.invalidate();
+        }
+    }
+
+    /**
+     * Blend the layer's value for a channel onto what is beneath it. Must
+     * be called with the compositor's lock held.
+     *
+     * @param below
+     *  The 0-255 value of the layers beneath
+     * @return the 0-255 value with this layer on top.
+     */
+    int blend(int chan, int below) {
+        if((mMask & (1 << chan)) == 0) {
+            return below;
+        }
+
+        int value = mValues[chan];
+        int blended;
+        switch(mBlend) {
+        case MAX:
+            blended = Math.max(below, value);
+            break;
+        case ADD:
+            blended = Math.min(OPAQUE, below + value);
+            break;
+        default:
+            blended = value;
+            break;
+        }
+        if(mOpacity == OPAQUE) {
+            return blended;
+        }
+        return below + Math.round((blended - below) * mOpacity
+                / (float) OPAQUE);
+    }
+
+    private static int intensity(double value) {
+        return (int) Math.max(0, Math.min(OPAQUE,
+                    CommandEncoder.intensity(value)));
+    }
+
+    private static void checkFrame(double[] values) {
+        if(values.length < CHANNELS) {
+            throw new IllegalArgumentException("Expected " + CHANNELS +
+                    " values, got " + values.length);
+        }
+    }
+
+    private static void checkChannel(int chan) {
+        if(chan < 0 || chan >= CHANNELS) {
+            throw new IllegalArgumentException("Invalid channel: " + chan);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.openxc.hardware.hud.layer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.FrameTicker;
+
+/**
+ * The LayerCompositor lets several parts of an app share the HUD, e.g.
+ * navigation, a shift light and a battery indicator, without overwriting
+ * each other.
+ *
+ * Each client draws into its own Layer, and the FrameTicker reduces all of
+ * the layers into one frame at most once per tick, by blending them from
+ * the lowest priority to the highest. Only the channels whose final value
+ * changed since the last frame are sent, so the traffic on the link depends
+ * on how often the output changes - not on how many clients there are or
+ * how often they update their layers. Nothing is sent at all while no layer
+ * changes.
+ */
+public class LayerCompositor extends FrameTicker {
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+
+    // Sorted by priority, and by age among layers of the same priority
+    private final List<Layer> mLayers = new ArrayList<Layer>();
+    private long mUpdateCount;
+
+    public LayerCompositor(BluetoothHudInterface hud) {
+        super(hud, "HudCompositor");
+    }
+
+    /**
+     * Add a layer that replaces whatever is beneath it.
+     *
+     * @param priority
+     *  The layer's place in the stack - higher layers go on top, and a new
+     *  layer goes on top of existing layers with the same priority
+     */
+    public Layer createLayer(int priority) {
+        return createLayer(priority, Layer.Blend.REPLACE);
+    }
+
+    /**
+     * Add a layer. It starts out transparent.
+     *
+     * @param priority
+     *  The layer's place in the stack - higher layers go on top, and a new
+     *  layer goes on top of existing layers with the same priority
+     */
+    public synchronized Layer createLayer(int priority, Layer.Blend blend) {
+        Layer layer = new Layer(this, priority, blend);
+        int index = mLayers.size();
+        while(index > 0 && mLayers.get(index - 1).getPriority() > priority) {
+            index--;
+        }
+        mLayers.add(index, layer);
+        return layer;
+    }
+
+    /**
+     * Take a layer out of the stack, uncovering whatever was beneath it.
+     */
+    public synchronized void removeLayer(Layer layer) {
+        if(mLayers.remove(layer)) {
+            invalidate();
+        }
+    }
+
+    public synchronized int getLayerCount() {
+        return mLayers.size();
+    }
+
+    /**
+     * @return the number of layer changes since the compositor was created.
+     */
+    public synchronized long getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    /**
+     * Mark the output as out of date. Must be called with the lock held.
+     */
+    void invalidate() {
+        mUpdateCount++;
+        setDirty(true);
+    }
+
+    protected void compose(int[] frame) {
+        for(int chan = 0; chan < CHANNELS; chan++) {
+            int value = 0;
+            for(int i = 0; i < mLayers.size(); i++) {
+                value = mLayers.get(i).blend(chan, value);
+            }
+            frame[chan] = value;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.openxc.hardware.hud.signal;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+
+/**
+ * A SignalBar maps a numeric vehicle signal (RPM, speed, fuel level...) onto
+ * the HUD's row of LEDs.
+ *
+ * The signal is first scaled into the range between min and max, and then
+ * shown in one of three ways:
+ *
+ *  VU - a bar graph that fills from channel 0 upwards, with the channel at
+ *      the tip of the bar partially lit
+ *  THRESHOLD - each channel is fully on once the signal reaches its
+ *      threshold, e.g. shift lights
+ *  PROPORTIONAL - every channel shows the same intensity, in proportion to
+ *      the signal
+ *
+ * Intensities come out as the firmware's 0-255 values, so two samples that
+ * map to the same array look exactly the same on the device.
+ */
+public class SignalBar {
+    public enum Mode {
+        VU, THRESHOLD, PROPORTIONAL
+    }
+
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+    private static final int MAX_INTENSITY = 255;
+
+    private final Mode mMode;
+    private final double mMin;
+    private final double mMax;
+    private final double[] mThresholds = new double[CHANNELS];
+
+    /**
+     * @param min
+     *  The signal value at which the bar is empty
+     * @param max
+     *  The signal value at which the bar is full
+     */
+    public SignalBar(Mode mode, double min, double max) {
+        if(!(max > min)) {
+            throw new IllegalArgumentException("Invalid signal range: " +
+                    min + " - " + max);
+        }
+        mMode = mode;
+        mMin = min;
+        mMax = max;
+        // By default the thresholds split the range evenly, so the last
+        // channel comes on at max
+        for(int i = 0; i < CHANNELS; i++) {
+            mThresholds[i] = min + (max - min) * (i + 1) / CHANNELS;
+        }
+    }
+
+    /**
+     * Set the signal value at which each channel comes on in THRESHOLD mode.
+     *
+     * @param thresholds
+     *  One value for each channel
+     */
+    public void setThresholds(double... thresholds) {
+        if(thresholds.length != CHANNELS) {
+            throw new IllegalArgumentException("Expected " + CHANNELS +
+                    " thresholds, got " + thresholds.length);
+        }
+        System.arraycopy(thresholds, 0, mThresholds, 0, CHANNELS);
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Map a sample to the intensity of each channel.
+     *
+     * @param intensities
+     *  Filled with the 0-255 intensity for each channel
+     */
+    public void map(double sample, int[] intensities) {
+        if(Double.isNaN(sample)) {
+            throw new IllegalArgumentException("Sample is not a number");
+        }
+
+        double fraction = (sample - mMin) / (mMax - mMin);
+        fraction = Math.max(0, Math.min(1, fraction));
+        switch(mMode) {
+        case VU:
+            double position = fraction * CHANNELS;
+            for(int i = 0; i < CHANNELS; i++) {
+                double fill = Math.max(0, Math.min(1, position - i));
+                intensities[i] = quantize(fill);
+            }
+            break;
+        case THRESHOLD:
+            for(int i = 0; i < CHANNELS; i++) {
+                intensities[i] = sample >= mThresholds[i] ? MAX_INTENSITY : 0;
+            }
+            break;
+        default:
+            int intensity = quantize(fraction);
+            for(int i = 0; i < CHANNELS; i++) {
+                intensities[i] = intensity;
+            }
+            break;
+        }
+    }
+
+    private static int quantize(double fraction) {
+        return (int) Math.round(fraction * MAX_INTENSITY);
+    }
+}
@@ -0,0 +1,86 @@
+package com.openxc.hardware.hud.signal;
+
+import java.util.Arrays;
+
+import com.openxc.hardware.hud.BluetoothHudInterface;
+import com.openxc.hardware.hud.FrameTicker;
+
+/**
+ * The SignalPipeline streams samples of a vehicle signal to the HUD through
+ * a SignalBar.
+ *
+ * Producers call offer() for every sample, however fast they arrive, and it
+ * returns immediately. Each sample is mapped and quantized to the 0-255
+ * values the firmware shows straight away, and only kept if it changes the
+ * frame that is waiting to be sent - at 100Hz, most samples of a slowly
+ * changing signal are dropped right there.
+ *
+ * The waiting frame is sent by the FrameTicker at most once per frame
+ * period, with only the channels that differ from the last frame sent.
+ */
+public class SignalPipeline extends FrameTicker {
+    private static final int CHANNELS = BluetoothHudInterface.CHANNEL_COUNT;
+
+    private final SignalBar mBar;
+    private final int[] mSample = new int[CHANNELS];
+    private final int[] mPending = new int[CHANNELS];
+    private boolean mHasSample;
+    private long mSampleCount;
+    private long mUnchangedCount;
+    private long mConflatedCount;
+
+    public SignalPipeline(BluetoothHudInterface hud, SignalBar bar) {
+        super(hud, "HudSignalPipeline");
+        mBar = bar;
+    }
+
+    /**
+     * Offer the latest sample of the signal.
+     *
+     * @return
+     *  true if the sample changed the frame waiting to be sent, false if it
+     *  would look the same on the HUD and was dropped.
+     */
+    public synchronized boolean offer(double sample) {
+        mSampleCount++;
+        mBar.map(sample, mSample);
+        if(mHasSample && Arrays.equals(mSample, mPending)) {
+            mUnchangedCount++;
+            return false;
+        }
+
+        if(isDirty()) {
+            mConflatedCount++;
+        }
+        System.arraycopy(mSample, 0, mPending, 0, CHANNELS);
+        mHasSample = true;
+        // A signal that wanders off and comes back before the next frame
+        // doesn't need a frame at all
+        setDirty(!isSent(mPending));
+        return true;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return the number of samples dropped because they didn't change the
+     *  output.
+     */
+    public synchronized long getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    /**
+     * @return the number of frames replaced by a newer one before they were
+     *  sent.
+     */
+    public synchronized long getConflatedCount() {
+        return mConflatedCount;
+    }
+
+    protected void compose(int[] frame) {
+        System.arraycopy(mPending, 0, frame, 0, CHANNELS);
+    }
+}
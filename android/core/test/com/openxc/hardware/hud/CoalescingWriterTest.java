@@ -0,0 +1,214 @@
+package com.openxc.hardware.hud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingWriterTest {
+    private static final long TIMEOUT_MILLIS = 2000;
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+    // About 200ms to drain at 57600 baud
+    private static final int BACKLOG_BYTES = 1152;
+    // LinkBudget's default limits for NORMAL and AMBIENT batches
+    private static final long NORMAL_BACKLOG_NANOS = 20 * NANOS_PER_MILLI;
+    private static final long AMBIENT_BACKLOG_NANOS = 5 * NANOS_PER_MILLI;
+
+    private final List<String> mBatches =
+            Collections.synchronizedList(new ArrayList<String>());
+    private final List<Long> mBatchTimes =
+            Collections.synchronizedList(new ArrayList<Long>());
+    private final Object mLock = new Object();
+    private HudMetrics mMetrics;
+    private LinkBudget mBudget;
+    private CoalescingWriter mWriter;
+    private Thread mThread;
+
+    @Before
+    public void setUp() {
+        mMetrics = new HudMetrics();
+        CommandSink sink = new CommandSink() {
+            public void write(CommandEncoder commands) {
+                mBatchTimes.add(System.nanoTime());
+                mBatches.add(new String(commands.buffer(), 0,
+                            commands.length()));
+                commands.reset();
+            }
+        };
+        // Unless a test starts the writer thread, the writer is driven by
+        // calling flush(), so the budget is unused
+        mBudget = new LinkBudget(57600);
+        mWriter = new CoalescingWriter(sink, mBudget, new ShadowState(),
+                mLock, mMetrics);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mWriter.stop();
+        if(mThread != null) {
+            mThread.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void discardDropsPendingCommandsInEveryLane() {
+        mWriter.postSet(1, 255);
+        mWriter.postSet(1, 100, Priority.ALERT,
+                BluetoothHudInterface.NO_DEADLINE);
+        mWriter.postSet(2, 50);
+        synchronized(mLock) {
+            mWriter.discard(1 << 1);
+        }
+
+        assertTrue(mWriter.flush());
+        assertEquals(1, mBatches.size());
+        assertEquals("S250M", mBatches.get(0));
+        assertFalse(mWriter.hasPending());
+    }
+
+    @Test
+    public void newestCommandReplacesPendingOne() {
+        mWriter.postSet(1, 10);
+        mWriter.postSet(1, 20);
+        mWriter.postFade(1, 500, 30);
+
+        assertTrue(mWriter.flush());
+        assertEquals(1, mBatches.size());
+        assertEquals("F1500,30M", mBatches.get(0));
+        assertEquals(2, mMetrics.snapshot().getSupersededCount());
+    }
+
+    @Test
+    public void commandPastItsDeadlineIsDropped() {
+        mWriter.postSet(1, 100, Priority.NORMAL, System.nanoTime() - 1);
+        mWriter.postSet(2, 100, Priority.NORMAL,
+                System.nanoTime() + TIMEOUT_MILLIS * NANOS_PER_MILLI);
+
+        assertTrue(mWriter.flush());
+        assertEquals(1, mBatches.size());
+        assertEquals("S2100M", mBatches.get(0));
+        assertEquals(1, mMetrics.snapshot().getDeadlineMissCount());
+    }
+
+    @Test
+    public void lanesAreSentHighestPriorityFirst() {
+        mWriter.postSet(0, 30, Priority.AMBIENT,
+                BluetoothHudInterface.NO_DEADLINE);
+        mWriter.postSet(1, 20);
+        mWriter.postSet(2, 10, Priority.ALERT,
+                BluetoothHudInterface.NO_DEADLINE);
+
+        assertTrue(mWriter.flush());
+        assertEquals(1, mBatches.size());
+        assertEquals("S210MS120MS030M", mBatches.get(0));
+    }
+
+    @Test
+    public void commandPostedBeforeAnAlertIsDropped() {
+        mWriter.postSet(1, 20);
+        mWriter.postSet(1, 200, Priority.ALERT,
+                BluetoothHudInterface.NO_DEADLINE);
+
+        assertTrue(mWriter.flush(Priority.ALERT));
+        assertTrue(mWriter.hasPending(Priority.NORMAL));
+        // The NORMAL command is stale once the alert has gone out
+        assertTrue(mWriter.flush());
+        assertEquals(1, mBatches.size());
+        assertEquals("S1200M", mBatches.get(0));
+
+        // A newer one goes out as usual
+        mWriter.postSet(1, 20);
+        assertTrue(mWriter.flush());
+        assertEquals("S120M", mBatches.get(1));
+    }
+
+    @Test
+    public void alertGoesOutWhileLowerLanesAreHeldBack() throws Exception {
+        long now = System.nanoTime();
+        mBudget.recordWrite(BACKLOG_BYTES, now, now);
+        long backlog = mBudget.backlogNanos(now);
+        mThread = new Thread(mWriter);
+        mThread.start();
+
+        mWriter.postSet(2, 30, Priority.AMBIENT,
+                BluetoothHudInterface.NO_DEADLINE);
+        mWriter.postSet(1, 20);
+        mWriter.postSet(0, 10, Priority.ALERT,
+                BluetoothHudInterface.NO_DEADLINE);
+        awaitBatches(1);
+        assertEquals("S010M", mBatches.get(0));
+        assertTrue(mWriter.hasPending(Priority.NORMAL));
+        assertTrue(mWriter.hasPending(Priority.AMBIENT));
+
+        // NORMAL goes once the backlog is under the limit, and AMBIENT waits
+        // for it to drain further
+        awaitBatches(3);
+        assertEquals("S120M", mBatches.get(1));
+        assertTrue(mBatchTimes.get(1) - now
+                >= backlog - NORMAL_BACKLOG_NANOS);
+        assertEquals("S230M", mBatches.get(2));
+        assertTrue(mBatchTimes.get(2) - now
+                >= backlog - AMBIENT_BACKLOG_NANOS);
+    }
+
+    @Test
+    public void commandsStayWithTheirDeadlinesWhileRacingAFlush()
+            throws Exception {
+        // One producer posts a value whose deadline has always passed and
+        // the other posts values without one, so any expired value that is
+        // sent was paired with the other producer's deadline
+        final long expiredAt = System.nanoTime() - 1;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread expired = new Thread() {
+            public void run() {
+                while(running.get()) {
+                    mWriter.postSet(1, 50, Priority.NORMAL, expiredAt);
+                }
+            }
+        };
+        Thread live = new Thread() {
+            public void run() {
+                for(int i = 0; running.get(); i++) {
+                    mWriter.postSet(1, 100 + i % 100, Priority.NORMAL,
+                            BluetoothHudInterface.NO_DEADLINE);
+                }
+            }
+        };
+        expired.start();
+        live.start();
+
+        long end = System.currentTimeMillis() + 200;
+        while(System.currentTimeMillis() < end) {
+            mWriter.flush();
+        }
+        running.set(false);
+        expired.join(TIMEOUT_MILLIS);
+        live.join(TIMEOUT_MILLIS);
+
+        assertTrue(mMetrics.snapshot().getDeadlineMissCount() > 0);
+        synchronized(mBatches) {
+            assertFalse(mBatches.isEmpty());
+            for(String batch : mBatches) {
+                assertFalse(batch, batch.equals("S150M"));
+            }
+        }
+    }
+
+    private void awaitBatches(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(mBatches.size() < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mBatches.size());
+    }
+}
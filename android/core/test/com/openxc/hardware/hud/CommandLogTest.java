@@ -0,0 +1,136 @@
+package com.openxc.hardware.hud;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandLogTest {
+    private static final byte[] SET = "S2255M".getBytes();
+    private static final byte[] OK = "OK\r\n".getBytes();
+
+    private CommandRecorder mRecorder;
+    private long mStart;
+
+    @Before
+    public void setUp() {
+        mRecorder = new CommandRecorder(CommandRecorder.DEFAULT_CAPACITY);
+        // Every record is timed after the recorder was created
+        mStart = System.nanoTime() + 1000000;
+    }
+
+    @Test
+    public void startsWithTheHeader() throws Exception {
+        byte[] log = write(mRecorder);
+        assertEquals(CommandRecorder.HEADER_LENGTH, log.length);
+        assertArrayEquals(CommandRecorder.MAGIC,
+                Arrays.copyOf(log, CommandRecorder.MAGIC.length));
+        assertEquals(CommandRecorder.FORMAT_VERSION,
+                log[CommandRecorder.MAGIC.length]);
+    }
+
+    @Test
+    public void readsBackEachRecord() {
+        mRecorder.recordLinkOpened();
+        mRecorder.recordOutgoing(SET, 0, SET.length, mStart);
+        mRecorder.recordIncoming(OK, 0, OK.length, mStart + 300);
+        mRecorder.recordLinkClosed();
+        assertEquals(4, mRecorder.getRecordCount());
+
+        CommandLog log = mRecorder.snapshot();
+        byte[] payload = new byte[16];
+
+        assertTrue(log.next());
+        assertEquals(CommandLog.LINK_OPENED, log.getType());
+        assertEquals(0, log.getLength());
+
+        assertTrue(log.next());
+        assertEquals(CommandLog.OUTGOING, log.getType());
+        long sentAt = log.getTime();
+        assertEquals(SET.length, log.getPayload(payload));
+        assertArrayEquals(SET, Arrays.copyOf(payload, SET.length));
+
+        assertTrue(log.next());
+        assertEquals(CommandLog.INCOMING, log.getType());
+        assertEquals(300, log.getTime() - sentAt);
+        assertEquals(OK.length, log.getPayload(payload));
+        assertArrayEquals(OK, Arrays.copyOf(payload, OK.length));
+
+        assertTrue(log.next());
+        assertEquals(CommandLog.LINK_CLOSED, log.getType());
+        assertFalse(log.next());
+        assertEquals(CommandLog.END, log.getType());
+    }
+
+    @Test
+    public void readingThePayloadDoesNotMoveToTheNextRecord() {
+        mRecorder.recordOutgoing(SET, 0, SET.length, mStart);
+        mRecorder.recordIncoming(OK, 0, OK.length, mStart);
+
+        CommandLog log = mRecorder.snapshot();
+        byte[] payload = new byte[16];
+        assertTrue(log.next());
+        log.getPayload(payload);
+        log.getPayload(payload);
+        assertTrue(log.next());
+        assertEquals(CommandLog.INCOMING, log.getType());
+    }
+
+    @Test
+    public void rewindStartsOver() {
+        mRecorder.recordOutgoing(SET, 0, SET.length, mStart);
+        CommandLog log = mRecorder.snapshot();
+        assertTrue(log.next());
+        long time = log.getTime();
+
+        log.rewind();
+        assertEquals(CommandLog.END, log.getType());
+        assertEquals(0, log.getLength());
+        assertEquals(0, log.getPayload(new byte[0]));
+
+        assertTrue(log.next());
+        assertEquals(time, log.getTime());
+        assertEquals(SET.length, log.getLength());
+    }
+
+    @Test
+    public void truncatedLogReadsUpToTheLastCompleteRecord()
+            throws Exception {
+        mRecorder.recordOutgoing(SET, 0, SET.length, mStart);
+        mRecorder.recordOutgoing(SET, 0, SET.length, mStart);
+        byte[] bytes = write(mRecorder);
+
+        CommandLog log = new CommandLog(
+                ByteBuffer.wrap(bytes, 0, bytes.length - 1).slice());
+        assertTrue(log.next());
+        assertFalse(log.next());
+    }
+
+    @Test
+    public void fullRecorderDropsRecords() {
+        CommandRecorder recorder =
+                new CommandRecorder(CommandRecorder.HEADER_LENGTH + 24);
+        recorder.recordOutgoing(SET, 0, SET.length, mStart);
+        recorder.recordOutgoing(SET, 0, SET.length, mStart);
+        assertEquals(1, recorder.getRecordCount());
+        assertEquals(1, recorder.getDroppedRecordCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSomethingElse() {
+        new CommandLog(ByteBuffer.wrap(new byte[32]));
+    }
+
+    private static byte[] write(CommandRecorder recorder) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        recorder.writeTo(stream);
+        return stream.toByteArray();
+    }
+}
@@ -0,0 +1,166 @@
+package com.openxc.hardware.hud;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResponseReaderTest {
+    private static final long TIMEOUT = 1000;
+
+    private MemoryPipe mPipe;
+    private OutputStream mDevice;
+    private ResponseReader mReader;
+    private Thread mThread;
+    private final CountDownLatch mReset = new CountDownLatch(1);
+    private final CountDownLatch mDisconnected = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        mPipe = new MemoryPipe();
+        mDevice = mPipe.getOutputStream();
+        mReader = new ResponseReader(mPipe.getInputStream(),
+                new ResponseReader.Listener() {
+                    public void onDisconnected() {
+                        mDisconnected.countDown();
+                    }
+
+                    public void onDeviceReset() {
+                        mReset.countDown();
+                    }
+
+                    public void onUnexpectedResponse(String line) { }
+                }, new HudMetrics());
+        mThread = new Thread(mReader);
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mReader.close();
+        mThread.join(TIMEOUT);
+    }
+
+    @Test
+    public void routesEachResponseToItsOwnKind() throws Exception {
+        ResponseFuture battery = mReader.expect(ResponseReader.Request.BATTERY);
+        ResponseFuture ping = mReader.expect(ResponseReader.Request.PING);
+        ResponseFuture version = mReader.expect(ResponseReader.Request.VERSION);
+        ResponseFuture sequence =
+                mReader.expect(ResponseReader.Request.SEQUENCE);
+
+        send("OK\r\nACK\r\nERRCO50\r\nVAL:812\r\nVER:2\r\nSEQ:3\r\n");
+
+        assertEquals(0, ping.get(TIMEOUT));
+        assertEquals(812, battery.get(TIMEOUT));
+        assertEquals(2, version.get(TIMEOUT));
+        assertEquals(3, sequence.get(TIMEOUT));
+    }
+
+    @Test
+    public void versionOneFirmwareRejectsTheVersionQuery() throws Exception {
+        ResponseFuture version = mReader.expect(ResponseReader.Request.VERSION);
+        send("ERRCO56\r\n");
+        assertEquals(1, version.get(TIMEOUT));
+    }
+
+    @Test
+    public void lateResponseIsDiscardedAfterTimeout() throws Exception {
+        ResponseFuture first = mReader.expect(ResponseReader.Request.BATTERY);
+        try {
+            first.get(10);
+            fail("Expected the first query to time out");
+        } catch(BluetoothException e) {
+            mReader.cancel(ResponseReader.Request.BATTERY, first);
+        }
+
+        ResponseFuture second = mReader.expect(ResponseReader.Request.BATTERY);
+        // The answer to the first query arrives late, ahead of the second
+        send("VAL:1\r\nVAL:2\r\n");
+
+        assertEquals(2, second.get(TIMEOUT));
+        assertTrue(first.isDone());
+    }
+
+    @Test
+    public void lostResponseIsGivenUpAfterTheGracePeriod() throws Exception {
+        mReader.setLateResponseGrace(20);
+        ResponseFuture first = mReader.expect(ResponseReader.Request.BATTERY);
+        try {
+            first.get(10);
+            fail("Expected the first query to time out");
+        } catch(BluetoothException e) {
+            mReader.cancel(ResponseReader.Request.BATTERY, first);
+        }
+
+        // The answer to the first query never arrives
+        Thread.sleep(40);
+        ResponseFuture second = mReader.expect(ResponseReader.Request.BATTERY);
+        send("VAL:2\r\n");
+        assertEquals(2, second.get(TIMEOUT));
+
+        ResponseFuture third = mReader.expect(ResponseReader.Request.BATTERY);
+        send("VAL:3\r\n");
+        assertEquals(3, third.get(TIMEOUT));
+    }
+
+    @Test
+    public void withdrawnRequestDoesNotTakeAResponse() throws Exception {
+        ResponseFuture unsent = mReader.expect(ResponseReader.Request.PING);
+        mReader.withdraw(ResponseReader.Request.PING, unsent);
+
+        ResponseFuture ping = mReader.expect(ResponseReader.Request.PING);
+        send("ACK\r\n");
+
+        assertEquals(0, ping.get(TIMEOUT));
+        assertFalse(unsent.isDone());
+    }
+
+    @Test
+    public void startBannerFailsPendingRequests() throws Exception {
+        ResponseFuture battery = mReader.expect(ResponseReader.Request.BATTERY);
+        send("START\r\n");
+
+        try {
+            battery.get(TIMEOUT);
+            fail("Expected the query to fail when the device reset");
+        } catch(BluetoothException e) {
+        }
+        // The listener hears about the reset after the requests fail
+        assertTrue(mReset.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        ResponseFuture next = mReader.expect(ResponseReader.Request.BATTERY);
+        send("VAL:5\r\n");
+        assertEquals(5, next.get(TIMEOUT));
+    }
+
+    @Test
+    public void closingTheLinkFailsPendingRequests() throws Exception {
+        ResponseFuture battery = mReader.expect(ResponseReader.Request.BATTERY);
+        mPipe.closeOutput();
+        mThread.join(TIMEOUT);
+
+        assertTrue(battery.isDone());
+        assertTrue(mDisconnected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        try {
+            mReader.expect(ResponseReader.Request.PING).get(TIMEOUT);
+            fail("Expected a request after the link closed to fail");
+        } catch(BluetoothException e) {
+        }
+    }
+
+    private void send(String lines) throws IOException {
+        mDevice.write(lines.getBytes("US-ASCII"));
+        mDevice.flush();
+    }
+}
@@ -0,0 +1,90 @@
+package com.openxc.hardware.hud;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShadowStateTest {
+    private static final int CHAN = 2;
+    private static final long START = 1000;
+
+    private ShadowState mState;
+
+    @Before
+    public void setUp() {
+        mState = new ShadowState();
+    }
+
+    @Test
+    public void repeatedSetIsSuppressed() {
+        assertEquals(-1, mState.output(CHAN, START));
+        assertTrue(mState.set(CHAN, 100, START));
+        assertFalse(mState.set(CHAN, 100, START + 1));
+        assertTrue(mState.set(CHAN, 101, START + 2));
+        assertEquals(101, mState.output(CHAN, START + 2));
+    }
+
+    @Test
+    public void fadeSettlesOnlyAfterTheMargin() {
+        mState.set(CHAN, 0, START);
+        assertTrue(mState.fade(CHAN, 500, 200, START));
+        long end = START + 500;
+
+        // The device may still be fading until the margin has passed
+        assertFalse(mState.isSettled(CHAN, end));
+        assertFalse(mState.isSettled(CHAN, end + ShadowState.SETTLE_MARGIN));
+        assertTrue(mState.fade(CHAN, 500, 200, end));
+        assertTrue(mState.set(CHAN, 200, end + ShadowState.SETTLE_MARGIN));
+
+        assertTrue(mState.fade(CHAN, 500, 100, end));
+        end += 500;
+        assertTrue(mState.isSettled(CHAN,
+                    end + ShadowState.SETTLE_MARGIN + 1));
+        assertFalse(mState.fade(CHAN, 500, 100,
+                    end + ShadowState.SETTLE_MARGIN + 1));
+        assertFalse(mState.set(CHAN, 100,
+                    end + ShadowState.SETTLE_MARGIN + 1));
+    }
+
+    @Test
+    public void fadeOnAnUnknownChannelMakesItKnownOnceSettled() {
+        assertTrue(mState.fade(CHAN, 100, 80, START));
+        assertFalse(mState.isSettled(CHAN, START + 100));
+        assertEquals(-1, mState.output(CHAN, START + 100));
+
+        long settled = START + 100 + ShadowState.SETTLE_MARGIN + 1;
+        assertTrue(mState.isSettled(CHAN, settled));
+        assertEquals(80, mState.output(CHAN, settled));
+        assertFalse(mState.set(CHAN, 80, settled));
+    }
+
+    @Test
+    public void outputFollowsTheFirmwareInterpolation() {
+        mState.set(CHAN, 200, START);
+        mState.fade(CHAN, 400, 100, START);
+        assertEquals(200, mState.output(CHAN, START));
+        assertEquals(175, mState.output(CHAN, START + 100));
+        assertEquals(100, mState.output(CHAN, START + 401));
+
+        mState.set(CHAN, 0, START);
+        mState.fade(CHAN, 300, 90, START);
+        assertEquals(30, mState.output(CHAN, START + 100));
+    }
+
+    @Test
+    public void invalidateAndForgetMakeTheNextCommandGoOut() {
+        mState.set(1, 50, START);
+        mState.set(CHAN, 50, START);
+        mState.forget(CHAN);
+        assertFalse(mState.set(1, 50, START));
+        assertTrue(mState.set(CHAN, 50, START));
+
+        mState.invalidate();
+        assertFalse(mState.isSettled(1, START));
+        assertTrue(mState.set(1, 50, START));
+        assertTrue(mState.set(CHAN, 50, START));
+    }
+}
@@ -0,0 +1,118 @@
+package com.openxc.hardware.hud.animation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FadePlanTest {
+    @Test
+    public void linearSegmentIsOneFade() {
+        FadePlan plan = FadePlan.compile(new Timeline()
+                .keyframe(0, 0.2)
+                .keyframe(400, 1.0), 0);
+
+        assertEquals(2, plan.getCommandCount());
+        assertCommand(plan, 0, 0, 0, 51);
+        assertCommand(plan, 1, 0, 400, 255);
+    }
+
+    @Test
+    public void holdsSendNothingAndJumpsAreSets() {
+        FadePlan plan = FadePlan.compile(new Timeline()
+                .keyframe(0, 0.0)
+                .keyframe(100, 1.0)
+                .keyframe(300, 1.0)
+                .keyframe(300, 0.0), 0);
+
+        assertEquals(3, plan.getCommandCount());
+        assertCommand(plan, 0, 0, 0, 0);
+        assertCommand(plan, 1, 0, 100, 255);
+        assertCommand(plan, 2, 300, 0, 0);
+    }
+
+    @Test
+    public void easedSegmentStaysWithinAStepOfTheCurve() {
+        Timeline timeline = new Timeline()
+                .keyframe(0, 0.0)
+                .keyframe(200, 1.0, Easing.EASE_IN_OUT);
+        FadePlan plan = FadePlan.compile(timeline, 0);
+        assertTrue(plan.getCommandCount() > 2);
+
+        // Play the fades back the way the firmware does, one after another
+        for(long time = 0; time <= timeline.getDuration(); time++) {
+            double played = plan.getValue(0);
+            for(int i = 1; i < plan.getCommandCount(); i++) {
+                long start = plan.getTime(i);
+                long duration = plan.getDuration(i);
+                if(time >= start + duration) {
+                    played = plan.getValue(i);
+                } else if(time > start) {
+                    played += (plan.getValue(i) - played)
+                            * (time - start) / duration;
+                    break;
+                }
+            }
+            assertEquals("At " + time + "ms", 255 * timeline.valueAt(time),
+                    played, 1.0 + 1e-9);
+        }
+    }
+
+    @Test
+    public void guardShortensEachFade() {
+        FadePlan plan = FadePlan.compile(new Timeline()
+                .keyframe(0, 0.0)
+                .keyframe(400, 1.0)
+                .keyframe(420, 0.0), 50);
+
+        assertCommand(plan, 1, 0, 350, 255);
+        // The guard is limited to a quarter of the fade
+        assertCommand(plan, 2, 400, 15, 0);
+    }
+
+    @Test
+    public void loopThatEndsWhereItStartedIsSeamless() {
+        Timeline pulse = new Timeline()
+                .keyframe(0, 0.0)
+                .keyframe(500, 1.0)
+                .keyframe(1000, 0.0);
+        pulse.setLooping(true);
+        FadePlan plan = FadePlan.compile(pulse, 0);
+        assertTrue(plan.isLooping());
+        assertEquals(1000, plan.getDuration());
+        assertTrue(plan.isSeamless());
+
+        Timeline ramp = new Timeline()
+                .keyframe(0, 0.0)
+                .keyframe(500, 1.0);
+        ramp.setLooping(true);
+        assertFalse(FadePlan.compile(ramp, 0).isSeamless());
+    }
+
+    @Test
+    public void rejectsTimelinesThatCannotBePlayed() {
+        try {
+            FadePlan.compile(new Timeline(), 0);
+            fail("Expected an empty timeline to be rejected");
+        } catch(IllegalArgumentException e) {
+        }
+
+        Timeline instant = new Timeline().keyframe(0, 1.0);
+        instant.setLooping(true);
+        try {
+            FadePlan.compile(instant, 0);
+            fail("Expected a looping timeline with no duration to be " +
+                    "rejected");
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    private static void assertCommand(FadePlan plan, int index, long time,
+            long duration, int value) {
+        assertEquals(time, plan.getTime(index));
+        assertEquals(duration, plan.getDuration(index));
+        assertEquals(value, plan.getValue(index));
+    }
+}
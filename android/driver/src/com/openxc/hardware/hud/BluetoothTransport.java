@@ -0,0 +1,85 @@
+package com.openxc.hardware.hud;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.bluetooth.BluetoothSocket;
+
+import android.util.Log;
+
+/**
+ * The BluetoothTransport connects to the HUD over an RFCOMM socket opened by
+ * the DeviceManager.
+ *
+ * Finding the device happens when the transport is opened, on the client's
+ * keepalive thread, so connect() never blocks on discovery.
+ */
+public class BluetoothTransport implements HudTransport {
+    private final static String TAG = "BluetoothTransport";
+
+    private final DeviceManager mDeviceManager;
+    private final String mAddress;
+    private BluetoothSocket mSocket;
+
+    /**
+     * Creates transports for Bluetooth MAC addresses.
+     */
+    public static class Factory implements HudTransport.Factory {
+        private final DeviceManager mDeviceManager;
+
+        public Factory(DeviceManager deviceManager) {
+            mDeviceManager = deviceManager;
+        }
+
+        public HudTransport create(String address) throws BluetoothException {
+            if(mDeviceManager == null) {
+                throw new BluetoothException(
+                        "Bluetooth device manager is not available");
+            }
+            return new BluetoothTransport(mDeviceManager, address);
+        }
+    }
+
+    public BluetoothTransport(DeviceManager deviceManager, String address) {
+        mDeviceManager = deviceManager;
+        mAddress = address;
+    }
+
+    /**
+     * Find the device, running discovery for the address if needed, and open
+     * a socket to it.
+     */
+    public synchronized void open() throws BluetoothException {
+        mDeviceManager.connect(mAddress);
+        mSocket = mDeviceManager.setupSocket();
+        Log.i(TAG, "Socket to HUD opened successfully");
+    }
+
+    public synchronized InputStream getInputStream() throws IOException {
+        return socket().getInputStream();
+    }
+
+    public synchronized OutputStream getOutputStream() throws IOException {
+        return socket().getOutputStream();
+    }
+
+    public synchronized void close() {
+        if(mSocket != null) {
+            Log.d(TAG, "Closing the socket " + mSocket);
+            try {
+                mSocket.close();
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to close the socket", e);
+            }
+            mSocket = null;
+        }
+    }
+
+    private BluetoothSocket socket() throws IOException {
+        if(mSocket == null) {
+            throw new IOException("Socket is not open");
+        }
+        return mSocket;
+    }
+}
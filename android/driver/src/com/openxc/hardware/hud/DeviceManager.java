@@ -2,6 +2,10 @@ package com.openxc.hardware.hud;
 
 import java.io.IOException;
 
+import java.util.Timer;
+import java.util.TimerTask;
+
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -25,11 +29,22 @@ import android.util.Log;
 /**
  * The DeviceManager collects the functions required to discover and open a
  * socket to the Bluetooth device.
+ *
+ * Once a device has been found it is remembered, so reconnecting to the same
+ * address (e.g. after an ignition cycle) skips the bonded device lookup and
+ * discovery entirely. Paired devices are looked up directly by address, and
+ * discovery is only needed for a device that has never been paired. Both
+ * discovery and opening the socket are bounded by timeouts.
  */
 public class DeviceManager {
     private final static String TAG = "DeviceManager";
     private final static UUID RFCOMM_UUID = UUID.fromString(
             "00001101-0000-1000-8000-00805f9b34fb");
+    // An inquiry takes about 12 seconds
+    private final static long DISCOVERY_TIMEOUT = 15000;
+    // The RN-42 is usually paged in a second or two - but a failed page can
+    // block BluetoothSocket.connect() for much longer than that
+    private final static long SOCKET_TIMEOUT = 5000;
 
     private Context mContext;
     private BluetoothAdapter mBluetoothAdapter;
@@ -39,6 +54,7 @@ public class DeviceManager {
     private final Condition mDeviceChangedCondition =
             mDeviceLock.newCondition();
     private BroadcastReceiver mReceiver;
+    private final Timer mTimer = new Timer("DeviceManagerTimeout", true);
 
     /**
      * The DeviceManager requires an Android Context in order to send the intent
@@ -56,61 +72,162 @@ public class DeviceManager {
      * Open an RFCOMM socket to the connected Bluetooth device.
      *
      * The DeviceManager must already have a device connected, so
-     * discoverDevices needs to be called.
+     * connect() needs to be called.
+     *
+     * @throws BluetoothException
+     *  If the socket couldn't be opened within the timeout.
      */
     public BluetoothSocket setupSocket() throws BluetoothException {
-        if(mTargetDevice == null) {
-            Log.w(TAG, "Can't setup socket -- device is " + mTargetDevice);
-            throw new BluetoothException();
+        return setupSocket(SOCKET_TIMEOUT);
+    }
+
+    /**
+     * Open an RFCOMM socket to the connected Bluetooth device, giving up
+     * after the timeout (in ms).
+     */
+    public BluetoothSocket setupSocket(long timeout)
+            throws BluetoothException {
+        BluetoothDevice device = getTargetDevice();
+        if(device == null) {
+            Log.w(TAG, "Can't setup socket -- device is " + device);
+            throw new BluetoothException("No device to connect to");
         }
 
-        Log.d(TAG, "Scanning services on " + mTargetDevice);
+        Log.d(TAG, "Scanning services on " + device);
+        final BluetoothSocket socket;
         try {
-            mSocket = mTargetDevice.createRfcommSocketToServiceRecord(
-                    RFCOMM_UUID);
-        } catch(IOException e) {}
+            socket = device.createRfcommSocketToServiceRecord(RFCOMM_UUID);
+        } catch(IOException e) {
+            throw new BluetoothException("Unable to create socket: " + e);
+        }
+
+        // Discovery slows down connections dramatically
+        mBluetoothAdapter.cancelDiscovery();
+
+        // BluetoothSocket.connect() has no timeout of its own, but closing
+        // the socket from another thread makes it fail
+        TimerTask timeoutTask = new TimerTask() {
+            public void run() {
+                Log.w(TAG, "Timed out connecting socket");
+                closeQuietly(socket);
+            }
+        };
+        mTimer.schedule(timeoutTask, timeout);
 
         try {
-            mSocket.connect();
-            return mSocket;
+            socket.connect();
         } catch(IOException e) {
-            Log.e(TAG, "Could not find required service on " + mTargetDevice);
-            try {
-                mSocket.close();
-            } catch(IOException e2) {}
-            throw new BluetoothException();
+            Log.e(TAG, "Could not find required service on " + device);
+            closeQuietly(socket);
+            throw new BluetoothException("Unable to connect socket: " + e);
+        } finally {
+            timeoutTask.cancel();
         }
+
+        mSocket = socket;
+        return mSocket;
+    }
+
+    /**
+     * Find the target device, giving up after the default discovery timeout.
+     *
+     * After a device is connected, the user should call setupSocket() to get
+     * a socket connection.
+     */
+    public void connect(String targetAddress) throws BluetoothException {
+        connect(targetAddress, DISCOVERY_TIMEOUT);
     }
 
     /**
-     * Discover and connect to the target device.
+     * Find the target device, giving up after the timeout (in ms).
      *
-     * This method is asynchronous - after a device is connected, the user
-     * should call setupSocket() to get a socket connection.
+     * If the device was already found by a previous call, or it is paired,
+     * this returns immediately. Otherwise it runs discovery and waits for the
+     * device to appear.
+     *
+     * @throws BluetoothException
+     *  If the device wasn't found before the timeout, or the calling thread
+     *  was interrupted.
      */
-    public void connect(String targetAddress) {
+    public void connect(String targetAddress, long timeout)
+            throws BluetoothException {
+        BluetoothDevice device = getTargetDevice();
+        if(device != null && device.getAddress().equals(targetAddress)) {
+            Log.d(TAG, "Reusing previously found device: " + device);
+            return;
+        }
+
+        mDeviceLock.lock();
+        try {
+            mTargetDevice = null;
+        } finally {
+            mDeviceLock.unlock();
+        }
+
+        if(BluetoothAdapter.checkBluetoothAddress(targetAddress)) {
+            device = mBluetoothAdapter.getRemoteDevice(targetAddress);
+            if(device.getBondState() == BluetoothDevice.BOND_BONDED) {
+                Log.d(TAG, "Found already paired device: " + device);
+                captureDevice(device);
+                return;
+            }
+        }
+
         discoverDevices(targetAddress);
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        mDeviceLock.lock();
+        try {
+            while(mTargetDevice == null) {
+                if(remaining <= 0) {
+                    throw new BluetoothException(
+                            "Timed out discovering " + targetAddress);
+                }
+                remaining = mDeviceChangedCondition.awaitNanos(remaining);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BluetoothException(
+                    "Interrupted while discovering " + targetAddress);
+        } finally {
+            mDeviceLock.unlock();
+            stopDiscovery();
+        }
+    }
+
+    private BluetoothDevice getTargetDevice() {
         mDeviceLock.lock();
-        while(mTargetDevice == null) {
-            try {
-                mDeviceChangedCondition.await();
-            } catch(InterruptedException e) {}
+        try {
+            return mTargetDevice;
+        } finally {
+            mDeviceLock.unlock();
         }
-        mDeviceLock.unlock();
     }
 
     private void captureDevice(BluetoothDevice device) {
         mDeviceLock.lock();
-        mTargetDevice = device;
-        mDeviceChangedCondition.signal();
-        mDeviceLock.unlock();
+        try {
+            mTargetDevice = device;
+            mDeviceChangedCondition.signal();
+        } finally {
+            mDeviceLock.unlock();
+        }
+        stopDiscovery();
+    }
 
+    private synchronized void stopDiscovery() {
         if(mReceiver != null) {
             mContext.unregisterReceiver(mReceiver);
+            mReceiver = null;
             mBluetoothAdapter.cancelDiscovery();
         }
     }
 
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch(IOException e) {}
+    }
+
     private boolean deviceDiscovered(BluetoothDevice device,
             String targetAddress) {
         Log.d(TAG, "Found Bluetooth device: " + device);
@@ -126,7 +243,7 @@ public class DeviceManager {
      * for one matching the target address. Once a matching device is found,
      * calls captureDevice to connect with it.
      */
-    private void discoverDevices(final String targetAddress) {
+    private synchronized void discoverDevices(final String targetAddress) {
         Log.d(TAG, "Starting device discovery");
         Set<BluetoothDevice> pairedDevices =
             mBluetoothAdapter.getBondedDevices();
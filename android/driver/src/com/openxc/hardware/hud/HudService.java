@@ -1,15 +1,7 @@
 package com.openxc.hardware.hud;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-
 import android.app.Service;
 
-import android.bluetooth.BluetoothSocket;
-
 import android.content.Intent;
 
 import android.os.Binder;
@@ -17,6 +9,8 @@ import android.os.IBinder;
 
 import android.util.Log;
 
+import com.openxc.hardware.hud.layer.LayerCompositor;
+
 /**
  * The HudService manages the connection to the Bluetooth HUD.
  *
@@ -24,16 +18,16 @@ import android.util.Log;
  * to the HUD go through this class. Users of the service should call connect()
  * with the HUD's MAC address after the service connects. Once connected, any of
  * the other methods can be used to control the LEDs.
+ *
+ * The protocol itself is implemented by a HudClient running over a
+ * BluetoothTransport - this class ties it to the Android service lifecycle.
  */
 public class HudService extends Service implements BluetoothHudInterface {
     private final String TAG = "HudService";
-    private final long RETRY_DELAY = 1000;
-    private final long POLL_DELAY = 3000;
 
     private DeviceManager mDeviceManager;
-    private PrintWriter mOutStream;
-    private BufferedReader mInStream;
-    private BluetoothSocket mSocket;
+    private HudClient mClient;
+    private LayerCompositor mCompositor;
 
     private final IBinder mBinder = new LocalBinder();
     public class LocalBinder extends Binder {
@@ -42,45 +36,28 @@ public class HudService extends Service implements BluetoothHudInterface {
         }
     }
 
-    private ConnectionKeepalive mConnectionKeepalive;
-    private class ConnectionKeepalive implements Runnable {
-        private boolean mRunning;
+    private final HudClient.Listener mClientListener =
+            new HudClient.Listener() {
+        public void onConnected() {
+            Log.i(TAG, "Socket stream to HUD opened successfully");
+        }
 
-        public ConnectionKeepalive() {
-            mRunning = true;
+        public void onDisconnected() {
+            Log.i(TAG, "HUD has been disconnected");
         }
 
-        public void stop() {
-            mRunning = false;
+        public void onConnectFailed(BluetoothException e) {
+            Log.w(TAG, "Unable to connect to socket", e);
         }
 
-        public void run() {
-            while(mRunning) {
-                try {
-                    connectSocket();
-                } catch(BluetoothException e) {
-                    Log.w(TAG, "Unable to connect to socket", e);
-                    try {
-                        Thread.sleep(RETRY_DELAY);
-                    } catch(InterruptedException e2) {
-                        return;
-                    }
-                    continue;
-                }
-
-                while(ping() && mRunning){
-                    try {
-                        Thread.sleep(POLL_DELAY);
-                    } catch(InterruptedException e) {
-                        return;
-                    }
-                }
-
-                Log.i(TAG, "Socket " + mSocket + " has been disconnected!");
-            }
+        public void onDeviceReset() {
+            Log.i(TAG, "HUD has been reset");
         }
-    }
 
+        public void onUnexpectedResponse(String line) {
+            Log.w(TAG, "Received unexpected response: " + line);
+        }
+    };
 
     @Override
     public void onCreate() {
@@ -89,7 +66,9 @@ public class HudService extends Service implements BluetoothHudInterface {
         } catch(BluetoothException e) {
             Log.w(TAG, "Unable to open Bluetooth device manager", e);
         }
-        mSocket = null;
+
+        mClient = new HudClient(new BluetoothTransport.Factory(mDeviceManager),
+                mClientListener);
     }
 
     @Override
@@ -103,11 +82,12 @@ public class HudService extends Service implements BluetoothHudInterface {
     @Override
     public void onDestroy() {
         Log.d(TAG, "Being destroyed");
-        try {
-            disconnect();
-        } catch(BluetoothException e) {
-            Log.d(TAG, "Unable to disconnect when being destroyed", e);
+        synchronized(this) {
+            if(mCompositor != null) {
+                mCompositor.stop();
+            }
         }
+        mClient.shutdown();
     }
 
     @Override
@@ -116,158 +96,199 @@ public class HudService extends Service implements BluetoothHudInterface {
         return mBinder;
     }
 
-    @Override
-    public void disconnect() throws BluetoothException {
-        if(!isConnected()) {
-            Log.w(TAG, "Unable to disconnect -- not connected");
-            throw new BluetoothException();
+    /**
+     * @return
+     *  The client running the HUD protocol, for features that aren't part of
+     *  the BluetoothHudInterface.
+     */
+    public HudClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * @return
+     *  The compositor for components that share the HUD - each one should
+     *  draw into its own layer rather than calling set() and fade() directly,
+     *  so they don't overwrite each other. It is started the first time it
+     *  is asked for.
+     */
+    public synchronized LayerCompositor getCompositor() {
+        if(mCompositor == null) {
+            mCompositor = new LayerCompositor(this);
+            mCompositor.start();
         }
+        return mCompositor;
+    }
 
-        mConnectionKeepalive.stop();
+    /**
+     * @return
+     *  A snapshot of the command latencies, link traffic and connection
+     *  history since the service was created.
+     */
+    public HudMetrics.Snapshot getMetrics() {
+        return mClient.getMetrics();
+    }
 
-        Log.d(TAG, "Disconnecting from the socket " + mSocket);
-        mOutStream.close();
-        try {
-            mInStream.close();
-        } catch(IOException e) {
-            Log.w(TAG, "Unable to close the input stream", e);
-        }
+    @Override
+    public void connect(String targetAddress) throws BluetoothException {
+        mClient.connect(targetAddress);
+    }
 
-        if(mSocket != null) {
-            try {
-                mSocket.close();
-            } catch(IOException e) {
-                Log.w(TAG, "Unable to close the socket", e);
-            }
-        }
-        mSocket = null;
-        Log.d(TAG, "Disconnected from the socket");
+    @Override
+    public ResponseFuture requestConnect(String targetAddress)
+            throws BluetoothException {
+        return mClient.requestConnect(targetAddress);
+    }
+
+    /**
+     * Record all of the traffic to and from the HUD, e.g. to capture a
+     * session that stutters for replay against the simulator.
+     *
+     * @param recorder
+     *  The recorder, or null to stop recording
+     */
+    public void setRecorder(CommandRecorder recorder) {
+        mClient.setRecorder(recorder);
+    }
+
+    /**
+     * @return
+     *  The estimate of how long commands take to reach the HUD, e.g. for an
+     *  Animator to send its commands ahead of time.
+     */
+    public LinkDelayEstimator getLinkDelayEstimator() {
+        return mClient.getLinkDelayEstimator();
+    }
+
+    public HudClient.State getConnectionState() {
+        return mClient.getState();
+    }
+
+    /**
+     * @return
+     *  The command format negotiated with the HUD's firmware - BINARY once
+     *  the firmware has reported that it accepts binary commands.
+     */
+    public CommandEncoder.Protocol getProtocol() {
+        return mClient.getProtocol();
+    }
+
+    /**
+     * Register for connection state changes. Callbacks are made from the
+     * HUD client's background threads.
+     */
+    public void addStateListener(HudClient.StateListener listener) {
+        mClient.addStateListener(listener);
+    }
+
+    public void removeStateListener(HudClient.StateListener listener) {
+        mClient.removeStateListener(listener);
     }
 
     @Override
-    public synchronized void set(int chan, double value) throws BluetoothException {
-        if(!isConnected()) {
-            Log.w(TAG, "Unable to set -- not connected");
-            throw new BluetoothException();
-        }
+    public void disconnect() throws BluetoothException {
+        Log.d(TAG, "Disconnecting from the HUD");
+        mClient.disconnect();
+    }
 
-        mOutStream.write("S" + chan + Math.round(value * 255) + "M");
-        mOutStream.flush();
+    @Override
+    public void set(int chan, double value) throws BluetoothException {
+        mClient.set(chan, value);
     }
 
     @Override
-    public synchronized void setAll(double value) throws BluetoothException {
-        if(!isConnected()) {
-            Log.w(TAG, "Unable to setAll -- not connected");
-            throw new BluetoothException();
-        }
+    public void setAll(double value) throws BluetoothException {
+        mClient.setAll(value);
+    }
 
-        for(int i = 0; i < 5; i++) {
-            set(i, value);
-        }
+    @Override
+    public void setFrame(double[] values) throws BluetoothException {
+        mClient.setFrame(values);
     }
 
     @Override
-    public synchronized void fade(int chan, long duration, double value)
+    public void setFrame(int channelMask, double[] values)
             throws BluetoothException {
-        if(!isConnected()) {
-            Log.w(TAG, "Unable to fade -- not connected");
-            throw new BluetoothException();
-        }
+        mClient.setFrame(channelMask, values);
+    }
 
-        mOutStream.write("F" + chan + duration + "," +
-                Math.round(value * 255) + "M");
-        mOutStream.flush();
+    @Override
+    public void fade(int chan, long duration, double value)
+            throws BluetoothException {
+        mClient.fade(chan, duration, value);
     }
 
     @Override
-    public synchronized int rawBatteryLevel() throws BluetoothException {
-        if(!isConnected()) {
-            Log.w(TAG, "Unable to check battery level -- not connected");
-            throw new BluetoothException();
-        }
+    public void postSet(int chan, double value) {
+        mClient.postSet(chan, value);
+    }
 
-        mOutStream.write("BM");
-        mOutStream.flush();
-        String response = getResponse(mInStream);
-        if(response != null && response.indexOf("VAL:") >= 0) {
-            return Integer.parseInt(response.substring(4));
-        } else {
-            throw new BluetoothException("Invalid battery level: " + response);
-        }
+    @Override
+    public void postFade(int chan, long duration, double value) {
+        mClient.postFade(chan, duration, value);
     }
 
     @Override
-    public void connect(String targetAddress) throws BluetoothException {
-        if(mConnectionKeepalive != null) {
-            mConnectionKeepalive.stop();
-        }
-        mDeviceManager.connect(targetAddress);
+    public void postFade(int chan, long startNanos, long duration,
+            double value) {
+        mClient.postFade(chan, startNanos, duration, value);
+    }
 
-        mConnectionKeepalive = new ConnectionKeepalive();
-        new Thread(mConnectionKeepalive).start();
+    @Override
+    public void postSet(int chan, double value, Priority priority,
+            long deadlineNanos) {
+        mClient.postSet(chan, value, priority, deadlineNanos);
     }
 
     @Override
-    public synchronized boolean ping() {
-        if(!isConnected()) {
-            Log.w(TAG, "Unable to ping -- not connected");
-            return false;
-        }
+    public void postFade(int chan, long startNanos, long duration,
+            double value, Priority priority, long deadlineNanos) {
+        mClient.postFade(chan, startNanos, duration, value, priority,
+                deadlineNanos);
+    }
 
-        mOutStream.write("PM");
-        mOutStream.flush();
-        String response = getResponse(mInStream);
-        if(response == null) {
-            Log.w(TAG, "Received unexpected ping response: " + response);
-            try {
-                disconnect();
-            } catch(BluetoothException e) {
-                Log.w(TAG, "Unable to disconnect after failed ping", e);
-            }
-            return false;
-        }
-        Log.d(TAG, "Ping? Pong!");
-        return true;
+    @Override
+    public void postFrame(int channelMask, double[] values,
+            Priority priority, long deadlineNanos) {
+        mClient.postFrame(channelMask, values, priority, deadlineNanos);
     }
 
-    private String getResponse(BufferedReader reader){
-        String line = "";
-        try {
-            line = mInStream.readLine();
-        } catch(IOException e) {
-            Log.e(TAG, "unable to read response");
-            return null;
-        }
-        if(line == null){
-            Log.e(TAG, "device has dropped offline");
-            return null;
-        }
-        return line;
+    @Override
+    public void uploadSequence(int chan, Sequence sequence)
+            throws BluetoothException {
+        mClient.uploadSequence(chan, sequence);
     }
 
-    private void connectSocket() throws BluetoothException {
-        try {
-            mSocket = mDeviceManager.setupSocket();
-            mOutStream = new PrintWriter(new OutputStreamWriter(
-                        mSocket.getOutputStream()));
-            mInStream = new BufferedReader(new InputStreamReader(
-                        mSocket.getInputStream()));
-            Log.i(TAG, "Socket stream to HUD opened successfully");
-        } catch(IOException e) {
-            // We are expecting to see "host is down" when repeatedly
-            // autoconnecting
-            if(!(e.toString().contains("Host is Down"))){
-                Log.d(TAG, "Error opening streams "+e);
-            } else {
-                Log.e(TAG, "Error opening streams "+e);
-            }
-            mSocket = null;
-            throw new BluetoothException();
+    /**
+     * @return
+     *  The cached battery readings, which are kept up to date in the
+     *  background while connected.
+     */
+    public BatteryMonitor getBatteryMonitor() {
+        return mClient.getBatteryMonitor();
+    }
+
+    @Override
+    public int rawBatteryLevel() throws BluetoothException {
+        return mClient.rawBatteryLevel();
+    }
+
+    @Override
+    public ResponseFuture requestRawBatteryLevel() throws BluetoothException {
+        return mClient.requestRawBatteryLevel();
+    }
+
+    @Override
+    public boolean ping() {
+        boolean alive = mClient.ping();
+        if(alive) {
+            Log.d(TAG, "Ping? Pong!");
         }
+        return alive;
     }
 
-    private boolean isConnected() {
-        return mSocket != null;
+    @Override
+    public ResponseFuture requestPing() throws BluetoothException {
+        return mClient.requestPing();
     }
 }
@@ -0,0 +1,761 @@
+package com.openxc.hardware.hud.simulator;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.openxc.hardware.hud.MemoryTransport;
+
+/**
+ * The FirmwareSimulator is a headless, pure Java copy of the HUD firmware in
+ * LED_VU_BT_firmware.pde.
+ *
+ * It runs the firmware's setup() and loop() on its own thread, with the same
+ * blocking readline() (terminated by '\n', '\r' or 'M'), the same parseLine()
+ * quirks, the same responses for each command and the same doBlink() fade
+ * arithmetic. Binary commands go through a copy of the firmware's
+ * readFrame(), so it is also the reference decoder for the binary protocol
+ * that CommandEncoder writes. Bytes reach it through a SerialPort that
+ * models the 57600 baud UART and its receive buffer, and an optional
+ * per-loop processing time models the rest of the ATmega's work, so the
+ * simulator shows the same throughput limits as the real device: dropped
+ * bytes when the receive buffer overflows, fades that stall while readline()
+ * waits for the end of a line, and so on.
+ *
+ * The simulator can stand in for a HUD behind a MemoryTransport, or behind a
+ * TCP socket using the SimulatorServer. It must be configured before it is
+ * started.
+ */
+public class FirmwareSimulator implements MemoryTransport.Peer {
+    public static final int DEFAULT_BAUD_RATE = 57600;
+    // The Arduino core the firmware was written for uses a 128 byte ring
+    public static final int DEFAULT_RX_BUFFER_SIZE = 128;
+    public static final int DEFAULT_BATTERY_LEVEL = 600;
+
+    // Constants from the firmware
+    static final int BUFFLEN = 200;
+    static final int NUMLEDS = 5;
+    static final int MAXSTEPS = 8;
+    static final int MAXVALUES = 1 + 2 * MAXSTEPS;
+    static final int ACT_FADEUP = 1;
+    static final int ACT_FADEDOWN = 2;
+    static final int ACT_BLINK = 3;
+    static final int ACT_SEQUENCE = 4;
+    static final int FRAME_START = 0xA5;
+    static final int OP_SET = 0x10;
+    static final int OP_FADE = 0x20;
+    static final int OP_FRAME = 0x30;
+    static final int MAXPAYLOAD = 9;
+    static final int PROTOCOL_VERSION = 2;
+
+    // How long the loop sleeps when there's nothing to do but fades
+    private static final long FADE_STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private int mBaudRate = DEFAULT_BAUD_RATE;
+    private int mRxBufferSize = DEFAULT_RX_BUFFER_SIZE;
+    private long mLoopTimeNanos;
+    private volatile int mBatteryLevel = DEFAULT_BATTERY_LEVEL;
+    private boolean mResetOnConnect;
+
+    private SerialPort mSerial;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile boolean mResetRequested;
+    private long mPowerOnNanos;
+
+    // Firmware state, guarded by this object
+    private final int[] mAct = new int[NUMLEDS];
+    private final int[] mVals = new int[NUMLEDS];
+    private final int[] mActDest = new int[NUMLEDS];
+    private final long[] mActStart = new long[NUMLEDS];
+    private final long[] mActDur = new long[NUMLEDS];
+    private final int[] mLeds = new int[NUMLEDS];
+    private final int[] mShown = new int[NUMLEDS];
+    private final int[][] mSeqDur = new int[NUMLEDS][MAXSTEPS];
+    private final int[][] mSeqVal = new int[NUMLEDS][MAXSTEPS];
+    private final int[] mSeqLen = new int[NUMLEDS];
+    private final int[] mSeqStep = new int[NUMLEDS];
+    private final int[] mSeqLoops = new int[NUMLEDS];
+    private final byte[] mLine = new byte[BUFFLEN];
+    private int mChan;
+    private final long[] mValues = new long[MAXVALUES];
+    private int mNValues;
+    private final int[] mPayload = new int[MAXPAYLOAD];
+
+    private final AtomicLong mCommandCount = new AtomicLong();
+    private final AtomicLong mSetCount = new AtomicLong();
+    private final AtomicLong mFadeCount = new AtomicLong();
+    private final AtomicLong mSequenceCount = new AtomicLong();
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mTruncatedLines = new AtomicLong();
+    private final AtomicLong mReadlineWaitNanos = new AtomicLong();
+
+    /**
+     * @param baudRate
+     *  The serial link speed, or 0 to run unthrottled
+     */
+    public void setBaudRate(int baudRate) {
+        mBaudRate = baudRate;
+    }
+
+    /**
+     * @param size
+     *  The size of the UART receive ring buffer, in bytes
+     */
+    public void setRxBufferSize(int size) {
+        mRxBufferSize = size;
+    }
+
+    /**
+     * @param nanos
+     *  How long each pass through loop() takes on top of the serial I/O
+     */
+    public void setLoopTime(long nanos) {
+        mLoopTimeNanos = nanos;
+    }
+
+    /**
+     * @param level
+     *  The raw ADC value returned for the battery pin, 0-1023
+     */
+    public void setBatteryLevel(int level) {
+        mBatteryLevel = level;
+    }
+
+    /**
+     * @param reset
+     *  If true, the microcontroller is reset (and prints START) each time a
+     *  host connects, as if the DTR line was asserted.
+     */
+    public void setResetOnConnect(boolean reset) {
+        mResetOnConnect = reset;
+    }
+
+    /**
+     * Power on the device.
+     */
+    public synchronized void start() {
+        if(mThread != null) {
+            return;
+        }
+
+        mSerial = new SerialPort(mBaudRate, mRxBufferSize);
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                runFirmware();
+            }
+        }, "HudSimulatorLoop");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Power off the device.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized(this) {
+            thread = mThread;
+            mThread = null;
+            mRunning = false;
+        }
+
+        if(thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mSerial.detach();
+        }
+    }
+
+    /**
+     * Reset the microcontroller, clearing the LEDs and printing START.
+     */
+    public void reset() {
+        mResetRequested = true;
+    }
+
+    public void onOpen(InputStream fromHost, OutputStream toHost) {
+        start();
+        mSerial.attach(fromHost, toHost);
+        if(mResetOnConnect) {
+            reset();
+        }
+    }
+
+    /**
+     * @return
+     *  The intensity (0-255) currently driven on an LED, as last passed to
+     *  setLed().
+     */
+    public synchronized int getLed(int chan) {
+        return mLeds[chan];
+    }
+
+    /**
+     * @return true if the channel has a fade or sequence in progress.
+     */
+    public synchronized boolean isFading(int chan) {
+        return mAct[chan] != 0;
+    }
+
+    /**
+     * @return the number of lines and binary commands read and handled.
+     */
+    public long getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    /**
+     * @return the number of SET commands, ASCII or binary.
+     */
+    public long getSetCount() {
+        return mSetCount.get();
+    }
+
+    /**
+     * @return the number of FADE commands, ASCII or binary.
+     */
+    public long getFadeCount() {
+        return mFadeCount.get();
+    }
+
+    /**
+     * @return the number of binary multi-channel frames.
+     */
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    /**
+     * @return the number of sequences uploaded with Q.
+     */
+    public long getSequenceCount() {
+        return mSequenceCount.get();
+    }
+
+    /**
+     * @return the number of ERRCH and ERRCO responses sent.
+     */
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * @return
+     *  The number of lines that filled the line buffer before a terminator
+     *  arrived.
+     */
+    public long getTruncatedLineCount() {
+        return mTruncatedLines.get();
+    }
+
+    /**
+     * @return
+     *  The total time readline() and readFrame() spent blocked waiting for
+     *  the rest of a command, during which no fades are updated.
+     */
+    public long getReadlineWaitNanos() {
+        return mReadlineWaitNanos.get();
+    }
+
+    /**
+     * @return the number of bytes lost to a full receive buffer.
+     */
+    public long getDroppedBytes() {
+        return mSerial == null ? 0 : mSerial.getDroppedBytes();
+    }
+
+    public long getReceivedBytes() {
+        return mSerial == null ? 0 : mSerial.getReceivedBytes();
+    }
+
+    private void runFirmware() {
+        mPowerOnNanos = System.nanoTime();
+        setup();
+        try {
+            while(mRunning) {
+                if(mResetRequested) {
+                    mResetRequested = false;
+                    setup();
+                }
+
+                boolean handled = loop();
+                if(mLoopTimeNanos > 0) {
+                    LockSupport.parkNanos(mLoopTimeNanos);
+                } else if(!handled) {
+                    mSerial.awaitAvailable(anyActive() ?
+                            FADE_STEP_NANOS : IDLE_NANOS);
+                }
+            }
+        } catch(InterruptedException e) {
+            // Powered off
+        }
+    }
+
+    /**
+     * Initialize arrays and announce that we have started.
+     */
+    private void setup() {
+        synchronized(this) {
+            for(int i = 0; i < NUMLEDS; i++) {
+                mVals[i] = 0;
+                mAct[i] = 0;
+                mActDur[i] = 0;
+                mActDest[i] = 0;
+                mActStart[i] = 0;
+                mLeds[i] = 0;
+                mShown[i] = 0;
+                mSeqLen[i] = 0;
+            }
+        }
+        println("START");
+    }
+
+    /**
+     * One pass through the firmware's loop().
+     *
+     * @return true if a line was read.
+     */
+    private boolean loop() throws InterruptedException {
+        boolean handled = false;
+        if(mSerial.available() > 0) {
+            handled = true;
+            int first = mSerial.read();
+            if(first == FRAME_START) {
+                // A binary command rather than a line of text
+                readFrame();
+                mCommandCount.incrementAndGet();
+                doBlink();
+                return true;
+            }
+            if(readline(first)) {
+                // A binary command cut the line short, so what was read is
+                // the rest of a damaged command rather than a real one
+                readFrame();
+                mCommandCount.incrementAndGet();
+                doBlink();
+                return true;
+            }
+            parseLine();
+            mCommandCount.incrementAndGet();
+            if(mChan < 0 || mChan > NUMLEDS - 1) {
+                mErrorCount.incrementAndGet();
+                println("ERRCH");
+                // The firmware returns here, skipping doBlink()
+                return true;
+            }
+
+            switch(mLine[0]) {
+            case 'S':
+                println("OK");
+                setChannel(mChan, mValues[0]);
+                break;
+            case 'F':
+                fadeChannel(mChan, mValues[0], mValues[1]);
+                break;
+            case 'B':
+                print("VAL:");
+                println(Integer.toString(mBatteryLevel));
+                break;
+            case 'Q':
+                int steps;
+                synchronized(this) {
+                    startSequence(mChan);
+                    steps = mSeqLen[mChan];
+                }
+                mSequenceCount.incrementAndGet();
+                print("SEQ:");
+                println(Integer.toString(steps));
+                break;
+            case 'V':
+                print("VER:");
+                println(Integer.toString(PROTOCOL_VERSION));
+                break;
+            case 'P':
+                println("ACK");
+                // The firmware falls through to the default case here
+            default:
+                mErrorCount.incrementAndGet();
+                print("ERRCO");
+                println(Long.toHexString(mLine[0] & 0xffffffffL)
+                        .toUpperCase());
+            }
+        }
+        doBlink();
+        return handled;
+    }
+
+    /**
+     * Read a binary command, once its FRAME_START byte has been read, and act
+     * on it. A command is an opcode byte with the channel in its low nibble,
+     * a payload whose length is fixed by the opcode, and a checksum byte that
+     * makes the opcode, payload and checksum add up to 0 (mod 256). Only
+     * failures are answered.
+     */
+    private void readFrame() throws InterruptedException {
+        int op = readByte();
+        int sum = op;
+        int len;
+        int i = 0;
+        switch(op & 0xf0) {
+        case OP_SET:
+            len = 1;
+            break;
+        case OP_FADE:
+            len = 3;
+            break;
+        case OP_FRAME:
+            mPayload[i++] = readByte();
+            len = 1 + Integer.bitCount(mPayload[0]);
+            break;
+        default:
+            // The firmware can't tell how long the command is
+            frameError();
+            return;
+        }
+        for(; i < len; i++) {
+            mPayload[i] = readByte();
+        }
+        for(i = 0; i < len; i++) {
+            sum += mPayload[i];
+        }
+        sum += readByte();
+        if((sum & 0xff) != 0) {
+            frameError();
+            return;
+        }
+
+        int chan = op & 0x0f;
+        if((op & 0xf0) == OP_FRAME) {
+            if(chan != 0 || (mPayload[0] >> NUMLEDS) != 0) {
+                mErrorCount.incrementAndGet();
+                println("ERRCH");
+                return;
+            }
+            int next = 1;
+            for(int c = 0; c < NUMLEDS; c++) {
+                if((mPayload[0] & (1 << c)) != 0) {
+                    setChannel(c, mPayload[next++]);
+                }
+            }
+            mFrameCount.incrementAndGet();
+            return;
+        }
+        if(chan > NUMLEDS - 1) {
+            mErrorCount.incrementAndGet();
+            println("ERRCH");
+            return;
+        }
+        if((op & 0xf0) == OP_SET) {
+            setChannel(chan, mPayload[0]);
+        } else {
+            fadeChannel(chan, (mPayload[0] << 8) | mPayload[1], mPayload[2]);
+        }
+    }
+
+    private void frameError() {
+        mErrorCount.incrementAndGet();
+        print("ERRCO");
+        println(Integer.toHexString(FRAME_START).toUpperCase());
+    }
+
+    /**
+     * SET - set the channel directly, stopping any fade or sequence.
+     */
+    private void setChannel(int chan, long value) {
+        synchronized(this) {
+            setLed(chan, (int) value);
+            mVals[chan] = (int) (value & 0xff);
+            mAct[chan] = 0;
+        }
+        mSetCount.incrementAndGet();
+    }
+
+    /**
+     * FADE - fade the channel from its current value to the destination,
+     * taking over from a running sequence where it got to.
+     */
+    private void fadeChannel(int chan, long duration, long value) {
+        synchronized(this) {
+            if(mAct[chan] == ACT_SEQUENCE) {
+                mAct[chan] = 0;
+                mVals[chan] = mShown[chan];
+            }
+            mActDur[chan] = duration & 0xffffffffL;
+            mActDest[chan] = (int) (value & 0xff);
+            if(mActDest[chan] < mVals[chan]) {
+                mAct[chan] = ACT_FADEDOWN;
+            } else if(mActDest[chan] > mVals[chan]) {
+                mAct[chan] = ACT_FADEUP;
+            }
+            mActStart[chan] = millis();
+        }
+        mFadeCount.incrementAndGet();
+    }
+
+    /**
+     * Read 1 line from the serial port, blocking until '\n', '\r' or 'M'.
+     * Also stops at a FRAME_START, so that after a lost byte or a bad
+     * checksum the next binary command isn't read as text.
+     *
+     * @param first
+     *  The first character of the line, which loop() has already read
+     * @return
+     *  true if it stopped at a FRAME_START, which has been read
+     */
+    private boolean readline(int first) throws InterruptedException {
+        int i = 0;
+        for(int j = 0; j < BUFFLEN; j++) {
+            mLine[j] = 0;
+        }
+
+        int c = first;
+        while(i < BUFFLEN - 1) {
+            if(i > 0) {
+                c = readByte();
+            }
+            if(c == '\n' || c == '\r' || c == 'M') {
+                break;
+            }
+            if(c == FRAME_START) {
+                return true;
+            }
+            mLine[i++] = (byte) c;
+        }
+
+        if(i == BUFFLEN - 1) {
+            mTruncatedLines.incrementAndGet();
+        }
+        return false;
+    }
+
+    /**
+     * Read 1 byte, blocking until it arrives.
+     */
+    private int readByte() throws InterruptedException {
+        if(mSerial.available() < 1) {
+            long waitStart = System.nanoTime();
+            while(!mSerial.awaitAvailable(IDLE_NANOS)) {
+                if(!mRunning) {
+                    throw new InterruptedException();
+                }
+            }
+            mReadlineWaitNanos.addAndGet(System.nanoTime() - waitStart);
+        }
+        return mSerial.read();
+    }
+
+    /**
+     * Parse the line into mChan and mValues. Like the firmware, the channel
+     * is a single character and each comma separated value is read with
+     * atol().
+     */
+    private void parseLine() {
+        mChan = atoi(mLine[1]);
+        int idx = 2;
+        int val = 0;
+        StringBuilder valbuff = new StringBuilder();
+        while(idx < BUFFLEN && val < MAXVALUES) {
+            byte c = mLine[idx++];
+            if(c == ',' || c == 0) {
+                mValues[val++] = atol(valbuff);
+                valbuff.setLength(0);
+                if(c == 0) {
+                    break;
+                }
+            } else {
+                valbuff.append((char) c);
+            }
+        }
+        mNValues = val;
+    }
+
+    /**
+     * Perform actions on any LEDs that need to be acted upon.
+     */
+    private synchronized void doBlink() {
+        for(int i = 0; i < NUMLEDS; i++) {
+            if(mAct[i] == 0) {
+                continue;
+            }
+
+            long now = millis();
+            switch(mAct[i]) {
+            case ACT_FADEUP:
+                if(now > mActStart[i] + mActDur[i] || mActDur[i] == 0) {
+                    mAct[i] = 0;
+                    setLed(i, mActDest[i]);
+                    mVals[i] = mActDest[i];
+                    break;
+                }
+                setLed(i, (int) (((now - mActStart[i])
+                        * (mActDest[i] - mVals[i])) / mActDur[i]) + mVals[i]);
+                break;
+            case ACT_FADEDOWN:
+                if(now > mActStart[i] + mActDur[i] || mActDur[i] == 0) {
+                    mAct[i] = 0;
+                    setLed(i, mActDest[i]);
+                    mVals[i] = mActDest[i];
+                    break;
+                }
+                setLed(i, (int) ((((mActStart[i] + mActDur[i]) - now)
+                        * (mVals[i] - mActDest[i])) / mActDur[i])
+                        + mActDest[i]);
+                break;
+            case ACT_BLINK:
+                // Unused in the firmware
+                break;
+            case ACT_SEQUENCE:
+                playSequence(i, now);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Store the sequence in mValues for a channel and start playing it from
+     * the LED's current value.
+     */
+    private void startSequence(int chan) {
+        int steps = Math.max(0, Math.min(MAXSTEPS, (mNValues - 1) / 2));
+        mVals[chan] = mShown[chan];
+        mAct[chan] = 0;
+        mSeqLen[chan] = steps;
+        if(steps == 0) {
+            return;
+        }
+
+        // The firmware stores the loop count and durations in unsigned ints
+        // and the values in unsigned chars
+        mSeqLoops[chan] = (int) (mValues[0] & 0xffff);
+        long total = 0;
+        for(int i = 0; i < steps; i++) {
+            mSeqDur[chan][i] = (int) (mValues[1 + 2 * i] & 0xffff);
+            mSeqVal[chan][i] = (int) (mValues[2 + 2 * i] & 0xff);
+            total += mSeqDur[chan][i];
+        }
+        if(total == 0) {
+            mSeqLoops[chan] = 1;
+        }
+
+        mSeqStep[chan] = 0;
+        mActDur[chan] = mSeqDur[chan][0];
+        mActDest[chan] = mSeqVal[chan][0];
+        mActStart[chan] = millis();
+        mAct[chan] = ACT_SEQUENCE;
+    }
+
+    /**
+     * @return false if the sequence has finished.
+     */
+    private boolean nextStep(int chan) {
+        mSeqStep[chan]++;
+        if(mSeqStep[chan] == mSeqLen[chan]) {
+            if(mSeqLoops[chan] == 1) {
+                return false;
+            }
+            if(mSeqLoops[chan] > 1) {
+                mSeqLoops[chan]--;
+            }
+            mSeqStep[chan] = 0;
+        }
+        mActDur[chan] = mSeqDur[chan][mSeqStep[chan]];
+        mActDest[chan] = mSeqVal[chan][mSeqStep[chan]];
+        return true;
+    }
+
+    private void playSequence(int i, long now) {
+        while(now - mActStart[i] >= mActDur[i]) {
+            mVals[i] = mActDest[i];
+            mActStart[i] += mActDur[i];
+            if(!nextStep(i)) {
+                mAct[i] = 0;
+                setLed(i, mVals[i]);
+                return;
+            }
+        }
+        setLed(i, (int) (mVals[i] + ((long) mActDest[i] - mVals[i])
+                * (now - mActStart[i]) / mActDur[i]));
+    }
+
+    /**
+     * The firmware drives the LEDs inverted with analogWrite(255 - value),
+     * which only uses the low byte.
+     */
+    private void setLed(int chan, int value) {
+        int pwm = (255 - value) & 0xff;
+        mLeds[chan] = 255 - pwm;
+        mShown[chan] = value & 0xff;
+    }
+
+    private synchronized boolean anyActive() {
+        for(int i = 0; i < NUMLEDS; i++) {
+            if(mAct[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long millis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mPowerOnNanos);
+    }
+
+    private void print(String text) {
+        byte[] bytes = new byte[text.length()];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        mSerial.write(bytes);
+    }
+
+    private void println(String text) {
+        print(text + "\r\n");
+    }
+
+    /**
+     * atoi() of a single character - the firmware passes the address of a
+     * lone char, so in practice only that character is parsed.
+     */
+    private static int atoi(byte c) {
+        if(c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        return 0;
+    }
+
+    /**
+     * atol() with the AVR's 32-bit long.
+     */
+    private static long atol(CharSequence text) {
+        int i = 0;
+        while(i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+
+        boolean negative = false;
+        if(i < text.length() && (text.charAt(i) == '-'
+                    || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+
+        int value = 0;
+        while(i < text.length() && text.charAt(i) >= '0'
+                && text.charAt(i) <= '9') {
+            value = value * 10 + (text.charAt(i) - '0');
+            i++;
+        }
+        return negative ? -value : value;
+    }
+}
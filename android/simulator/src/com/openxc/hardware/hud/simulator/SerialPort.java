@@ -0,0 +1,211 @@
+package com.openxc.hardware.hud.simulator;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The SerialPort models the ATmega's UART, connected to the host through the
+ * RN-42 Bluetooth module.
+ *
+ * Bytes from the host arrive no faster than the baud rate allows (10 bits per
+ * byte) and go into a fixed-size receive ring buffer, like the one filled by
+ * the Arduino core's serial interrupt. If the firmware doesn't read fast
+ * enough and the ring fills up, further bytes are dropped, just as they are
+ * on the device. Transmits block the caller for as long as the bytes take to
+ * go out, matching the unbuffered Serial.print() of the Arduino core the
+ * firmware was written for.
+ *
+ * A baud rate of 0 disables throttling in both directions.
+ */
+public class SerialPort {
+    private static final int BITS_PER_BYTE = 10;
+    private static final int CHUNK_SIZE = 256;
+    // Don't bother parking for less than this - the scheduler can't do it
+    private static final long MIN_PARK_NANOS = 50 * 1000;
+
+    private final long mNanosPerByte;
+    private final byte[] mRxBuffer;
+    private int mRxHead;
+    private int mRxCount;
+    private long mReceivedBytes;
+    private long mDroppedBytes;
+    private long mTxDoneAt;
+
+    private OutputStream mToHost;
+    private Thread mReceiver;
+
+    /**
+     * @param baudRate
+     *  The UART speed, or 0 for no throttling
+     * @param rxBufferSize
+     *  The size of the receive ring buffer, in bytes
+     */
+    public SerialPort(int baudRate, int rxBufferSize) {
+        if(baudRate > 0) {
+            mNanosPerByte = TimeUnit.SECONDS.toNanos(BITS_PER_BYTE) / baudRate;
+        } else {
+            mNanosPerByte = 0;
+        }
+        mRxBuffer = new byte[rxBufferSize];
+    }
+
+    /**
+     * Connect the port to a host, replacing any previous connection.
+     */
+    public void attach(final InputStream fromHost, OutputStream toHost) {
+        detach();
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                receive(fromHost);
+            }
+        }, "HudSimulatorRx");
+        receiver.setDaemon(true);
+
+        synchronized(this) {
+            mToHost = toHost;
+            mReceiver = receiver;
+        }
+        receiver.start();
+    }
+
+    /**
+     * Disconnect from the host. Anything left in the receive buffer stays
+     * there, like on the real device.
+     */
+    public void detach() {
+        Thread receiver;
+        synchronized(this) {
+            receiver = mReceiver;
+            mReceiver = null;
+            mToHost = null;
+        }
+        if(receiver != null) {
+            receiver.interrupt();
+        }
+    }
+
+    /**
+     * @return the number of bytes waiting in the receive buffer.
+     */
+    public synchronized int available() {
+        return mRxCount;
+    }
+
+    /**
+     * @return the next byte from the receive buffer, or -1 if it is empty.
+     */
+    public synchronized int read() {
+        if(mRxCount == 0) {
+            return -1;
+        }
+        int c = mRxBuffer[mRxHead] & 0xff;
+        mRxHead = (mRxHead + 1) % mRxBuffer.length;
+        mRxCount--;
+        return c;
+    }
+
+    /**
+     * Wait until a byte is available to read.
+     *
+     * @return false if the timeout expired first.
+     */
+    public synchronized boolean awaitAvailable(long timeoutNanos)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while(mRxCount == 0) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Transmit bytes to the host, blocking until they would have been
+     * shifted out of the UART. If no host is connected the bytes are lost.
+     */
+    public void write(byte[] bytes) {
+        OutputStream toHost;
+        long doneAt;
+        synchronized(this) {
+            toHost = mToHost;
+            long now = System.nanoTime();
+            if(mTxDoneAt - now < 0) {
+                mTxDoneAt = now;
+            }
+            mTxDoneAt += bytes.length * mNanosPerByte;
+            doneAt = mTxDoneAt;
+        }
+
+        parkUntil(doneAt);
+        if(toHost != null) {
+            try {
+                toHost.write(bytes);
+                toHost.flush();
+            } catch(IOException e) {
+                // The Bluetooth module drops data when the host is gone
+            }
+        }
+    }
+
+    public synchronized long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    /**
+     * @return
+     *  The number of bytes lost because the receive buffer was full.
+     */
+    public synchronized long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    private void receive(InputStream fromHost) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long arrival = System.nanoTime();
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                int count = fromHost.read(chunk);
+                if(count < 0) {
+                    return;
+                }
+
+                long now = System.nanoTime();
+                if(arrival - now < 0) {
+                    arrival = now;
+                }
+                for(int i = 0; i < count; i++) {
+                    arrival += mNanosPerByte;
+                    parkUntil(arrival);
+                    push(chunk[i]);
+                }
+            }
+        } catch(IOException e) {
+            // The host disconnected
+        }
+    }
+
+    private synchronized void push(byte b) {
+        mReceivedBytes++;
+        if(mRxCount == mRxBuffer.length) {
+            mDroppedBytes++;
+            return;
+        }
+        mRxBuffer[(mRxHead + mRxCount) % mRxBuffer.length] = b;
+        mRxCount++;
+        notifyAll();
+    }
+
+    private static void parkUntil(long deadline) {
+        long remaining;
+        while((remaining = deadline - System.nanoTime()) > MIN_PARK_NANOS) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.openxc.hardware.hud.simulator;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.openxc.hardware.hud.fleet.HudFleet;
+
+/**
+ * A SimulatorFleet serves a FirmwareSimulator for each of a set of made-up
+ * MAC addresses on the loopback interface, and resolves those addresses for
+ * a HudFleet.
+ *
+ * The simulators still run a few threads each, like the real devices run
+ * their own microcontrollers - only the host side is multiplexed.
+ */
+public class SimulatorFleet implements HudFleet.Resolver {
+    // The RN-42's vendor prefix
+    private static final String MAC_PREFIX = "00:06:66:";
+
+    private final Map<String, SimulatorServer> mServers =
+            new LinkedHashMap<String, SimulatorServer>();
+
+    /**
+     * Start a simulated HUD.
+     *
+     * @return its MAC address
+     */
+    public synchronized String add(FirmwareSimulator simulator)
+            throws IOException {
+        int index = mServers.size();
+        String address = String.format(Locale.US, "%s%02X:%02X:%02X",
+                MAC_PREFIX, (index >> 16) & 0xff, (index >> 8) & 0xff,
+                index & 0xff);
+        SimulatorServer server = new SimulatorServer(simulator, 0);
+        mServers.put(address, server);
+
+        Thread thread = new Thread(server, "HudSimulatorServer");
+        thread.setDaemon(true);
+        thread.start();
+        return address;
+    }
+
+    /**
+     * Start a number of simulated HUDs with the default settings.
+     *
+     * @return their MAC addresses
+     */
+    public List<String> addAll(int count) throws IOException {
+        List<String> addresses = new ArrayList<String>();
+        for(int i = 0; i < count; i++) {
+            addresses.add(add(new FirmwareSimulator()));
+        }
+        return addresses;
+    }
+
+    public synchronized FirmwareSimulator getSimulator(String address) {
+        SimulatorServer server = mServers.get(
+                address.toUpperCase(Locale.US));
+        return server == null ? null : server.getSimulator();
+    }
+
+    public synchronized List<String> getAddresses() {
+        return new ArrayList<String>(mServers.keySet());
+    }
+
+    public synchronized SocketAddress resolve(String address)
+            throws IOException {
+        SimulatorServer server = mServers.get(
+                address.toUpperCase(Locale.US));
+        if(server == null) {
+            throw new IOException("No simulated HUD at " + address);
+        }
+        return new InetSocketAddress(InetAddress.getByName(null),
+                server.getPort());
+    }
+
+    /**
+     * Power off every simulator and close their ports.
+     */
+    public synchronized void close() {
+        for(SimulatorServer server : mServers.values()) {
+            server.close();
+        }
+        mServers.clear();
+    }
+}
@@ -0,0 +1,103 @@
+package com.openxc.hardware.hud.simulator;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * The SimulatorServer exposes a FirmwareSimulator on a TCP port, so a
+ * HudClient using a SocketTransport (or a terminal with netcat) can talk to
+ * it.
+ *
+ * Like the RN-42, it serves one host at a time - a new connection replaces
+ * the previous one.
+ *
+ * Usage: SimulatorServer [port] [baud rate] [rx buffer size]
+ */
+public class SimulatorServer implements Runnable {
+    public static final int DEFAULT_PORT = 9000;
+
+    private final FirmwareSimulator mSimulator;
+    private final ServerSocket mServerSocket;
+    private Socket mSocket;
+
+    /**
+     * Listen on the loopback interface.
+     *
+     * @param port
+     *  The port to listen on, or 0 to pick a free one
+     */
+    public SimulatorServer(FirmwareSimulator simulator, int port)
+            throws IOException {
+        mSimulator = simulator;
+        mServerSocket = new ServerSocket(port, 1,
+                InetAddress.getByName(null));
+    }
+
+    /**
+     * @return the port the server is listening on.
+     */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    public FirmwareSimulator getSimulator() {
+        return mSimulator;
+    }
+
+    public void run() {
+        mSimulator.start();
+        while(!mServerSocket.isClosed()) {
+            try {
+                Socket socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+                synchronized(this) {
+                    closeSocket();
+                    mSocket = socket;
+                }
+                mSimulator.onOpen(socket.getInputStream(),
+                        socket.getOutputStream());
+            } catch(IOException e) {
+                // The server socket was closed
+            }
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            mServerSocket.close();
+        } catch(IOException e) { }
+        closeSocket();
+        mSimulator.stop();
+    }
+
+    private void closeSocket() {
+        if(mSocket != null) {
+            try {
+                mSocket.close();
+            } catch(IOException e) { }
+            mSocket = null;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        FirmwareSimulator simulator = new FirmwareSimulator();
+        int port = DEFAULT_PORT;
+        if(args.length > 0) {
+            port = Integer.parseInt(args[0]);
+        }
+        if(args.length > 1) {
+            simulator.setBaudRate(Integer.parseInt(args[1]));
+        }
+        if(args.length > 2) {
+            simulator.setRxBufferSize(Integer.parseInt(args[2]));
+        }
+
+        SimulatorServer server = new SimulatorServer(simulator, port);
+        System.out.println("Simulated HUD listening on port " +
+                server.getPort());
+        server.run();
+    }
+}
@@ -0,0 +1,399 @@
+package com.openxc.hardware.hud.simulator;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.CommandLog;
+import com.openxc.hardware.hud.LatencyHistogram;
+import com.openxc.hardware.hud.MemoryTransport;
+
+/**
+ * The TraceReplayer plays the commands from a CommandLog against a
+ * FirmwareSimulator, to reproduce a recorded session or to use it as a
+ * regression benchmark.
+ *
+ * Each outgoing record is written to the simulator as recorded, at its
+ * recorded time scaled by the replay speed, or back to back when replaying
+ * as fast as possible. The result reports how late each write went out
+ * (the timing drift), how many of the logged commands the simulator
+ * actually handled and how many of the recorded responses came back, and
+ * the throughput of the replay.
+ *
+ * Usage: TraceReplayer log [speed], where a speed of 0 replays as fast as
+ * possible
+ */
+public class TraceReplayer {
+    public static final double REAL_TIME = 1;
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    // How long the simulator can go without handling a command before the
+    // rest are counted as dropped
+    private static final long SETTLE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private final FirmwareSimulator mSimulator;
+    private double mSpeed = REAL_TIME;
+
+    /**
+     * @param simulator
+     *  The stand-in device, which is started by the replay if it isn't
+     *  running already
+     */
+    public TraceReplayer(FirmwareSimulator simulator) {
+        mSimulator = simulator;
+    }
+
+    /**
+     * @param speed
+     *  How many times faster than recorded to replay, or AS_FAST_AS_POSSIBLE
+     */
+    public void setSpeed(double speed) {
+        if(!(speed >= 0)) {
+            throw new IllegalArgumentException("Invalid speed: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Replay the outgoing records of the log, waiting until the simulator
+     * has handled them.
+     */
+    public Result replay(CommandLog log) throws BluetoothException,
+            IOException {
+        MemoryTransport transport = new MemoryTransport(mSimulator);
+        transport.open();
+        try {
+            ResponseCounter responses = new ResponseCounter(
+                    transport.getInputStream());
+            Thread thread = new Thread(responses, "HudTraceResponses");
+            thread.setDaemon(true);
+            thread.start();
+            return replay(log, transport.getOutputStream(), responses);
+        } finally {
+            transport.close();
+        }
+    }
+
+    private Result replay(CommandLog log, OutputStream out,
+            ResponseCounter responses) throws IOException {
+        Result result = new Result();
+        CommandCounter commands = new CommandCounter();
+        byte[] payload = new byte[MAX_RECORD_LENGTH];
+        long handledBefore = mSimulator.getCommandCount();
+        long droppedBytesBefore = mSimulator.getDroppedBytes();
+
+        log.rewind();
+        long firstRecordAt = -1;
+        long startedAt = System.nanoTime();
+        while(log.next()) {
+            if(log.getType() == CommandLog.INCOMING) {
+                result.mExpectedResponses += countLines(log, payload);
+                continue;
+            } else if(log.getType() != CommandLog.OUTGOING) {
+                continue;
+            }
+            if(log.getLength() > payload.length) {
+                throw new IOException("Record too long: " + log.getLength());
+            }
+
+            if(firstRecordAt < 0) {
+                firstRecordAt = log.getTime();
+            }
+            long now = System.nanoTime();
+            if(mSpeed != AS_FAST_AS_POSSIBLE) {
+                long dueAt = startedAt + (long) ((log.getTime()
+                            - firstRecordAt) / mSpeed);
+                while(now < dueAt) {
+                    LockSupport.parkNanos(dueAt - now);
+                    now = System.nanoTime();
+                }
+                result.mDrift.record(now - dueAt);
+            }
+
+            int length = log.getPayload(payload);
+            out.write(payload, 0, length);
+            out.flush();
+            result.mWrites++;
+            result.mBytes += length;
+            result.mCommands += commands.count(payload, length);
+        }
+        result.mSentNanos = System.nanoTime() - startedAt;
+
+        // Wait for the simulator to work through its receive buffer and
+        // send its last responses
+        long handled = 0;
+        long handledAt = System.nanoTime();
+        long answered = 0;
+        long lastProgressAt = handledAt;
+        while((handled < result.mCommands
+                    || answered < result.mExpectedResponses)
+                && System.nanoTime() - lastProgressAt < SETTLE_NANOS) {
+            LockSupport.parkNanos(POLL_NANOS);
+            long count = mSimulator.getCommandCount() - handledBefore;
+            if(count != handled) {
+                handled = count;
+                handledAt = System.nanoTime();
+                lastProgressAt = handledAt;
+            }
+            if(responses.getLineCount() != answered) {
+                answered = responses.getLineCount();
+                lastProgressAt = System.nanoTime();
+            }
+        }
+        result.mHandledNanos = handledAt - startedAt;
+        result.mHandledCommands = handled;
+        result.mDroppedBytes = mSimulator.getDroppedBytes()
+                - droppedBytesBefore;
+        result.mResponses = answered;
+        return result;
+    }
+
+    private static int countLines(CommandLog log, byte[] payload) {
+        int length = log.getPayload(payload);
+        int lines = 0;
+        for(int i = 0; i < length; i++) {
+            if(payload[i] == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * The outcome of a replay.
+     */
+    public static class Result {
+        private final LatencyHistogram mDrift = new LatencyHistogram();
+        private long mWrites;
+        private long mBytes;
+        private long mCommands;
+        private long mHandledCommands;
+        private long mDroppedBytes;
+        private long mExpectedResponses;
+        private long mResponses;
+        private long mSentNanos;
+        private long mHandledNanos;
+
+        /**
+         * @return
+         *  How late each write went out compared to its recorded time,
+         *  empty when replaying as fast as possible.
+         */
+        public LatencyHistogram.Snapshot getDrift() {
+            return mDrift.snapshot();
+        }
+
+        public long getWriteCount() {
+            return mWrites;
+        }
+
+        public long getByteCount() {
+            return mBytes;
+        }
+
+        /**
+         * @return the number of commands in the replayed writes.
+         */
+        public long getCommandCount() {
+            return mCommands;
+        }
+
+        /**
+         * @return the number of commands the simulator handled.
+         */
+        public long getHandledCommandCount() {
+            return mHandledCommands;
+        }
+
+        /**
+         * @return
+         *  The number of commands the simulator never handled, e.g. because
+         *  they were written faster than the UART could take them.
+         */
+        public long getDroppedCommandCount() {
+            return Math.max(0, mCommands - mHandledCommands);
+        }
+
+        /**
+         * @return the number of bytes lost to a full receive buffer.
+         */
+        public long getDroppedByteCount() {
+            return mDroppedBytes;
+        }
+
+        /**
+         * @return the number of response lines in the log.
+         */
+        public long getExpectedResponseCount() {
+            return mExpectedResponses;
+        }
+
+        /**
+         * @return the number of response lines the simulator sent back.
+         */
+        public long getResponseCount() {
+            return mResponses;
+        }
+
+        /**
+         * @return
+         *  The time from the first write until the simulator had handled the
+         *  last command it was going to.
+         */
+        public long getDurationNanos() {
+            return mHandledNanos;
+        }
+
+        /**
+         * @return the commands handled per second over the replay.
+         */
+        public double getCommandsPerSecond() {
+            return mHandledNanos == 0 ? 0
+                    : mHandledCommands * 1e9 / mHandledNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d commands in %d writes (%d bytes) " +
+                    "sent in %.1fms, handled in %.1fms: %.0f commands/s, " +
+                    "%d dropped commands, %d dropped bytes, " +
+                    "%d of %d responses%ndrift: %s",
+                    mCommands, mWrites, mBytes, mSentNanos / 1e6,
+                    mHandledNanos / 1e6, getCommandsPerSecond(),
+                    getDroppedCommandCount(), mDroppedBytes, mResponses,
+                    mExpectedResponses, mDrift.snapshot());
+        }
+    }
+
+    /**
+     * Counts the commands in a stream of bytes the way the firmware's loop()
+     * splits them: a line ended by '\n', '\r' or 'M', or a binary command
+     * whose length is set by its opcode.
+     */
+    private static class CommandCounter {
+        private static final int START = 0;
+        private static final int LINE = 1;
+        private static final int OPCODE = 2;
+        private static final int MASK = 3;
+        private static final int PAYLOAD = 4;
+
+        private int mState = START;
+        private int mRemaining;
+
+        public int count(byte[] bytes, int length) {
+            int commands = 0;
+            for(int i = 0; i < length; i++) {
+                int b = bytes[i] & 0xff;
+                switch(mState) {
+                case START:
+                    if(b == FirmwareSimulator.FRAME_START) {
+                        mState = OPCODE;
+                    } else if(isTerminator(b)) {
+                        commands++;
+                    } else {
+                        mState = LINE;
+                    }
+                    break;
+                case LINE:
+                    if(isTerminator(b)) {
+                        commands++;
+                        mState = START;
+                    }
+                    break;
+                case OPCODE:
+                    switch(b & 0xf0) {
+                    case FirmwareSimulator.OP_SET:
+                        // The value and the checksum
+                        mRemaining = 2;
+                        mState = PAYLOAD;
+                        break;
+                    case FirmwareSimulator.OP_FADE:
+                        mRemaining = 4;
+                        mState = PAYLOAD;
+                        break;
+                    case FirmwareSimulator.OP_FRAME:
+                        mState = MASK;
+                        break;
+                    default:
+                        // The firmware rejects it straight away
+                        commands++;
+                        mState = START;
+                        break;
+                    }
+                    break;
+                case MASK:
+                    mRemaining = Integer.bitCount(b) + 1;
+                    mState = PAYLOAD;
+                    break;
+                default:
+                    if(--mRemaining == 0) {
+                        commands++;
+                        mState = START;
+                    }
+                    break;
+                }
+            }
+            return commands;
+        }
+
+        private static boolean isTerminator(int b) {
+            return b == '\n' || b == '\r' || b == 'M';
+        }
+    }
+
+    /**
+     * Drains the simulator's responses, counting the lines.
+     */
+    private static class ResponseCounter implements Runnable {
+        private final InputStream mStream;
+        private final AtomicLong mLines = new AtomicLong();
+
+        public ResponseCounter(InputStream stream) {
+            mStream = stream;
+        }
+
+        public long getLineCount() {
+            return mLines.get();
+        }
+
+        public void run() {
+            byte[] buffer = new byte[256];
+            try {
+                int count;
+                while((count = mStream.read(buffer)) >= 0) {
+                    for(int i = 0; i < count; i++) {
+                        if(buffer[i] == '\n') {
+                            mLines.incrementAndGet();
+                        }
+                    }
+                }
+            } catch(IOException e) {
+                // The replay is over
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            System.err.println("Usage: TraceReplayer log [speed]");
+            System.exit(1);
+        }
+
+        FirmwareSimulator simulator = new FirmwareSimulator();
+        TraceReplayer replayer = new TraceReplayer(simulator);
+        if(args.length > 1) {
+            replayer.setSpeed(Double.parseDouble(args[1]));
+        }
+        Result result = replayer.replay(CommandLog.read(new File(args[0])));
+        System.out.println(result);
+        simulator.stop();
+    }
+}
@@ -0,0 +1,163 @@
+package com.openxc.hardware.hud.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.openxc.hardware.hud.CommandEncoder;
+import com.openxc.hardware.hud.MemoryTransport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks the binary commands CommandEncoder writes against the simulator's
+ * copy of the firmware's readFrame().
+ */
+public class BinaryProtocolTest {
+    private static final long TIMEOUT_MILLIS = 2000;
+    private static final int FRAME_START = 0xA5;
+
+    private FirmwareSimulator mSimulator;
+    private MemoryTransport mTransport;
+    private InputStream mFromDevice;
+    private OutputStream mToDevice;
+    private CommandEncoder mEncoder;
+
+    @Before
+    public void setUp() throws Exception {
+        mSimulator = new FirmwareSimulator();
+        mSimulator.setBaudRate(0);
+        mTransport = new MemoryTransport(mSimulator);
+        mTransport.open();
+        mFromDevice = mTransport.getInputStream();
+        mToDevice = mTransport.getOutputStream();
+        mEncoder = new CommandEncoder();
+        mEncoder.setProtocol(CommandEncoder.Protocol.BINARY);
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.close();
+        mSimulator.stop();
+    }
+
+    @Test
+    public void setsEveryChannelAcrossTheByteRange() throws Exception {
+        long[] values = {0, 1, 127, 128, 255};
+        for(int chan = 0; chan < values.length; chan++) {
+            mEncoder.appendSet(chan, values[chan]);
+        }
+        assertEquals(FRAME_START, mEncoder.buffer()[0] & 0xff);
+        send();
+
+        for(int chan = 0; chan < values.length; chan++) {
+            assertEquals(values[chan], mSimulator.getLed(chan));
+        }
+    }
+
+    @Test
+    public void setsTheChannelsInAFrame() throws Exception {
+        long[] values = {10, 0, 200, 0, 255};
+        mEncoder.appendFrame(0x15, values);
+        assertEquals(FRAME_START, mEncoder.buffer()[0] & 0xff);
+        send();
+
+        assertEquals(1, mSimulator.getFrameCount());
+        assertEquals(10, mSimulator.getLed(0));
+        assertEquals(200, mSimulator.getLed(2));
+        assertEquals(255, mSimulator.getLed(4));
+    }
+
+    @Test
+    public void fadesToTheValue() throws Exception {
+        mEncoder.appendFade(3, 300, 180);
+        assertEquals(FRAME_START, mEncoder.buffer()[0] & 0xff);
+        send();
+        assertEquals(1, mSimulator.getFadeCount());
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(mSimulator.isFading(3)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(mSimulator.isFading(3));
+        assertEquals(180, mSimulator.getLed(3));
+    }
+
+    @Test
+    public void rejectsABadChecksum() throws Exception {
+        mEncoder.appendSet(1, 50);
+        mEncoder.buffer()[mEncoder.length() - 1] ^= 1;
+        mToDevice.write(mEncoder.buffer(), 0, mEncoder.length());
+        mEncoder.reset();
+
+        assertEquals("ERRCOA5", readLine());
+        send();
+        assertEquals(0, mSimulator.getLed(1));
+    }
+
+    @Test
+    public void resyncsAfterALostByte() throws Exception {
+        mEncoder.appendSet(1, 50);
+        // Drop the value, so the frame takes the next one's start byte as
+        // its checksum
+        byte[] damaged = mEncoder.buffer();
+        damaged[2] = damaged[3];
+        mToDevice.write(damaged, 0, mEncoder.length() - 1);
+        mEncoder.reset();
+
+        // The rest of the next frame is read as text, up to the one after
+        mEncoder.appendSet(2, 60);
+        mEncoder.appendSet(3, 70);
+        mEncoder.writeTo(mToDevice);
+
+        assertEquals("ERRCOA5", readLine());
+        send();
+        assertEquals(0, mSimulator.getLed(1));
+        assertEquals(0, mSimulator.getLed(2));
+        assertEquals(70, mSimulator.getLed(3));
+    }
+
+    /**
+     * Write the encoded commands followed by a ping, and wait until the
+     * simulator has answered the ping, by which time it has acted on
+     * everything before it. Binary commands are only answered if they fail,
+     * so any error would arrive ahead of the ACK.
+     */
+    private void send() throws IOException {
+        mEncoder.appendPing();
+        mEncoder.writeTo(mToDevice);
+        mToDevice.flush();
+        assertEquals("ACK", readLine());
+        // The firmware's 'P' case falls through to the unknown command error
+        assertEquals("ERRCO50", readLine());
+    }
+
+    /**
+     * @return
+     *  The next line from the simulator, skipping the START banner, which
+     *  may or may not arrive depending on whether the firmware booted before
+     *  the link was attached.
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while(true) {
+            int b = mFromDevice.read();
+            if(b < 0) {
+                throw new IOException("Simulator closed the link");
+            } else if(b == '\n') {
+                if(!line.toString().equals("START")) {
+                    return line.toString();
+                }
+                line.setLength(0);
+            } else if(b != '\r') {
+                line.append((char) b);
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.openxc.hardware.hud.simulator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.CommandEncoder;
+import com.openxc.hardware.hud.HudClient;
+import com.openxc.hardware.hud.MemoryTransport;
+import com.openxc.hardware.hud.Sequence;
+import com.openxc.hardware.hud.animation.FadePlan;
+import com.openxc.hardware.hud.animation.Timeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads sequences through a HudClient and watches the simulator's copy of
+ * the firmware play them.
+ */
+public class SequenceTest {
+    private static final long TIMEOUT_MILLIS = 2000;
+    private static final long POLL_MILLIS = 2;
+    private static final int CHAN = 1;
+    // How far a step may run late, for the simulator's loop and the test's
+    // polling
+    private static final long SLACK_MILLIS = 150;
+
+    private FirmwareSimulator mSimulator;
+    private HudClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mSimulator = new FirmwareSimulator();
+        mSimulator.setBaudRate(0);
+        boot();
+        mClient = new HudClient(new MemoryTransport(mSimulator).asFactory(),
+                new HudClient.Listener() {
+                    public void onConnected() { }
+                    public void onDisconnected() { }
+                    public void onConnectFailed(BluetoothException e) { }
+                    public void onDeviceReset() { }
+                    public void onUnexpectedResponse(String line) { }
+                });
+        mClient.requestConnect("memory").get(TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.shutdown();
+        mSimulator.stop();
+    }
+
+    @Test
+    public void encodesTheSequenceAsAQCommand() {
+        Sequence sequence = new Sequence()
+                .step(200, 1.0)
+                .step(0, 0.0);
+        sequence.setLoopCount(3);
+
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.appendSequence(CHAN, sequence);
+        assertEquals("Q13,200,255,0,0M",
+                new String(encoder.buffer(), 0, encoder.length()));
+    }
+
+    @Test
+    public void playsEachLoopAndHoldsTheLastValue() throws Exception {
+        Sequence sequence = new Sequence()
+                .step(150, 1.0)
+                .step(150, 0.2);
+        sequence.setLoopCount(2);
+
+        long start = System.currentTimeMillis();
+        assertEquals(2, mClient.requestSequence(CHAN, sequence)
+                .get(TIMEOUT_MILLIS));
+        assertEquals(1, mSimulator.getSequenceCount());
+
+        // Count the peaks until the sequence finishes
+        int peaks = 0;
+        boolean rising = true;
+        while(mSimulator.isFading(CHAN)) {
+            assertTrue(System.currentTimeMillis() - start < TIMEOUT_MILLIS);
+            int led = mSimulator.getLed(CHAN);
+            if(rising && led > 200) {
+                peaks++;
+                rising = false;
+            } else if(!rising && led < 100) {
+                rising = true;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(2, peaks);
+        assertTrue("Finished after " + elapsed + "ms", elapsed >= 600);
+        assertTrue("Finished after " + elapsed + "ms",
+                elapsed < 600 + SLACK_MILLIS);
+        assertEquals(CommandEncoder.intensity(0.2), mSimulator.getLed(CHAN));
+    }
+
+    @Test
+    public void sequenceThatTakesNoTimePlaysOnce() throws Exception {
+        Sequence sequence = new Sequence()
+                .step(0, 1.0)
+                .step(0, 0.4);
+        sequence.setLoopCount(Sequence.FOREVER);
+
+        assertEquals(2, mClient.requestSequence(CHAN, sequence)
+                .get(TIMEOUT_MILLIS));
+        awaitIdle();
+        assertEquals(CommandEncoder.intensity(0.4), mSimulator.getLed(CHAN));
+    }
+
+    @Test
+    public void setTakesOverARunningSequence() throws Exception {
+        startPulse();
+        mClient.set(CHAN, 0.5);
+        assertTrue(mClient.ping());
+
+        assertFalse(mSimulator.isFading(CHAN));
+        assertEquals(CommandEncoder.intensity(0.5), mSimulator.getLed(CHAN));
+        // The sequence doesn't pick up again
+        Thread.sleep(250);
+        assertEquals(CommandEncoder.intensity(0.5), mSimulator.getLed(CHAN));
+    }
+
+    @Test
+    public void fadeTakesOverARunningSequence() throws Exception {
+        startPulse();
+        mClient.fade(CHAN, 100, 0.0);
+        assertTrue(mClient.ping());
+
+        awaitIdle();
+        assertEquals(0, mSimulator.getLed(CHAN));
+        Thread.sleep(250);
+        assertEquals(0, mSimulator.getLed(CHAN));
+    }
+
+    @Test
+    public void fadePlanPlaysAsASequence() throws Exception {
+        Timeline timeline = new Timeline()
+                .keyframe(0, 0.0)
+                .keyframe(100, 1.0)
+                .keyframe(200, 1.0)
+                .keyframe(200, 0.6);
+        Sequence sequence = FadePlan.compile(timeline, 0).toSequence();
+
+        // A jump to the start, the fade up, the hold and the jump down
+        assertEquals(4, sequence.getStepCount());
+        assertEquals(0, sequence.getDuration(0));
+        assertEquals(0, sequence.getValue(0));
+        assertEquals(100, sequence.getDuration(1));
+        assertEquals(255, sequence.getValue(1));
+        assertEquals(100, sequence.getDuration(2));
+        assertEquals(255, sequence.getValue(2));
+        assertEquals(0, sequence.getDuration(3));
+        assertEquals(CommandEncoder.intensity(0.6), sequence.getValue(3));
+        assertEquals(1, sequence.getLoopCount());
+
+        mClient.uploadSequence(CHAN, sequence);
+        Thread.sleep(150);
+        assertEquals(255, mSimulator.getLed(CHAN));
+        awaitIdle();
+        assertEquals(CommandEncoder.intensity(0.6), mSimulator.getLed(CHAN));
+    }
+
+    /**
+     * Start a sequence that fades the channel up and down until it is given
+     * another command, and let it get going.
+     */
+    private void startPulse() throws Exception {
+        Sequence sequence = new Sequence()
+                .step(100, 1.0)
+                .step(100, 0.0);
+        mClient.uploadSequence(CHAN, sequence);
+        Thread.sleep(50);
+        assertTrue(mSimulator.isFading(CHAN));
+    }
+
+    /**
+     * Power on the simulator and wait until it has printed its START banner,
+     * so that the client doesn't see a reset after it connects.
+     */
+    private void boot() throws IOException, BluetoothException {
+        MemoryTransport transport = new MemoryTransport(mSimulator);
+        transport.open();
+        try {
+            OutputStream out = transport.getOutputStream();
+            out.write(new byte[] {'P', 'M'});
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                        transport.getInputStream(), "US-ASCII"));
+            // The firmware's 'P' case falls through to the unknown command
+            // error, which must not reach the client
+            String line;
+            do {
+                line = in.readLine();
+            } while(line != null && !line.equals("ERRCO50"));
+        } finally {
+            transport.close();
+        }
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(mSimulator.isFading(CHAN)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+        }
+        assertFalse(mSimulator.isFading(CHAN));
+    }
+}
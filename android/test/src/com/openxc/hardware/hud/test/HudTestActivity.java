@@ -1,7 +1,12 @@
 package com.openxc.hardware.hud.test;
 
+import com.openxc.hardware.hud.BatteryMonitor;
 import com.openxc.hardware.hud.BluetoothException;
+import com.openxc.hardware.hud.BluetoothHudInterface;
 import com.openxc.hardware.hud.HudService;
+import com.openxc.hardware.hud.animation.Animation;
+import com.openxc.hardware.hud.animation.Animator;
+import com.openxc.hardware.hud.animation.Timeline;
 
 import android.bluetooth.BluetoothAdapter;
 
@@ -17,7 +22,7 @@ import android.app.Activity;
 public class HudTestActivity extends Activity {
     private final static String TAG = "HudTest";
 	private final long PERIOD = 500;
-	private final long ERROR_PERIOD = 2000;
+    private final long CONNECT_TIMEOUT = 10000;
     private final String HUD_MAC_ADDRESS = "00:06:66:43:0D:08";
     private final static int REQUEST_ENABLE_BT = 42;
 
@@ -26,10 +31,14 @@ public class HudTestActivity extends Activity {
     private boolean mIsBound;
 
     private class Blinker implements Runnable {
-        private boolean mRunning = true;
+        private volatile boolean mRunning = true;
+        private volatile Animator mAnimator;
 
 		public void stop() {
             mRunning = false;
+            if(mAnimator != null) {
+                mAnimator.stop();
+            }
             if(mService != null) {
                 try {
                     mService.setAll(0.0);
@@ -42,47 +51,47 @@ public class HudTestActivity extends Activity {
 
 		@Override
 		public void run() {
-			while(mRunning) {
-				for(int i=0;i<5;i++){
-                    int channel;
-					if(i == 0) {
-                        channel = 4;
-                    } else {
-                        channel = i - 1;
-                    }
-
-                    try {
-                        mService.fade(channel, PERIOD, 0.0);
-                        mService.fade(i, PERIOD, 1.0);
-                    } catch(BluetoothException e) {
-                        Log.w(TAG, "Unable to blink", e);
-                        try {
-                            Thread.sleep(ERROR_PERIOD);
-                        } catch(InterruptedException er2) {
-                            return;
-                        }
-
-                        if(!mRunning) {
-                            return;
-                        }
-                    }
+            // Each LED fades up and back down again in turn, a step behind
+            // the one before it
+            Timeline scan = new Timeline()
+                .keyframe(0, 0.0)
+                .keyframe(PERIOD, 1.0)
+                .keyframe(2 * PERIOD, 0.0)
+                .keyframe(BluetoothHudInterface.CHANNEL_COUNT * PERIOD, 0.0);
+            scan.setLooping(true);
+
+            Animation kitt = new Animation();
+            for(int i = 0; i < BluetoothHudInterface.CHANNEL_COUNT; i++) {
+                kitt.channel(i, scan, i * PERIOD);
+            }
 
-					try {
-						Thread.sleep(PERIOD + Math.round(PERIOD/10));
-					} catch(InterruptedException e) {
-                        return;
-                    }
-				}
+            mAnimator = new Animator(mService);
+            // Send each fade ahead by the link delay, so the LEDs stay in
+            // step with each other
+            mAnimator.setLinkDelayEstimator(mService.getLinkDelayEstimator());
+            mAnimator.start();
+            mAnimator.play(kitt);
+            if(!mRunning) {
+                // We were stopped while starting up
+                mAnimator.stop();
+                return;
+            }
 
+			while(mRunning) {
                 try {
+                    Thread.sleep(BluetoothHudInterface.CHANNEL_COUNT * PERIOD);
+                } catch(InterruptedException e) {
+                    return;
+                }
+
+                // The keepalive keeps the monitor up to date, so this
+                // doesn't add any traffic
+                BatteryMonitor battery = mService.getBatteryMonitor();
+                if(battery.hasReading()) {
                     Log.d(TAG, "Raw battery level: " +
-                            mService.rawBatteryLevel());
-                } catch(BluetoothException e) {
-                    Log.w(TAG, "Unable to get raw battery level", e);
-                    // TODO we should sleep if we're still getting errors, but
-                    // because the buffer on the Bluetooth device isn't getting
-                    // flushed properly, sometimes the battery level gets a mix
-                    // of errors and responses to ping.
+                            battery.getLatestLevel() + ", charge: " +
+                            battery.getCharge() + ", time remaining: " +
+                            battery.getTimeRemaining() + "ms");
                 }
 			}
 		}
@@ -95,7 +104,8 @@ public class HudTestActivity extends Activity {
             new Thread(new Runnable() {
                 public void run() {
                     try {
-                        mService.connect(HUD_MAC_ADDRESS);
+                        mService.requestConnect(HUD_MAC_ADDRESS).get(
+                                CONNECT_TIMEOUT);
                     } catch(BluetoothException e) {
                         Log.w(TAG, "Unable to connect to Bluetooth device " +
                             "with address: " + HUD_MAC_ADDRESS);
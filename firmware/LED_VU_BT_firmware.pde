@@ -1,13 +1,28 @@
 //The maximum size of an incoming serial line
 #define BUFFLEN  200
 #define NUMLEDS  5
-//The maximum number of arguments (comma delimited) in a message
-#define MAXVALUES 3
+//The maximum number of steps in an uploaded sequence
+#define MAXSTEPS  8
+//The maximum number of arguments (comma delimited) in a message -
+//a sequence has a loop count followed by a duration and value per step
+#define MAXVALUES (1 + 2 * MAXSTEPS)
 
 //ENUM for possible LED actions
 #define ACT_FADEUP    1
 #define ACT_FADEDOWN  2
 #define ACT_BLINK     3
+#define ACT_SEQUENCE  4
+
+//Binary commands - see readFrame()
+#define FRAME_START  0xA5
+#define OP_SET    0x10
+#define OP_FADE   0x20
+#define OP_FRAME  0x30
+//The longest binary payload - a frame's channel mask and 8 values
+#define MAXPAYLOAD  9
+//The protocol version reported by 'V' - version 1 firmware only knows the
+//ASCII commands, version 2 also accepts binary commands
+#define PROTOCOL_VERSION  2
 
 //Mapping of LED to arduino pin number
 int leds[] = {3, 5, 6, 9, 10};
@@ -23,12 +38,26 @@ unsigned long act_start[NUMLEDS];
 //The curation of the current action
 unsigned long act_dur[NUMLEDS];
 unsigned long period = 800;
+//The value last written to each LED, which is where a sequence starts from
+unsigned char shown[NUMLEDS];
+//Uploaded sequences - the duration (ms) and destination value of each step
+unsigned int seq_dur[NUMLEDS][MAXSTEPS];
+unsigned char seq_val[NUMLEDS][MAXSTEPS];
+//The number of steps in each sequence, and the step being played
+unsigned char seq_len[NUMLEDS];
+unsigned char seq_step[NUMLEDS];
+//The number of times left to play each sequence, or 0 to loop forever
+unsigned int seq_loops[NUMLEDS];
 //The buffer for incoming serial data
 char line[BUFFLEN];
 //Serial message - the LED being acted upon
 int chan;
 //Serial message - the arguments
 long values[MAXVALUES];
+//Serial message - the number of arguments
+int nvalues;
+//Binary command - the payload after the opcode
+unsigned char payload[MAXPAYLOAD];
 //The analog pin used to check battery level
 int battPin = A0;
 
@@ -42,6 +71,8 @@ void setup(){
   memset(act_dur, 0, NUMLEDS);
   memset(act_dest, 0, NUMLEDS);
   memset(act_start, 0, NUMLEDS);
+  memset(shown, 0, NUMLEDS);
+  memset(seq_len, 0, NUMLEDS);
   //Note we are using 57600 baud for the serial link,
   //we were noticing baud rate detection issues if higher baud rates are used
   Serial.begin(57600);
@@ -76,6 +107,7 @@ void parseLine(){
       valbuff[valpos++] = c;
     }
   }
+  nvalues = val;
 }
 
 /*
@@ -84,8 +116,21 @@ void parseLine(){
 */
 void loop(){
   if (Serial.available() > 0){
+    int first = Serial.read();
+    if (first == FRAME_START){
+      //A binary command rather than a line of text
+      readFrame();
+      doBlink();
+      return;
+    }
 	//Read into 'line' until we see a '\n' or 'M'
-    readline(0);
+    if (readline(0, first)){
+      //A binary command cut the line short, so what we read is the rest
+      //of a damaged command rather than a real one - drop it
+      readFrame();
+      doBlink();
+      return;
+    }
     //Parse the line into 'chan' and 'values'
     parseLine();
     if ((chan < 0)||(chan > NUMLEDS-1)){
@@ -98,21 +143,12 @@ void loop(){
       //SET - directly set the value for that channel,
 	  //and turn off any actions that might have been running 
       Serial.println("OK");
-      setLed(chan,values[0]);
-      vals[chan] = values[0];
-      act[chan] = 0;
+      setChannel(chan,values[0]);
       break; 
     case 'F':
       //FADE - set a destination value for a given channel, and slowly
 	  //fade to that value over the specified duration
-      act_dur[chan] = values[0];
-      act_dest[chan] = (char)values[1];
-      if (act_dest[chan] < vals[chan])
-        act[chan] = ACT_FADEDOWN;
-      else if (act_dest[chan] > vals[chan])
-        act[chan] = ACT_FADEUP;
-      //Store the current time as the start time
-      act_start[chan] = millis();
+      fadeChannel(chan,values[0],values[1]);
       break;
     case 'B':
       //BATTERY - read raw battery level
@@ -126,6 +162,21 @@ void loop(){
       //unused, since these values have not been tested enough to be hardcoded
       Serial.println(batVal);
       break;   
+    case 'Q':
+      //SEQUENCE - store a list of steps for the channel and play them
+      //without any further commands. The arguments are a loop count
+      //followed by a duration and destination value for each step, and
+      //we answer with the number of steps stored.
+      startSequence(chan);
+      Serial.print("SEQ:");
+      Serial.println((int)seq_len[chan]);
+      break;
+    case 'V':
+      //VERSION - report which protocol we speak, so the host knows it can
+      //send binary commands. Version 1 firmware answers "ERRCO56".
+      Serial.print("VER:");
+      Serial.println(PROTOCOL_VERSION);
+      break;
     case 'P':
       Serial.println("ACK");
     default:
@@ -136,6 +187,110 @@ void loop(){
   doBlink();
 }
 
+/*
+ * Read and act on a binary command, once its FRAME_START byte has been read.
+ * A command is an opcode byte with the channel in its low nibble, a payload
+ * whose length is fixed by the opcode, and a checksum byte that makes the
+ * opcode, payload and checksum add up to 0 (mod 256):
+ *
+ *   OP_SET   | chan, value
+ *   OP_FADE  | chan, duration high byte, duration low byte, value
+ *   OP_FRAME, channel mask, one value for each bit set in the mask
+ *
+ * Binary commands only answer if they fail: "ERRCOA5" for a bad opcode or
+ * checksum, and "ERRCH" for a channel out of range.
+*/
+void readFrame(){
+  unsigned char op = readByte();
+  unsigned char sum = op;
+  int len = 0;
+  int i = 0;
+  switch (op & 0xF0){
+  case OP_SET:
+    len = 1;
+    break;
+  case OP_FADE:
+    len = 3;
+    break;
+  case OP_FRAME:
+    payload[i++] = readByte();
+    len = 1;
+    for (int bit=0;bit<8;bit++){
+      if (payload[0] & (1 << bit))
+        len++;
+    }
+    break;
+  default:
+    //We can't tell how long the command is, so skip straight to the error
+    Serial.print("ERRCO");
+    Serial.println(FRAME_START,HEX);
+    return;
+  }
+  for (;i<len;i++)
+    payload[i] = readByte();
+  for (i=0;i<len;i++)
+    sum += payload[i];
+  sum += readByte();
+  if (sum != 0){
+    Serial.print("ERRCO");
+    Serial.println(FRAME_START,HEX);
+    return;
+  }
+
+  chan = op & 0x0F;
+  if ((op & 0xF0) == OP_FRAME){
+    if ((chan != 0)||(payload[0] >> NUMLEDS)){
+      Serial.println("ERRCH");
+      return;
+    }
+    int next = 1;
+    for (int c=0;c<NUMLEDS;c++){
+      if (payload[0] & (1 << c))
+        setChannel(c, payload[next++]);
+    }
+    return;
+  }
+  if (chan > NUMLEDS-1){
+    Serial.println("ERRCH");
+    return;
+  }
+  if ((op & 0xF0) == OP_SET)
+    setChannel(chan, payload[0]);
+  else
+    fadeChannel(chan, ((unsigned int)payload[0] << 8) | payload[1],
+        payload[2]);
+}
+
+/*
+ * SET - directly set the value for a channel,
+ * and turn off any actions that might have been running
+*/
+void setChannel(int chan, long value){
+  setLed(chan,value);
+  vals[chan] = value;
+  act[chan] = 0;
+}
+
+/*
+ * FADE - fade a channel from its current value to a destination value
+ * over a duration in ms
+*/
+void fadeChannel(int chan, unsigned long dur, long value){
+  //A fade replaces a running sequence, starting from where it got to
+  if (act[chan] == ACT_SEQUENCE) {
+    act[chan] = 0;
+    vals[chan] = shown[chan];
+  }
+  act_dur[chan] = dur;
+  act_dest[chan] = (char)value;
+  if (act_dest[chan] < vals[chan])
+    act[chan] = ACT_FADEDOWN;
+  else if (act_dest[chan] > vals[chan])
+    act[chan] = ACT_FADEUP;
+  //Store the current time as the start time
+  act_start[chan] = millis();
+}
+
 /*
  * Preform actions on any LEDs that need to be acted upon (not just blink)
 */
@@ -165,13 +320,89 @@ void doBlink(){
         setLed(i,((((act_start[i]+act_dur[i])-millis())*(vals[i]-act_dest[i]))/act_dur[i])+act_dest[i]);
         break;
       case ACT_BLINK:
-		//TODO - implement blink!
+        //Unused - a blink is a two step sequence, see 'Q'
+        break;
+      case ACT_SEQUENCE:
+        playSequence(i);
         break;
       }
     }
   }
 }
 
+/*
+ * Store the sequence in 'values' for a channel and start playing it from
+ * the LED's current value. A sequence with no steps stops the channel.
+*/
+void startSequence(int chan){
+  int steps = (nvalues - 1) / 2;
+  if (steps > MAXSTEPS)
+    steps = MAXSTEPS;
+  if (steps < 0)
+    steps = 0;
+  //Start from whatever the LED shows, even if a fade is half done
+  vals[chan] = shown[chan];
+  act[chan] = 0;
+  seq_len[chan] = steps;
+  if (steps == 0)
+    return;
+
+  seq_loops[chan] = values[0];
+  unsigned long total = 0;
+  for (int i=0;i<steps;i++){
+    seq_dur[chan][i] = values[1 + 2 * i];
+    seq_val[chan][i] = values[2 + 2 * i];
+    total += seq_dur[chan][i];
+  }
+  //A sequence that takes no time can only be played once
+  if (total == 0)
+    seq_loops[chan] = 1;
+
+  seq_step[chan] = 0;
+  act_dur[chan] = seq_dur[chan][0];
+  act_dest[chan] = seq_val[chan][0];
+  act_start[chan] = millis();
+  act[chan] = ACT_SEQUENCE;
+}
+
+/*
+ * Move a sequence on to its next step.
+ * Returns 0 if the sequence has finished.
+*/
+int nextStep(int chan){
+  seq_step[chan]++;
+  if (seq_step[chan] == seq_len[chan]){
+    if (seq_loops[chan] == 1)
+      return 0;
+    if (seq_loops[chan] > 1)
+      seq_loops[chan]--;
+    seq_step[chan] = 0;
+  }
+  act_dur[chan] = seq_dur[chan][seq_step[chan]];
+  act_dest[chan] = seq_val[chan][seq_step[chan]];
+  return 1;
+}
+
+/*
+ * Update a LED that is playing a sequence. Each step is a linear fade from
+ * the end of the previous step, and starts when the previous step was due
+ * to end so the sequence doesn't drift.
+*/
+void playSequence(int i){
+  unsigned long now = millis();
+  while (now - act_start[i] >= act_dur[i]){
+    vals[i] = act_dest[i];
+    act_start[i] += act_dur[i];
+    if (!nextStep(i)){
+      act[i] = 0;
+      setLed(i, vals[i]);
+      return;
+    }
+  }
+  setLed(i, vals[i] + ((long)act_dest[i] - vals[i])
+      * (long)(now - act_start[i]) / (long)act_dur[i]);
+}
+
 /*
  * Set a LED to a given value immediately.
 */
@@ -181,20 +412,27 @@ void setLed(int chan, int value){
   //This wasn't used due to the low timer resolution (only 8-bit)
   //It caused low intensities to be extremely choppy, which didn't fade well
   int val = value;
+  shown[chan] = val;
   analogWrite(leds[chan],255-val);
 }
 
 /*
  * Read 1 line from the serial port, blocking execution until \n or M
+ * 'first' is the first character of the line, which loop() has already read
  * 'echo' can be set to echo every recieved character back
  * This is useful for debugging using minicom
+ * Also stops at a FRAME_START, so that after a lost byte or a bad checksum
+ * we pick up at the next binary command instead of reading it as text.
+ * Returns 1 if it stopped at a FRAME_START, which has been read
 */
-void readline(char echo){
-  int i=0; char c = 0x0;
+char readline(char echo, char first){
+  int i=0; char c = first;
   memset(line,'\0',BUFFLEN);
   while((i < BUFFLEN-1)){
-    while (Serial.available() < 1) {}  //Block until character is available
-    c = Serial.read();
+    if (i > 0){
+      while (Serial.available() < 1) {}  //Block until character is available
+      c = Serial.read();
+    }
     if (echo)
       Serial.print(c,BYTE);
     //if (c == '\r')
@@ -202,6 +440,17 @@ void readline(char echo){
     //if (c == '\n')
     if ((c == '\n')||(c == '\r')||(c == 'M'))
       break;
+    if ((byte)c == FRAME_START)
+      return 1;
     line[i++] = c;
   }
+  return 0;
+}
+
+/*
+ * Read 1 byte of a binary command, blocking until it arrives
+*/
+unsigned char readByte(){
+  while (Serial.available() < 1) {}
+  return Serial.read();
 }